@@ -0,0 +1,7 @@
+#/bin/bash
+export MAVEN_OPTS="-Xms2048m -server"
+bash_cmd="mvn compile exec:java -Dexec.mainClass=apps.CompareRuns -Dexec.args='$@' "
+bash -c "$bash_cmd"
+if [ "$?" != "0" ] ; then
+  exit 1
+fi
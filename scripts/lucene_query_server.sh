@@ -0,0 +1,7 @@
+#/bin/bash
+export MAVEN_OPTS="-Xms8192m -server"
+bash_cmd="mvn compile exec:java -Dexec.mainClass=apps.LuceneQueryServer -Dexec.args='$@' "
+bash -c "$bash_cmd"
+if [ "$?" != "0" ] ; then
+  exit 1
+fi
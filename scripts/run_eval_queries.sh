@@ -189,7 +189,11 @@ if [ "$DO_EVAL" = "1" ] ; then
     echo "============================================="
     EVAL_REPORT_STANDARD="$output/standard/runs/eval.$metr"
     EVAL_REPORT_FIXED="$output/fixed/runs/eval.$metr"
-    scripts/p-val.R "$EVAL_REPORT_FIXED" "$EVAL_REPORT_STANDARD"
+    scripts/compare_runs.sh -a "$EVAL_REPORT_FIXED" -b "$EVAL_REPORT_STANDARD" -m "$metr" -seed 0
+    if [ "$?" != "0" ] ; then
+      echo "scripts/compare_runs.sh failed!"
+      exit 1
+    fi
   done
 fi
 
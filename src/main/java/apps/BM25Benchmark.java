@@ -0,0 +1,217 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package apps;
+
+import java.io.File;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+
+import org.apache.commons.cli.*;
+import org.apache.lucene.analysis.en.EnglishAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.similarities.BM25SimilarityFix;
+import org.apache.lucene.store.FSDirectory;
+
+import com.google.common.base.Joiner;
+
+import source.*;
+import utils.*;
+
+/**
+ * <p>A benchmark that compares the speed of the fixed BM25 similarity with and
+ * without the length normalization cache. Queries are parsed once and
+ * are executed in several rounds; both similarities are used in each round
+ * (alternating which one goes first). Long queries, e.g., Yahoo Answers
+ * questions, are most sensitive to the scoring speed, so one can
+ * use only queries with at least a given number of terms.</p>
+ *
+ * <p>The benchmark also verifies that the cache doesn't change the results.</p>
+ *
+ * @author Leonid Boytsov
+ *
+ */
+public class BM25Benchmark {
+  static void Usage(String err, Options opt) {
+    System.err.println("Error: " + err);
+    HelpFormatter formatter = new HelpFormatter();
+    formatter.printHelp( "BM25Benchmark", opt);
+    System.exit(1);
+  }
+
+  public static void main(String[] args) {
+    Options options = new Options();
+
+    options.addOption("d",      null, true, "index directory");
+    options.addOption("i",      null, true, "input file");
+    options.addOption("s",      null, true, "stop word file");
+    options.addOption("n",      null, true, "max # of results (default 100)");
+    options.addOption("max_query_qty",  null, true, "a maximum number of queries to run");
+    options.addOption("min_query_len",  null, true, "use only queries with at least this many terms");
+    options.addOption("rounds",         null, true, "the number of rounds (default 5)");
+    options.addOption("bm25_b",         null, true, "BM25 parameter: b");
+    options.addOption("bm25_k1",        null, true, "BM25 parameter: k1");
+    options.addOption("norm_cache_size", null, true,
+                      "the size of the length normalization cache (default " +
+                      BM25SimilarityFix.DEFAULT_NORM_CACHE_SIZE + ")");
+
+    Joiner   commaJoin  = Joiner.on(',');
+    Joiner   spaceJoin  = Joiner.on(' ');
+
+    options.addOption("source_type", null, true,
+                      "query source type: " + commaJoin.join(SourceFactory.getQuerySourceList()));
+
+    CommandLineParser parser = new org.apache.commons.cli.GnuParser();
+
+    try {
+      CommandLine cmd = parser.parse(options, args);
+
+      String indexDir = cmd.getOptionValue("d");
+      if (indexDir == null) Usage("Specify 'index directory'", options);
+
+      String inputFileName = cmd.getOptionValue("i");
+      if (inputFileName == null) Usage("Specify 'input file'", options);
+
+      String sourceName = cmd.getOptionValue("source_type");
+      if (sourceName == null) Usage("Specify document source type", options);
+
+      DictNoComments stopWords = null;
+      if (cmd.hasOption("s")) {
+        stopWords = new DictNoComments(new File(cmd.getOptionValue("s")), true /* lowercasing */);
+      }
+
+      int   numRet = 100, maxQueryQty = Integer.MAX_VALUE, minQueryLen = 0, roundQty = 5;
+      int   normCacheSize = BM25SimilarityFix.DEFAULT_NORM_CACHE_SIZE;
+      float bm25_k1 = UtilConst.BM25_K1_DEFAULT, bm25_b = UtilConst.BM25_B_DEFAULT;
+
+      try {
+        if (cmd.hasOption("n")) numRet = Integer.parseInt(cmd.getOptionValue("n"));
+        if (cmd.hasOption("max_query_qty")) maxQueryQty = Integer.parseInt(cmd.getOptionValue("max_query_qty"));
+        if (cmd.hasOption("min_query_len")) minQueryLen = Integer.parseInt(cmd.getOptionValue("min_query_len"));
+        if (cmd.hasOption("rounds")) roundQty = Integer.parseInt(cmd.getOptionValue("rounds"));
+        if (cmd.hasOption("norm_cache_size")) normCacheSize = Integer.parseInt(cmd.getOptionValue("norm_cache_size"));
+        if (cmd.hasOption("bm25_k1")) bm25_k1 = Float.parseFloat(cmd.getOptionValue("bm25_k1"));
+        if (cmd.hasOption("bm25_b")) bm25_b = Float.parseFloat(cmd.getOptionValue("bm25_b"));
+      } catch (NumberFormatException e) {
+        Usage("Wrong number format: " + e.getMessage(), options);
+      }
+      if (normCacheSize < 1) Usage("The size of the cache should be >= 1", options);
+      if (roundQty < 1) Usage("The number of rounds should be >= 1", options);
+
+      EnglishAnalyzer analyzer = new EnglishAnalyzer();
+      QueryParser     queryParser = new QueryParser(UtilConst.FIELD_TEXT, analyzer);
+      queryParser.setDefaultOperator(QueryParser.OR_OPERATOR);
+      TextCleaner     textCleaner = new TextCleaner(stopWords);
+
+      ArrayList<Query> queries = new ArrayList<Query>();
+      long             termQty = 0;
+      QuerySource      inpQuerySource = SourceFactory.createQuerySource(sourceName, inputFileName);
+      QueryEntry       inpQuery = null;
+
+      while (queries.size() < maxQueryQty && (inpQuery = inpQuerySource.next()) != null) {
+        ArrayList<String> toks = textCleaner.cleanUp(inpQuery.mQueryText);
+        if (toks.isEmpty() || toks.size() < minQueryLen) continue;
+        String query = TextCleaner.luceneSafeCleanUp(spaceJoin.join(toks)).trim();
+        if (query.isEmpty()) continue;
+        if (2 * toks.size() > BooleanQuery.getMaxClauseCount()) {
+          BooleanQuery.setMaxClauseCount(2 * toks.size());
+        }
+        queries.add(queryParser.parse(query));
+        termQty += toks.size();
+      }
+      if (queries.isEmpty()) {
+        System.err.println("No queries to run");
+        System.exit(1);
+      }
+      System.out.println(String.format("Using %d queries, %.1f terms per query on average",
+                                       queries.size(), (double) termQty / queries.size()));
+
+      DirectoryReader reader = DirectoryReader.open(FSDirectory.open(Paths.get(indexDir)));
+
+      IndexSearcher   plainSearcher = new IndexSearcher(reader);
+      plainSearcher.setSimilarity(new BM25SimilarityFix(bm25_k1, bm25_b));
+      IndexSearcher   cachedSearcher = new IndexSearcher(reader);
+      cachedSearcher.setSimilarity(new BM25SimilarityFix(bm25_k1, bm25_b, normCacheSize));
+
+      System.out.println(String.format("BM25 parameters k1=%f b=%f, the cache size %d",
+                                       bm25_k1, bm25_b, normCacheSize));
+
+      // Warm up both variants and compare results
+      TopDocs[] plainRes = runQueries(plainSearcher, queries, numRet);
+      TopDocs[] cachedRes = runQueries(cachedSearcher, queries, numRet);
+      compareResults(plainRes, cachedRes);
+
+      long plainNanos = 0, cachedNanos = 0;
+
+      for (int round = 0; round < roundQty; ++round) {
+        long roundPlain = 0, roundCached = 0;
+        for (int k = 0; k < 2; ++k) {
+          // Alternate the order so that neither variant benefits from going second
+          boolean cached = (round + k) % 2 == 1;
+          long start = System.nanoTime();
+          runQueries(cached ? cachedSearcher : plainSearcher, queries, numRet);
+          long nanos = System.nanoTime() - start;
+          if (cached) roundCached = nanos; else roundPlain = nanos;
+        }
+        System.out.println(String.format("Round %d: no cache %.3f ms/query, cache %.3f ms/query",
+                                         round + 1,
+                                         roundPlain / 1e6 / queries.size(),
+                                         roundCached / 1e6 / queries.size()));
+        plainNanos += roundPlain;
+        cachedNanos += roundCached;
+      }
+
+      System.out.println(String.format("On average: no cache %.3f ms/query, cache %.3f ms/query, speedup %.3f",
+                                       plainNanos / 1e6 / queries.size() / roundQty,
+                                       cachedNanos / 1e6 / queries.size() / roundQty,
+                                       (double) plainNanos / Math.max(1, cachedNanos)));
+      reader.close();
+    } catch (ParseException e) {
+      e.printStackTrace();
+      Usage("Cannot parse arguments: " + e, options);
+    } catch(Exception e) {
+      e.printStackTrace();
+      System.err.println("Terminating due to an exception: " + e);
+      System.exit(1);
+    }
+  }
+
+  private static TopDocs[] runQueries(IndexSearcher searcher, ArrayList<Query> queries,
+                                      int numRet) throws Exception {
+    TopDocs[] res = new TopDocs[queries.size()];
+    for (int i = 0; i < queries.size(); ++i) {
+      res[i] = searcher.search(queries.get(i), numRet);
+    }
+    return res;
+  }
+
+  private static void compareResults(TopDocs[] plainRes, TopDocs[] cachedRes) {
+    int     diffQty = 0;
+    double  maxScoreDiff = 0;
+    for (int i = 0; i < plainRes.length; ++i) {
+      ScoreDoc[] a = plainRes[i].scoreDocs, b = cachedRes[i].scoreDocs;
+      boolean same = a.length == b.length;
+      for (int k = 0; same && k < a.length; ++k) {
+        same = a[k].doc == b[k].doc;
+        maxScoreDiff = Math.max(maxScoreDiff, Math.abs(a[k].score - b[k].score));
+      }
+      if (!same) ++diffQty;
+    }
+    System.out.println(String.format("Queries with different result lists: %d out of %d, max. score difference %g",
+                                     diffQty, plainRes.length, maxScoreDiff));
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package apps;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+
+import org.apache.commons.cli.*;
+
+import qrels.*;
+
+/**
+ * <p>Compares two runs using a paired t-test, a randomization test, and
+ * a bootstrap confidence interval of the mean difference (see {@link SignificanceTest}).
+ * Inputs are either TREC run files (evaluated in memory, if a QREL file is specified)
+ * or files with per-query values of metrics (see {@link EvalResult#readQueryValues(String, String)}).</p>
+ *
+ * @author Leonid Boytsov
+ *
+ */
+public class CompareRuns {
+  static void Usage(String err, Options opt) {
+    System.err.println("Error: " + err);
+    HelpFormatter formatter = new HelpFormatter();
+    formatter.printHelp( "CompareRuns", opt);
+    System.exit(1);
+  }
+
+  public static void main(String[] args) {
+    Options options = new Options();
+
+    options.addOption("a",          null, true, "the first run file or a file with per-query metric values");
+    options.addOption("b",          null, true, "the second run file or a file with per-query metric values");
+    options.addOption("r",          null, true, "an optional QREL file: if specified, inputs are TREC run files");
+    options.addOption("m",          null, true, "a metric name, e.g., map or ndcg@20 (default " + Evaluator.MAP + ")");
+    options.addOption("iter",       null, true,
+                      "the number of randomization and bootstrap iterations (default " + SignificanceTest.DEFAULT_ITER_QTY + ")");
+    options.addOption("conf",       null, true, "the confidence level of the bootstrap interval (default 0.95)");
+    options.addOption("seed",       null, true, "random seed (default " + SignificanceTest.DEFAULT_SEED + ")");
+    options.addOption("threads",    null, true,
+                      "the number of threads (default: the number of processors)");
+
+    CommandLineParser parser = new org.apache.commons.cli.GnuParser();
+
+    try {
+      CommandLine cmd = parser.parse(options, args);
+
+      String fileA = cmd.getOptionValue("a");
+      if (fileA == null) Usage("Specify 'the first run file'", options);
+      String fileB = cmd.getOptionValue("b");
+      if (fileB == null) Usage("Specify 'the second run file'", options);
+
+      String  metric = cmd.hasOption("m") ? cmd.getOptionValue("m") : Evaluator.MAP;
+      int     iterQty = SignificanceTest.DEFAULT_ITER_QTY;
+      int     threadQty = Runtime.getRuntime().availableProcessors();
+      double  confLevel = 0.95;
+      long    seed = SignificanceTest.DEFAULT_SEED;
+
+      try {
+        if (cmd.hasOption("iter")) iterQty = Integer.parseInt(cmd.getOptionValue("iter"));
+        if (cmd.hasOption("threads")) threadQty = Integer.parseInt(cmd.getOptionValue("threads"));
+        if (cmd.hasOption("conf")) confLevel = Double.parseDouble(cmd.getOptionValue("conf"));
+        if (cmd.hasOption("seed")) seed = Long.parseLong(cmd.getOptionValue("seed"));
+      } catch (NumberFormatException e) {
+        Usage("Wrong number format: " + e.getMessage(), options);
+      }
+      if (iterQty < 1) Usage("The number of iterations should be >= 1", options);
+      if (threadQty < 1) Usage("The number of threads should be >= 1", options);
+      if (confLevel <= 0 || confLevel >= 1) Usage("The confidence level should be in (0, 1)", options);
+
+      LinkedHashMap<String, Double> valsA = null, valsB = null;
+
+      if (cmd.hasOption("r")) {
+        QrelReader qrels = new QrelReader(cmd.getOptionValue("r"));
+        valsA = evalRun(qrels, fileA, metric, threadQty);
+        valsB = evalRun(qrels, fileB, metric, threadQty);
+      } else {
+        valsA = EvalResult.readQueryValues(fileA, metric);
+        valsB = EvalResult.readQueryValues(fileB, metric);
+      }
+
+      SignificanceTest test = SignificanceTest.createPaired(valsA, valsB, threadQty, seed);
+
+      if (test.getQty() < valsA.size() || test.getQty() < valsB.size()) {
+        System.out.println(String.format("WARNING: only %d queries are in both inputs (%d and %d queries in each input)",
+                                         test.getQty(), valsA.size(), valsB.size()));
+      }
+
+      long start = System.nanoTime();
+      double    tPValue = test.getTTestPValue();
+      double    permPValue = test.getPermutationPValue(iterQty);
+      double[]  interval = test.getBootstrapInterval(iterQty, confLevel);
+
+      System.out.println(String.format(Locale.US, "Metric: %s, %d queries", metric, test.getQty()));
+      System.out.println(String.format(Locale.US, "%s mean: %f", fileA, test.getMeanX()));
+      System.out.println(String.format(Locale.US, "%s mean: %f", fileB, test.getMeanY()));
+      System.out.println(String.format(Locale.US, "Mean ratio: %f", test.getMeanX() / test.getMeanY()));
+      System.out.println(String.format(Locale.US, "Mean difference: %f", test.getMeanDiff()));
+      System.out.println(String.format(Locale.US, "Paired t-test: t = %f, df = %d, p-value = %g",
+                                       test.getTStatistic(), test.getQty() - 1, tPValue));
+      System.out.println(String.format(Locale.US, "Randomization test (%d iterations): p-value = %g",
+                                       iterQty, permPValue));
+      System.out.println(String.format(Locale.US, "Bootstrap %.1f%% confidence interval of the mean difference " +
+                                       "(%d samples): [%f, %f]", confLevel * 100, iterQty, interval[0], interval[1]));
+      System.out.println(String.format("The tests took %d ms using %d thread(s)",
+                                       (System.nanoTime() - start) / 1000000, threadQty));
+    } catch (ParseException e) {
+      e.printStackTrace();
+      Usage("Cannot parse arguments: " + e, options);
+    } catch(Exception e) {
+      e.printStackTrace();
+      System.err.println("Terminating due to an exception: " + e);
+      System.exit(1);
+    }
+  }
+
+  private static LinkedHashMap<String, Double> evalRun(QrelReader qrels, String runFile,
+                                                       String metric, int threadQty) throws Exception {
+    Evaluator eval = new Evaluator(qrels);
+    eval.readRun(runFile);
+    EvalResult res = eval.evaluate(threadQty);
+    if (!res.getMetricNames().contains(metric)) {
+      throw new Exception("Unknown metric: " + metric + ", available metrics: " + res.getMetricNames());
+    }
+    return res.getQueryValues(metric);
+  }
+}
@@ -241,6 +241,13 @@ public class ConvertStackOverflow {
   public static final String EXCLUDE_CODE_PARAM = "exclude_code";
   public static final String EXCLUDE_CODE_DESC  = "Completely remove all the code sections";
   
+  public static final String READ_AHEAD_PARAM = "read_ahead";
+  public static final String READ_AHEAD_DESC  = "decompress the input file in a background thread";
+  
+  public static final String BZIP2_THREADS_PARAM = "bzip2_threads";
+  public static final String BZIP2_THREADS_DESC  = "decompress blocks of the bz2 input file using this number of threads " + 
+                                                   "(default: the number of processors; 0: sequential decompression)";
+  
   public final static String MAX_NUM_REC_DESC = "maximum number of records to process";
   public final static String MAX_NUM_REC_PARAM = "n";  
   
@@ -293,6 +300,8 @@ public class ConvertStackOverflow {
     options.addOption(MAX_NUM_REC_PARAM, null, true, MAX_NUM_REC_DESC);
     options.addOption(DEBUG_PRINT_PARAM,   null, false, DEBUG_PRINT_DESC);
     options.addOption(EXCLUDE_CODE_PARAM,  null, false, EXCLUDE_CODE_DESC);
+    options.addOption(READ_AHEAD_PARAM,    null, false, READ_AHEAD_DESC);
+    options.addOption(BZIP2_THREADS_PARAM, null, true, BZIP2_THREADS_DESC);
     
     CommandLineParser parser = new org.apache.commons.cli.GnuParser();
     
@@ -309,6 +318,14 @@ public class ConvertStackOverflow {
       
       if (null == outputFile) Usage("Specify: " + OUTPUT_PARAM, options);
       
+      CompressUtils.setReadAhead(cmd.hasOption(READ_AHEAD_PARAM));
+      if (cmd.hasOption(BZIP2_THREADS_PARAM)) {
+        try {
+          CompressUtils.setBZip2ThreadQty(Integer.parseInt(cmd.getOptionValue(BZIP2_THREADS_PARAM)));
+        } catch (IllegalArgumentException e) {
+          Usage("Wrong value of '" + BZIP2_THREADS_PARAM + "': " + e.getMessage(), options);
+        }
+      }
       InputStream input = CompressUtils.createInputStream(inputFile);
       BufferedWriter  output = new BufferedWriter(new FileWriter(new File(outputFile)));
       
@@ -371,6 +388,8 @@ public class ConvertStackOverflow {
       input.close();
       output.close();
       
+      if (CompressUtils.isReadAhead()) System.out.println(CompressUtils.getReadAheadStallSummary());
+      
     } catch (ParseException e) {
       Usage("Cannot parse arguments", options);
     } catch (Exception e) {
@@ -0,0 +1,103 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package apps;
+
+import org.apache.commons.cli.*;
+
+import qrels.*;
+
+/**
+ * <p>Evaluates a TREC run file in memory: computes trec_eval metrics (MAP, MRR, P@k, recall)
+ * and gdeval.pl metrics (NDCG@k and ERR@k), see {@link Evaluator}. The output format
+ * is the same as the format of trec_eval.</p>
+ *
+ * @author Leonid Boytsov
+ *
+ */
+public class EvalRun {
+  static void Usage(String err, Options opt) {
+    System.err.println("Error: " + err);
+    HelpFormatter formatter = new HelpFormatter();
+    formatter.printHelp( "EvalRun", opt);
+    System.exit(1);
+  }
+
+  public static void main(String[] args) {
+    Options options = new Options();
+
+    options.addOption("r",          null, true, "a QREL file");
+    options.addOption("i",          null, true, "a TREC run file");
+    options.addOption("q",          null, false, "print metrics for each query");
+    options.addOption("o",          null, true, "an optional output file for per-query metrics");
+    options.addOption("cutoffs",    null, true, "a comma-separated list of precision cutoffs (default 1,10,20)");
+    options.addOption("depth",      null, true, "the depth of NDCG and ERR (default " + Evaluator.DEFAULT_DEPTH + ")");
+    options.addOption("threads",    null, true, "the number of threads (default 1)");
+
+    CommandLineParser parser = new org.apache.commons.cli.GnuParser();
+
+    try {
+      CommandLine cmd = parser.parse(options, args);
+
+      String qrelFile = cmd.getOptionValue("r");
+      if (qrelFile == null) Usage("Specify 'a QREL file'", options);
+      String runFile = cmd.getOptionValue("i");
+      if (runFile == null) Usage("Specify 'a TREC run file'", options);
+
+      int     threadQty = 1, depth = Evaluator.DEFAULT_DEPTH;
+      int[]   cutoffs = Evaluator.DEFAULT_PRECISION_CUTOFFS;
+
+      try {
+        if (cmd.hasOption("threads")) threadQty = Integer.parseInt(cmd.getOptionValue("threads"));
+        if (cmd.hasOption("depth")) depth = Integer.parseInt(cmd.getOptionValue("depth"));
+        if (cmd.hasOption("cutoffs")) cutoffs = parseCutoffs(cmd.getOptionValue("cutoffs"));
+      } catch (NumberFormatException e) {
+        Usage("Wrong number format: " + e.getMessage(), options);
+      }
+      if (threadQty < 1) Usage("The number of threads should be >= 1", options);
+      if (depth < 1) Usage("The depth should be >= 1", options);
+      for (int k : cutoffs) {
+        if (k < 1) Usage("Precision cutoffs should be >= 1", options);
+      }
+
+      Evaluator eval = new Evaluator(new QrelReader(qrelFile));
+      eval.setPrecisionCutoffs(cutoffs);
+      eval.setDepth(depth);
+      eval.readRun(runFile);
+
+      EvalResult res = eval.evaluate(threadQty);
+      res.print(System.out, cmd.hasOption("q"));
+
+      if (cmd.hasOption("o")) res.save(cmd.getOptionValue("o"));
+    } catch (ParseException e) {
+      e.printStackTrace();
+      Usage("Cannot parse arguments: " + e, options);
+    } catch(Exception e) {
+      e.printStackTrace();
+      System.err.println("Terminating due to an exception: " + e);
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Parses a comma-separated list of precision cutoffs.
+   */
+  static int[] parseCutoffs(String s) {
+    String[] parts = s.split(",");
+    int[]    res = new int[parts.length];
+    for (int i = 0; i < parts.length; ++i) res[i] = Integer.parseInt(parts[i].trim());
+    return res;
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package apps;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+
+import source.CheckpointableSource;
+
+/**
+ * <p>Periodically commits the index and records the source position
+ * (as well as the length of the QREL file) in the commit user data.
+ * An interrupted indexing run can then continue from the last commit
+ * without re-indexing or duplicating documents.</p>
+ *
+ * <p>The index writer must be created with commit-on-close disabled,
+ * otherwise, closing the writer would commit documents that are not
+ * covered by the saved source position.</p>
+ *
+ * @author Leonid Boytsov
+ *
+ */
+public class IndexCheckpointer {
+  public static final String KEY_SOURCE_POS = "source_position";
+  public static final String KEY_DOC_QTY    = "doc_qty";
+  public static final String KEY_QREL_BYTES = "qrel_bytes";
+  public static final String KEY_COMPLETE   = "complete";
+
+  /**
+   * Constructor.
+   *
+   * @param indexWriter     an index writer.
+   * @param source          a document source.
+   * @param qrelWriter      an optional QREL writer (can be null).
+   * @param qrelFile        a QREL file (null if there is no QREL writer).
+   * @param commitInterval  commit every commitInterval documents.
+   * @param startDocQty     the number of documents indexed by previous runs.
+   */
+  public IndexCheckpointer(IndexWriter indexWriter, CheckpointableSource source,
+                           BufferedWriter qrelWriter, File qrelFile,
+                           int commitInterval, int startDocQty) {
+    mIndexWriter = indexWriter;
+    mSource = source;
+    mQrelWriter = qrelWriter;
+    mQrelFile = qrelFile;
+    mCommitInterval = commitInterval;
+    mStartDocQty = startDocQty;
+  }
+
+  /**
+   * @return the number of documents between two commits.
+   */
+  public int getCommitInterval() {
+    return mCommitInterval;
+  }
+
+  /**
+   * Commits the index. This function must be called when all documents
+   * read from the source are already added to the index.
+   *
+   * @param docQty    the number of documents indexed in this run.
+   * @param complete  true if the source is exhausted.
+   * @throws IOException
+   */
+  public void checkpoint(int docQty, boolean complete) throws IOException {
+    long start = System.currentTimeMillis();
+
+    Map<String, String> userData = new HashMap<String, String>();
+    userData.put(KEY_SOURCE_POS, mSource.getPosition());
+    userData.put(KEY_DOC_QTY, Integer.toString(mStartDocQty + docQty));
+    userData.put(KEY_COMPLETE, Boolean.toString(complete));
+    if (mQrelWriter != null) {
+      synchronized (mQrelWriter) {
+        mQrelWriter.flush();
+        userData.put(KEY_QREL_BYTES, Long.toString(mQrelFile.length()));
+      }
+    }
+
+    mIndexWriter.setLiveCommitData(userData.entrySet());
+    mIndexWriter.commit();
+
+    System.out.println(String.format("Checkpoint: %d documents, source position %s, the commit took %d ms",
+                                     mStartDocQty + docQty, userData.get(KEY_SOURCE_POS),
+                                     System.currentTimeMillis() - start));
+  }
+
+  /**
+   * Records the length of the QREL file in the user data of the next commit
+   * (e.g., the commit made when the index writer is closed). This lets
+   * the next append run drop QREL entries saved by a failed run.
+   *
+   * @param indexWriter an index writer.
+   * @param qrelWriter  a QREL writer.
+   * @param qrelFile    a QREL file.
+   * @throws IOException
+   */
+  public static void setFinalCommitData(IndexWriter indexWriter,
+                                        BufferedWriter qrelWriter, File qrelFile) throws IOException {
+    Map<String, String> userData = new HashMap<String, String>();
+    userData.put(KEY_COMPLETE, Boolean.toString(true));
+    synchronized (qrelWriter) {
+      qrelWriter.flush();
+      userData.put(KEY_QREL_BYTES, Long.toString(qrelFile.length()));
+    }
+    indexWriter.setLiveCommitData(userData.entrySet());
+  }
+
+  /**
+   * Reads the user data of the last commit.
+   *
+   * @param indexDir an index directory.
+   * @return the user data of the last commit.
+   * @throws IOException
+   */
+  public static Map<String, String> readLastCommitData(Directory indexDir) throws IOException {
+    return SegmentInfos.readLatestCommit(indexDir).getUserData();
+  }
+
+  /**
+   * Truncates the QREL file to the length saved in the last commit, so that
+   * entries written after the last commit are not duplicated. A file that
+   * is not longer than the saved length is left intact.
+   *
+   * @param qrelFile   a QREL file.
+   * @param commitData the user data of the last commit.
+   * @throws IOException
+   */
+  public static void truncateQrelFile(File qrelFile, Map<String, String> commitData) throws IOException {
+    String len = commitData.get(KEY_QREL_BYTES);
+    if (len == null) {
+      throw new IOException("The last commit doesn't have the length of the QREL file");
+    }
+    long savedLen = Long.parseLong(len);
+    if (qrelFile.length() <= savedLen) return;
+    System.out.println(String.format("Truncating %s from %d to %d bytes",
+                                     qrelFile, qrelFile.length(), savedLen));
+    RandomAccessFile f = new RandomAccessFile(qrelFile, "rw");
+    try {
+      f.setLength(savedLen);
+    } finally {
+      f.close();
+    }
+  }
+
+  private final IndexWriter           mIndexWriter;
+  private final CheckpointableSource  mSource;
+  private final BufferedWriter        mQrelWriter;
+  private final File                  mQrelFile;
+  private final int                   mCommitInterval;
+  private final int                   mStartDocQty;
+}
@@ -0,0 +1,122 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package apps;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import utils.UtilConst;
+
+/**
+ * <p>Finds content hashes of documents in an existing index by document ID.
+ * The lookup uses a snapshot of the index taken when the object is created,
+ * i.e., it doesn't see documents added afterwards.</p>
+ *
+ * <p>This class is not thread-safe.</p>
+ *
+ * @author Leonid Boytsov
+ *
+ */
+public class IndexedDocLookup implements Closeable {
+  /** A hash returned for indexed documents that do not have a content hash. */
+  public static final byte[] NO_HASH = new byte[0];
+
+  /**
+   * Constructor.
+   *
+   * @param indexWriter an index writer (possibly of an empty index).
+   * @throws IOException
+   */
+  public IndexedDocLookup(IndexWriter indexWriter) throws IOException {
+    mReader = DirectoryReader.open(indexWriter);
+    List<LeafReaderContext> leaves = mReader.leaves();
+    mLeafQty = leaves.size();
+    mLeaves = leaves.toArray(new LeafReaderContext[mLeafQty]);
+    mTermsEnums = new TermsEnum[mLeafQty];
+    mHashValues = new BinaryDocValues[mLeafQty];
+  }
+
+  /**
+   * @return the number of (live) documents in the snapshot.
+   */
+  public int getDocQty() {
+    return mReader.numDocs();
+  }
+
+  /**
+   * Finds a content hash of the document.
+   *
+   * @param docId a document ID.
+   * @return null if there is no such document, {@link #NO_HASH} if
+   *         the document was indexed without a hash, and the hash otherwise.
+   * @throws IOException
+   */
+  public byte[] getHash(String docId) throws IOException {
+    BytesRef term = new BytesRef(docId);
+
+    for (int i = 0; i < mLeafQty; ++i) {
+      LeafReader reader = mLeaves[i].reader();
+      if (mTermsEnums[i] == null) {
+        Terms terms = reader.terms(UtilConst.FIELD_ID);
+        if (terms == null) continue;
+        mTermsEnums[i] = terms.iterator();
+      }
+      if (!mTermsEnums[i].seekExact(term)) continue;
+
+      Bits liveDocs = reader.getLiveDocs();
+      mPostings = mTermsEnums[i].postings(mPostings, PostingsEnum.NONE);
+      int luceneDocId;
+      while ((luceneDocId = mPostings.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+        if (liveDocs == null || liveDocs.get(luceneDocId)) {
+          return readHash(i, luceneDocId);
+        }
+      }
+    }
+
+    return null;
+  }
+
+  private byte[] readHash(int leafId, int luceneDocId) throws IOException {
+    BinaryDocValues values = mHashValues[leafId];
+    // Doc values iterators can only move forward
+    if (values == null || values.docID() >= luceneDocId) {
+      values = DocValues.getBinary(mLeaves[leafId].reader(), UtilConst.FIELD_HASH);
+      mHashValues[leafId] = values;
+    }
+    if (!values.advanceExact(luceneDocId)) return NO_HASH;
+    BytesRef hash = values.binaryValue();
+    return Arrays.copyOfRange(hash.bytes, hash.offset, hash.offset + hash.length);
+  }
+
+  @Override
+  public void close() throws IOException {
+    mReader.close();
+  }
+
+  private final DirectoryReader       mReader;
+  private final int                   mLeafQty;
+  private final LeafReaderContext[]   mLeaves;
+  private final TermsEnum[]           mTermsEnums;
+  private final BinaryDocValues[]     mHashValues;
+  private PostingsEnum                mPostings = null;
+}
@@ -0,0 +1,439 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package apps;
+
+import java.io.BufferedWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.util.BytesRef;
+
+import com.google.common.base.Joiner;
+
+import source.*;
+import utils.*;
+
+/**
+ * <p>An indexing pipeline: a reader stage pulls entries from a document source
+ * and passes them (via a bounded queue) to a number of workers. Each worker
+ * cleans up the text and adds documents to a shared {@link IndexWriter}.
+ * All workers share the same (thread-safe) {@link TextCleaner}.</p>
+ *
+ * <p>QREL entries are written by the reader stage, so that they
+ * follow the order of documents in the input. If there is only one worker,
+ * everything runs in the calling thread.</p>
+ *
+ * <p>If a checkpointer is specified, the reader stage periodically waits till
+ * workers index all the documents read so far and commits the index.</p>
+ *
+ * <p>Each document is indexed together with an MD5 hash of its text.
+ * In the append mode (see {@link #setExistingDocs(IndexedDocLookup)}),
+ * documents replace previously indexed documents with the same ID,
+ * unchanged documents are skipped, and QREL entries are saved only for
+ * documents that were not indexed before. If an ID occurs in the input
+ * more than once, only its first occurrence is processed.</p>
+ *
+ * @author Leonid Boytsov
+ *
+ */
+public class IndexingPipeline {
+  /** The capacity of the reader-to-worker queue (per worker). */
+  public static final int QUEUE_SIZE_PER_WORKER = 128;
+  /** How often (in the number of documents) we report progress. */
+  public static final int REPORT_INTERVAL = 1000;
+
+  /**
+   * Constructor.
+   *
+   * @param indexWriter   a (shared) index writer.
+   * @param qrelWriter    an optional QREL writer (can be null).
+   * @param workerQty     a number of cleaning/indexing workers.
+   */
+  public IndexingPipeline(IndexWriter indexWriter,
+                          BufferedWriter qrelWriter,
+                          int workerQty) {
+    this(indexWriter, qrelWriter, workerQty, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param indexWriter   a (shared) index writer.
+   * @param qrelWriter    an optional QREL writer (can be null).
+   * @param workerQty     a number of cleaning/indexing workers.
+   * @param checkpointer  an optional checkpointer (can be null).
+   */
+  public IndexingPipeline(IndexWriter indexWriter,
+                          BufferedWriter qrelWriter,
+                          int workerQty,
+                          IndexCheckpointer checkpointer) {
+    mCheckpointer = checkpointer;
+    mIndexWriter = indexWriter;
+    mQrelWriter = qrelWriter;
+    mWorkerQty = Math.max(1, workerQty);
+    mQueue = new ArrayBlockingQueue<IndexEntry>(mWorkerQty * QUEUE_SIZE_PER_WORKER);
+    mTextCleaner = new TextCleaner(null);
+  }
+
+  /**
+   * Switches the pipeline to the append mode: documents are added using
+   * {@link IndexWriter#updateDocument(Term, Iterable)}, so that they
+   * replace documents with the same ID. Documents whose content hash
+   * is the same as the hash of the indexed document are skipped.
+   *
+   * @param existingDocs  a lookup of documents in the existing index.
+   */
+  public void setExistingDocs(IndexedDocLookup existingDocs) {
+    mExistingDocs = existingDocs;
+    mSeenIds = new HashSet<String>();
+  }
+
+  /**
+   * Makes the pipeline record per-stage statistics: reading, text cleanup,
+   * and adding documents to the index.
+   *
+   * @param stats an indexing statistics object.
+   */
+  public void setStats(IndexingStats stats) {
+    mReadStats = stats.getStage(IndexingStats.STAGE_READ);
+    mCleanStats = stats.getStage(IndexingStats.STAGE_CLEAN);
+    mAddStats = stats.getStage(IndexingStats.STAGE_ADD);
+    mHtmlParseStats = stats.getStage(IndexingStats.STAGE_HTML);
+  }
+
+  /**
+   * Reads all documents from the source and indexes them.
+   *
+   * @param docSource a document source.
+   * @return the number of indexed documents.
+   * @throws Exception
+   */
+  public int run(DocumentSource docSource) throws Exception {
+    mStartTime = System.currentTimeMillis();
+
+    MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
+    if (mHtmlParseStats != null && docSource instanceof ContentSourceSource) {
+      ((ContentSourceSource) docSource).setHtmlParseStats(mHtmlParseStats);
+    }
+    int readQty = 0;
+
+    if (mWorkerQty == 1) {
+      DocumentEntry inpDoc = null;
+      while ((inpDoc = readNext(docSource)) != null) {
+        IndexEntry e = prepare(inpDoc, digest);
+        if (e != null) indexDoc(e);
+        if (isCheckpointDue(++readQty)) {
+          mCheckpointer.checkpoint(readQty, false);
+        }
+      }
+    } else {
+      ArrayList<Thread> workers = new ArrayList<Thread>();
+      for (int i = 0; i < mWorkerQty; ++i) {
+        Thread t = new Thread(new Worker(), "indexer-worker-" + i);
+        workers.add(t);
+        t.start();
+      }
+      try {
+        DocumentEntry inpDoc = null;
+        while ((inpDoc = readNext(docSource)) != null) {
+          IndexEntry e = prepare(inpDoc, digest);
+          if (e != null && !enqueue(e)) break;
+          if (isCheckpointDue(++readQty)) {
+            if (!waitForWorkers(readQty - mSkippedQty - mDuplicateQty)) break;
+            mCheckpointer.checkpoint(readQty, false);
+          }
+        }
+      } finally {
+        for (int i = 0; i < mWorkerQty; ++i) {
+          if (!enqueue(END_OF_DATA)) break;
+        }
+        for (Thread t : workers) {
+          t.join();
+        }
+      }
+      if (mFailure != null) {
+        throw new Exception("Indexing worker failed: " + mFailure, mFailure);
+      }
+    }
+
+    reportRate();
+
+    return mDocQty.get();
+  }
+
+  /**
+   * @return the number of documents indexed so far.
+   */
+  public int getDocQty() {
+    return mDocQty.get();
+  }
+
+  /**
+   * @return the number of unchanged documents skipped in the append mode.
+   */
+  public int getSkippedQty() {
+    return mSkippedQty;
+  }
+
+  /**
+   * @return the number of documents skipped in the append mode, because their IDs 
+   *         occurred earlier in the input.
+   */
+  public int getDuplicateQty() {
+    return mDuplicateQty;
+  }
+
+  /**
+   * @return the number of documents that replaced previously indexed documents.
+   */
+  public int getReplacedQty() {
+    return mReplacedQty;
+  }
+
+  /**
+   * Creates a Lucene document from a cleaned-up document entry.
+   *
+   * @param textCleaner   a text cleaner.
+   * @param inpDoc        an input document entry.
+   * @return a Lucene document.
+   */
+  public static Document createLuceneDoc(TextCleaner textCleaner, DocumentEntry inpDoc) {
+    return createLuceneDoc(textCleaner, inpDoc, null);
+  }
+
+  /**
+   * Creates a Lucene document from a cleaned-up document entry.
+   *
+   * @param textCleaner   a text cleaner.
+   * @param inpDoc        an input document entry.
+   * @param hash          an optional content hash (can be null).
+   * @return a Lucene document.
+   */
+  public static Document createLuceneDoc(TextCleaner textCleaner, DocumentEntry inpDoc, byte[] hash) {
+    Document  luceneDoc = new Document();
+    ArrayList<String> cleanedToks = textCleaner.cleanUp(inpDoc.mDocText);
+    String cleanText = mSpaceJoin.join(cleanedToks);
+
+    luceneDoc.add(new StringField(UtilConst.FIELD_ID, inpDoc.mDocId, Field.Store.YES));
+    // Doc values let us retrieve IDs without loading stored documents
+    luceneDoc.add(new BinaryDocValuesField(UtilConst.FIELD_ID, new BytesRef(inpDoc.mDocId)));
+    luceneDoc.add(new TextField(UtilConst.FIELD_TEXT, cleanText, Field.Store.YES));
+    if (hash != null) {
+      luceneDoc.add(new BinaryDocValuesField(UtilConst.FIELD_HASH, new BytesRef(hash)));
+    }
+
+    return luceneDoc;
+  }
+
+  /**
+   * Computes the content hash and, in the append mode, checks if the document
+   * needs to be indexed. This is done in the reader stage, so that QREL entries
+   * follow the input order.
+   *
+   * @return an entry to index or null if the document is unchanged.
+   */
+  private IndexEntry prepare(DocumentEntry inpDoc, MessageDigest digest) throws Exception {
+    byte[] hash = digest.digest(inpDoc.mDocText.getBytes(StandardCharsets.UTF_8));
+
+    if (mExistingDocs != null) {
+      // The index snapshot doesn't contain documents added in this run
+      if (!mSeenIds.add(inpDoc.mDocId)) {
+        ++mDuplicateQty;
+        return null;
+      }
+      byte[] oldHash = mExistingDocs.getHash(inpDoc.mDocId);
+      if (oldHash != null) {
+        if (Arrays.equals(hash, oldHash)) {
+          ++mSkippedQty;
+          return null;
+        }
+        // The document was indexed before and so was its QREL entry
+        ++mReplacedQty;
+        return new IndexEntry(inpDoc, hash);
+      }
+    }
+    saveQrel(inpDoc);
+    return new IndexEntry(inpDoc, hash);
+  }
+
+  private DocumentEntry readNext(DocumentSource docSource) throws Exception {
+    if (mReadStats == null) return docSource.next();
+    long start = System.nanoTime();
+    DocumentEntry inpDoc = docSource.next();
+    if (inpDoc != null) {
+      mReadStats.record(System.nanoTime() - start, 1, inpDoc.mDocText.length());
+    }
+    return inpDoc;
+  }
+
+  private void indexDoc(IndexEntry e) throws Exception {
+    long start = System.nanoTime();
+    Document luceneDoc = createLuceneDoc(mTextCleaner, e.mDoc, e.mHash);
+    long cleaned = System.nanoTime();
+    if (mExistingDocs != null) {
+      // Replaces documents with the same ID
+      mIndexWriter.updateDocument(new Term(UtilConst.FIELD_ID, e.mDoc.mDocId), luceneDoc);
+    } else {
+      mIndexWriter.addDocument(luceneDoc);
+    }
+    if (mCleanStats != null) {
+      long textLen = e.mDoc.mDocText.length();
+      mCleanStats.record(cleaned - start, 1, textLen);
+      mAddStats.record(System.nanoTime() - cleaned, 1, textLen);
+    }
+
+    int docNum = mDocQty.incrementAndGet();
+    if (mWaitingForWorkers) {
+      synchronized (mDrainLock) {
+        mDrainLock.notifyAll();
+      }
+    }
+    if (docNum % REPORT_INTERVAL == 0)
+      System.out.println(String.format("Indexed %d documents", docNum));
+  }
+
+  private void saveQrel(DocumentEntry inpDoc) throws Exception {
+    if (inpDoc.mIsRel != null && mQrelWriter != null) {
+      synchronized (mQrelWriter) {
+        LuceneIndexer.saveQrelOneEntry(mQrelWriter,
+                                       inpDoc.mQueryId, inpDoc.mDocId,
+                                       inpDoc.mIsRel ? LuceneIndexer.MAX_GRADE:0);
+      }
+    }
+  }
+
+  /**
+   * Puts an entry to the queue unless some of the workers failed.
+   *
+   * @return false if a worker has failed.
+   */
+  private boolean enqueue(IndexEntry e) throws InterruptedException {
+    while (mFailure == null) {
+      if (mQueue.offer(e, POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS)) return true;
+    }
+    return false;
+  }
+
+  private boolean isCheckpointDue(int readQty) {
+    return mCheckpointer != null && readQty % mCheckpointer.getCommitInterval() == 0;
+  }
+
+  /**
+   * Waits till workers index a given number of documents.
+   *
+   * @return false if a worker has failed.
+   */
+  private boolean waitForWorkers(int docQty) throws InterruptedException {
+    mWaitingForWorkers = true;
+    try {
+      synchronized (mDrainLock) {
+        while (mFailure == null && mDocQty.get() < docQty) {
+          mDrainLock.wait(POLL_TIMEOUT_MS);
+        }
+      }
+    } finally {
+      mWaitingForWorkers = false;
+    }
+    return mFailure == null;
+  }
+
+  private void reportRate() {
+    long   elapsedMS = Math.max(1, System.currentTimeMillis() - mStartTime);
+    int    docQty = mDocQty.get();
+    System.out.println(String.format("Indexed %d documents in %.1f sec using %d worker(s), %.1f docs/sec",
+                                      docQty, elapsedMS / 1000.0, mWorkerQty,
+                                      docQty * 1000.0 / elapsedMS));
+    if (mExistingDocs != null) {
+      System.out.println(String.format("Append mode: %d new, %d replaced, %d unchanged (skipped), %d duplicate (skipped) documents",
+                                       docQty - mReplacedQty, mReplacedQty, mSkippedQty, mDuplicateQty));
+    }
+  }
+
+  /**
+   * A document passed from the reader stage to workers.
+   */
+  private static class IndexEntry {
+    IndexEntry(DocumentEntry doc, byte[] hash) {
+      mDoc = doc;
+      mHash = hash;
+    }
+
+    final DocumentEntry mDoc;
+    final byte[]        mHash;
+  }
+
+  private class Worker implements Runnable {
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          IndexEntry e = mQueue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+          if (e == null) {
+            // Stop if another worker has failed, nobody will send us END_OF_DATA
+            if (mFailure != null) break;
+            continue;
+          }
+          if (e == END_OF_DATA) break;
+          indexDoc(e);
+        }
+      } catch (Throwable e) {
+        System.err.println("Indexing worker " + Thread.currentThread().getName() +
+                           " failed: " + e);
+        e.printStackTrace();
+        mFailure = e;
+      }
+    }
+  }
+
+  private static final long POLL_TIMEOUT_MS = 100;
+  /** A special entry that tells a worker to finish. */
+  private static final IndexEntry END_OF_DATA = new IndexEntry(null, null);
+  private static final String HASH_ALGORITHM = "MD5";
+  private static final Joiner mSpaceJoin = Joiner.on(' ');
+
+  private final IndexCheckpointer             mCheckpointer;
+  private final Object                        mDrainLock = new Object();
+  private volatile boolean                    mWaitingForWorkers = false;
+  private final IndexWriter                   mIndexWriter;
+  private final BufferedWriter                mQrelWriter;
+  private final int                           mWorkerQty;
+  private final BlockingQueue<IndexEntry>     mQueue;
+  private final TextCleaner                   mTextCleaner;
+  private final AtomicInteger                 mDocQty = new AtomicInteger();
+  private volatile Throwable                  mFailure = null;
+  private IndexedDocLookup                    mExistingDocs = null;
+  // IDs read in the append mode, accessed only by the reader stage
+  private HashSet<String>                     mSeenIds = null;
+  private StageStats                          mReadStats = null;
+  private StageStats                          mCleanStats = null;
+  private StageStats                          mAddStats = null;
+  private StageStats                          mHtmlParseStats = null;
+  // These are updated only by the reader stage
+  private int                                 mSkippedQty = 0;
+  private int                                 mDuplicateQty = 0;
+  private int                                 mReplacedQty = 0;
+  private long                                mStartTime;
+}
@@ -0,0 +1,520 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package apps;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.AnalyzerWrapper;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.FilterMergePolicy;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.MergePolicy.OneMerge;
+import org.apache.lucene.index.MergeScheduler;
+import org.apache.lucene.index.MergeTrigger;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+
+import utils.LatencyHistogram;
+import utils.StageStats;
+
+/**
+ * <p>Per-stage indexing statistics: the number of documents, the volume of text,
+ * the time spent in each stage, and latency histograms. The following stages
+ * are tracked:</p>
+ * <ul>
+ * <li>{@link #STAGE_READ}: reading a document from the source, which includes
+ *     decompression and parsing (including HTML parsing);
+ * <li>{@link #STAGE_HTML}: HTML parsing (ClueWeb and GOV2 only);
+ * <li>{@link #STAGE_CLEAN}: cleaning up text with {@link source.TextCleaner};
+ * <li>{@link #STAGE_ANALYSIS}: Lucene analysis (tokenization and stemming);
+ * <li>{@link #STAGE_ADD}: adding a document to the index, which includes Lucene analysis;
+ * <li>{@link #STAGE_FLUSH}: flushing in-memory segments (carried out by indexing threads);
+ * <li>{@link #STAGE_MERGE}: merging segments (carried out by background threads).
+ * </ul>
+ *
+ * <p>Volumes of text processing stages are measured in characters of text,
+ * while flush and merge volumes are in bytes of segment files (see {@link #getUnit(String)}).
+ * Flushes are recorded only if the directory of the index writer and its merge policy are
+ * wrapped using {@link #wrapDirectory(Directory)} and {@link #wrapMergePolicy(MergePolicy)}.
+ * Stage times are summed over all threads: If several threads work in parallel,
+ * the time spent in a stage can exceed the elapsed time.</p>
+ *
+ * @author Leonid Boytsov
+ *
+ */
+public class IndexingStats {
+  public static final String STAGE_READ     = "read";
+  public static final String STAGE_HTML     = "html_parse";
+  public static final String STAGE_CLEAN    = "text_cleanup";
+  public static final String STAGE_ANALYSIS = "analysis";
+  public static final String STAGE_ADD      = "add_document";
+  public static final String STAGE_FLUSH    = "flush";
+  public static final String STAGE_MERGE    = "merge";
+
+  private static final String[] STAGES = {
+    STAGE_READ, STAGE_HTML, STAGE_CLEAN, STAGE_ANALYSIS, STAGE_ADD, STAGE_FLUSH, STAGE_MERGE
+  };
+
+  /** Stages whose volume is measured in bytes rather than in characters. */
+  private static final Set<String> BYTE_STAGES = new HashSet<String>(Arrays.asList(STAGE_FLUSH, STAGE_MERGE));
+
+  public IndexingStats() {
+    mStartTime = System.nanoTime();
+    for (String name : STAGES) {
+      mStages.add(new StageStats(name));
+    }
+  }
+
+  /**
+   * @param name a stage name.
+   * @return statistics of the stage.
+   */
+  public StageStats getStage(String name) {
+    for (StageStats s : mStages) {
+      if (s.getName().equals(name)) return s;
+    }
+    throw new IllegalArgumentException("Unknown indexing stage: " + name);
+  }
+
+  /**
+   * @param name a stage name.
+   * @return the unit of the stage volume: "bytes" or "chars".
+   */
+  public static String getUnit(String name) {
+    return BYTE_STAGES.contains(name) ? "bytes" : "chars";
+  }
+
+  /**
+   * Wraps an analyzer so that it records the analysis time of each field value.
+   *
+   * @param analyzer an analyzer to wrap.
+   * @return a wrapped analyzer.
+   */
+  public Analyzer wrapAnalyzer(Analyzer analyzer) {
+    return new TimedAnalyzer(analyzer, getStage(STAGE_ANALYSIS));
+  }
+
+  /**
+   * Wraps the directory of an index writer so that durations of flushes can be measured.
+   * The configuration of the writer should use {@link #wrapMergePolicy(MergePolicy)}.
+   *
+   * @param dir a directory to wrap.
+   * @return a wrapped directory.
+   */
+  public Directory wrapDirectory(Directory dir) {
+    return new FlushTimingDirectory(dir);
+  }
+
+  /**
+   * Wraps a merge policy so that it records flushed segments: their durations,
+   * the number of documents, and sizes. Only flushes to directories wrapped using
+   * {@link #wrapDirectory(Directory)} are recorded.
+   *
+   * @param mergePolicy a merge policy to wrap.
+   * @return a wrapped merge policy.
+   */
+  public MergePolicy wrapMergePolicy(MergePolicy mergePolicy) {
+    return new FlushRecordingMergePolicy(mergePolicy, getStage(STAGE_FLUSH));
+  }
+
+  /**
+   * @return a (concurrent) merge scheduler that records durations of merges.
+   */
+  public MergeScheduler createMergeScheduler() {
+    final StageStats stats = getStage(STAGE_MERGE);
+    return new ConcurrentMergeScheduler() {
+      @Override
+      protected void doMerge(IndexWriter writer, OneMerge merge) throws IOException {
+        long start = System.nanoTime();
+        super.doMerge(writer, merge);
+        stats.record(System.nanoTime() - start, merge.totalMaxDoc, merge.totalBytesSize());
+      }
+    };
+  }
+
+  /**
+   * Starts a thread that periodically prints statistics.
+   *
+   * @param intervalSec a reporting interval in seconds.
+   */
+  public synchronized void startReporting(final int intervalSec) {
+    if (mReporter != null) return;
+    mReporter = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        long[] prevItems = new long[mStages.size()];
+        long[] prevBytes = new long[mStages.size()];
+        try {
+          while (true) {
+            Thread.sleep(intervalSec * 1000L);
+            printProgress(intervalSec, prevItems, prevBytes);
+          }
+        } catch (InterruptedException e) {
+          // We are asked to stop
+        }
+      }
+    }, "indexing-stats");
+    mReporter.setDaemon(true);
+    mReporter.start();
+  }
+
+  /**
+   * Stops the reporting thread.
+   */
+  public synchronized void stopReporting() throws InterruptedException {
+    if (mReporter == null) return;
+    mReporter.interrupt();
+    mReporter.join();
+    mReporter = null;
+  }
+
+  /**
+   * Prints the final summary: one line per (non-empty) stage.
+   */
+  public void printSummary() {
+    double elapsed = getElapsedSec();
+    System.out.println(String.format("Indexing statistics, elapsed %.1f sec:", elapsed));
+    System.out.println(String.format("%-14s %10s %10s %6s %10s %10s %10s %10s %10s %10s %10s",
+                                     "stage", "items", "volume,M", "unit", "time,s", "items/s", "volume,M/s",
+                                     "p50,ms", "p90,ms", "p99,ms", "max,ms"));
+    for (StageStats s : mStages) {
+      if (s.getHistogram().getCount() == 0) continue;
+      LatencyHistogram h = s.getHistogram();
+      double sec = s.getNanos() / 1e9;
+      System.out.println(String.format("%-14s %10d %10.1f %6s %10.1f %10.1f %10.2f %10.3f %10.3f %10.3f %10.3f",
+                                       s.getName(), s.getItemQty(), toMega(s.getBytes()), getUnit(s.getName()), sec,
+                                       rate(s.getItemQty(), sec), rate(toMega(s.getBytes()), sec),
+                                       toMs(h.getPercentile(50)), toMs(h.getPercentile(90)),
+                                       toMs(h.getPercentile(99)), toMs(h.getMax())));
+    }
+    System.out.println("The time of a stage is summed over all threads, " +
+                       "items/s and volume,M/s are per thread. The add_document time includes analysis.");
+  }
+
+  /**
+   * Saves statistics to a file: in JSON format if the file name ends with .json,
+   * and in CSV format otherwise.
+   *
+   * @param fileName an output file name.
+   * @throws IOException
+   */
+  public void save(String fileName) throws IOException {
+    boolean json = fileName.toLowerCase().endsWith(".json");
+    BufferedWriter out = new BufferedWriter(new FileWriter(fileName));
+    try {
+      if (json) {
+        out.write(String.format(Locale.US, "{\"elapsed_sec\": %.3f, \"stages\": [", getElapsedSec()));
+      } else {
+        out.write("stage,items,volume,unit,time_sec,mean_ms,p50_ms,p90_ms,p99_ms,max_ms" + NL);
+      }
+      boolean first = true;
+      for (StageStats s : mStages) {
+        LatencyHistogram h = s.getHistogram();
+        long qty = h.getCount();
+        double meanMs = qty > 0 ? s.getNanos() / 1e6 / qty : 0;
+        if (json) {
+          out.write(String.format(Locale.US, "%s%s  {\"stage\": \"%s\", \"items\": %d, \"volume\": %d, \"unit\": \"%s\", \"time_sec\": %.3f, " +
+                                  "\"mean_ms\": %.4f, \"p50_ms\": %.4f, \"p90_ms\": %.4f, \"p99_ms\": %.4f, \"max_ms\": %.4f}",
+                                  first ? "" : ",", NL,
+                                  s.getName(), s.getItemQty(), s.getBytes(), getUnit(s.getName()), s.getNanos() / 1e9, meanMs,
+                                  toMs(h.getPercentile(50)), toMs(h.getPercentile(90)),
+                                  toMs(h.getPercentile(99)), toMs(h.getMax())));
+        } else {
+          out.write(String.format(Locale.US, "%s,%d,%d,%s,%.3f,%.4f,%.4f,%.4f,%.4f,%.4f%s",
+                                  s.getName(), s.getItemQty(), s.getBytes(), getUnit(s.getName()), s.getNanos() / 1e9, meanMs,
+                                  toMs(h.getPercentile(50)), toMs(h.getPercentile(90)),
+                                  toMs(h.getPercentile(99)), toMs(h.getMax()), NL));
+        }
+        first = false;
+      }
+      if (json) out.write(NL + "]}" + NL);
+    } finally {
+      out.close();
+    }
+  }
+
+  private void printProgress(int intervalSec, long[] prevItems, long[] prevBytes) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("Progress after %.0f sec:", getElapsedSec()));
+    for (int i = 0; i < mStages.size(); ++i) {
+      StageStats s = mStages.get(i);
+      long items = s.getItemQty(), bytes = s.getBytes();
+      if (items == 0) continue;
+      sb.append(String.format(" %s %.1f/s %.2f M%s/s p99 %.2f ms;",
+                              s.getName(),
+                              rate(items - prevItems[i], intervalSec),
+                              rate(toMega(bytes - prevBytes[i]), intervalSec), getUnit(s.getName()),
+                              toMs(s.getHistogram().getPercentile(99))));
+      prevItems[i] = items;
+      prevBytes[i] = bytes;
+    }
+    System.out.println(sb.toString());
+  }
+
+  private double getElapsedSec() {
+    return (System.nanoTime() - mStartTime) / 1e9;
+  }
+
+  private static double rate(double qty, double sec) {
+    return sec > 0 ? qty / sec : 0;
+  }
+
+  private static double toMega(long volume) {
+    return volume / (1024.0 * 1024.0);
+  }
+
+  private static double toMs(long nanos) {
+    return nanos / 1e6;
+  }
+
+  /**
+   * An analyzer wrapper that adds a timing filter at the end of each analysis chain.
+   */
+  private static class TimedAnalyzer extends AnalyzerWrapper {
+    TimedAnalyzer(Analyzer analyzer, StageStats stats) {
+      super(analyzer.getReuseStrategy());
+      mAnalyzer = analyzer;
+      mStats = stats;
+    }
+
+    @Override
+    protected Analyzer getWrappedAnalyzer(String fieldName) {
+      return mAnalyzer;
+    }
+
+    @Override
+    protected TokenStreamComponents wrapComponents(String fieldName, TokenStreamComponents components) {
+      return new TokenStreamComponents(components.getSource(),
+                                       new TimingFilter(components.getTokenStream(), mStats));
+    }
+
+    private final Analyzer    mAnalyzer;
+    private final StageStats  mStats;
+  }
+
+  /**
+   * Measures the time spent in the underlying token stream:
+   * the time is recorded when the stream ends.
+   */
+  private static class TimingFilter extends TokenFilter {
+    TimingFilter(TokenStream input, StageStats stats) {
+      super(input);
+      mStats = stats;
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+      long start = System.nanoTime();
+      boolean res = input.incrementToken();
+      mNanos += System.nanoTime() - start;
+      return res;
+    }
+
+    @Override
+    public void end() throws IOException {
+      long start = System.nanoTime();
+      super.end();
+      mNanos += System.nanoTime() - start;
+      mStats.record(mNanos, 1, mOffsetAttr.endOffset());
+    }
+
+    @Override
+    public void reset() throws IOException {
+      super.reset();
+      mNanos = 0;
+    }
+
+    private final OffsetAttribute mOffsetAttr = addAttribute(OffsetAttribute.class);
+    private final StageStats      mStats;
+    private long                  mNanos = 0;
+  }
+
+  /**
+   * The start and the end of a segment flush.
+   */
+  private static class FlushTiming {
+    synchronized void fileCreated(long nanos) {
+      if (mStart == 0) mStart = nanos;
+    }
+
+    synchronized void fileClosed(long nanos) {
+      mEnd = Math.max(mEnd, nanos);
+    }
+
+    synchronized void fileCopied() {
+      mCopied = true;
+    }
+
+    synchronized long getNanos() {
+      return Math.max(0, mEnd - mStart);
+    }
+
+    /**
+     * @return true if files of the segment were copied, i.e., the segment
+     *         was added from another index rather than flushed.
+     */
+    synchronized boolean isCopied() {
+      return mCopied;
+    }
+
+    private long    mStart = 0;
+    private long    mEnd = 0;
+    private boolean mCopied = false;
+  }
+
+  /**
+   * A directory wrapper that times flushes: a flush of a segment starts when the first
+   * file of the segment is created in the flush context and ends when the last such file
+   * is closed (files written while documents are added, e.g., stored fields, are not included).
+   */
+  private static class FlushTimingDirectory extends FilterDirectory {
+    FlushTimingDirectory(Directory dir) {
+      super(dir);
+    }
+
+    @Override
+    public IndexOutput createOutput(String name, IOContext context) throws IOException {
+      IndexOutput out = super.createOutput(name, context);
+      if (context.context != IOContext.Context.FLUSH) return out;
+
+      FlushTiming timing = getTiming(name);
+      timing.fileCreated(System.nanoTime());
+      return new TimedIndexOutput(out, timing);
+    }
+
+    /**
+     * {@link IndexWriter#addIndexes(Directory...)} copies segment files in the flush context.
+     */
+    @Override
+    public void copyFrom(Directory from, String src, String dest, IOContext context) throws IOException {
+      super.copyFrom(from, src, dest, context);
+      if (context.context == IOContext.Context.FLUSH) getTiming(dest).fileCopied();
+    }
+
+    /**
+     * Removes the timing of a flushed segment.
+     *
+     * @param segName a segment name.
+     * @return the timing or null if the segment wasn't flushed through this directory.
+     */
+    FlushTiming takeTiming(String segName) {
+      return mTimings.remove(segName);
+    }
+
+    private FlushTiming getTiming(String fileName) {
+      String      segName = IndexFileNames.parseSegmentName(fileName);
+      FlushTiming timing = mTimings.get(segName);
+      if (timing == null) {
+        FlushTiming prev = mTimings.putIfAbsent(segName, timing = new FlushTiming());
+        if (prev != null) timing = prev;
+      }
+      return timing;
+    }
+
+    private final ConcurrentHashMap<String, FlushTiming> mTimings = new ConcurrentHashMap<String, FlushTiming>();
+  }
+
+  /**
+   * An output that notifies the flush timing when it is closed.
+   */
+  private static class TimedIndexOutput extends IndexOutput {
+    TimedIndexOutput(IndexOutput out, FlushTiming timing) {
+      super(out.toString(), out.getName());
+      mOut = out;
+      mTiming = timing;
+    }
+
+    @Override
+    public void close() throws IOException {
+      mOut.close();
+      mTiming.fileClosed(System.nanoTime());
+    }
+
+    @Override
+    public long getFilePointer() {
+      return mOut.getFilePointer();
+    }
+
+    @Override
+    public long getChecksum() throws IOException {
+      return mOut.getChecksum();
+    }
+
+    @Override
+    public void writeByte(byte b) throws IOException {
+      mOut.writeByte(b);
+    }
+
+    @Override
+    public void writeBytes(byte[] b, int offset, int length) throws IOException {
+      mOut.writeBytes(b, offset, length);
+    }
+
+    private final IndexOutput mOut;
+    private final FlushTiming mTiming;
+  }
+
+  /**
+   * A merge policy wrapper that records flushed segments: the index writer consults
+   * the merge policy after each flush, so new segments are found by comparing segment infos
+   * with the segments whose flushes were timed by {@link FlushTimingDirectory}.
+   * The number of documents and the size of a segment are taken from its segment info.
+   */
+  private static class FlushRecordingMergePolicy extends FilterMergePolicy {
+    FlushRecordingMergePolicy(MergePolicy in, StageStats stats) {
+      super(in);
+      mStats = stats;
+    }
+
+    @Override
+    public MergeSpecification findMerges(MergeTrigger mergeTrigger, SegmentInfos segmentInfos,
+                                         MergeContext mergeContext) throws IOException {
+      for (SegmentCommitInfo info : segmentInfos) {
+        // Segments refer to the (wrapped) directory of the index writer
+        if (!(info.info.dir instanceof FlushTimingDirectory)) continue;
+        FlushTiming timing = ((FlushTimingDirectory) info.info.dir).takeTiming(info.info.name);
+        if (timing != null && !timing.isCopied()) {
+          mStats.record(timing.getNanos(), info.info.maxDoc(), info.sizeInBytes());
+        }
+      }
+      return super.findMerges(mergeTrigger, segmentInfos, mergeContext);
+    }
+
+    private final StageStats mStats;
+  }
+
+  private static final String NL = System.getProperty("line.separator");
+
+  private final ArrayList<StageStats> mStages = new ArrayList<StageStats>();
+  private final long                  mStartTime;
+  private Thread                      mReporter = null;
+}
@@ -15,8 +15,8 @@
  */
 package apps;
 import org.apache.commons.cli.*;
+import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.en.EnglishAnalyzer;
-import org.apache.lucene.document.*;
 import org.apache.lucene.index.*;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
 import org.apache.lucene.search.similarities.*;
@@ -25,11 +25,12 @@ import org.apache.lucene.store.*;
 import com.google.common.base.Joiner;
 
 import java.nio.file.Paths;
-import java.util.ArrayList;
+import java.util.Map;
 import java.io.*;
 
 import utils.*;
 import source.*;
+import lucene.DirectoryFactory;
 
 
 // Partially based on https://lucene.apache.org/core/6_0_0/demo/src-html/org/apache/lucene/demo/IndexFiles.html
@@ -48,6 +49,7 @@ import source.*;
 
 public class LuceneIndexer {
   public static final int MAX_GRADE = 4; // to be compatible with gdeval.pl
+  public static final int DEFAULT_COMMIT_INTERVAL = 100000;
   static void Usage(String err, Options opt) {
     System.err.println("Error: " + err);
     HelpFormatter formatter = new HelpFormatter();
@@ -65,9 +67,30 @@ public class LuceneIndexer {
     options.addOption("bm25_b",     null, true, "BM25 parameter: b");
     options.addOption("bm25_k1",    null, true, "BM25 parameter: k1");
     options.addOption("bm25fixed", 	null, false, "use the fixed BM25 similarity");
+    options.addOption("threads",    null, true, "the number of text cleaning/indexing threads (default 1)");
+    options.addOption("shards",     null, true, "build this many sub-indexes concurrently and merge them at the end (default 1)");
+    options.addOption("reader_threads", null, true, 
+                      "read this many ClueWeb input files in parallel, each file is read by its own thread (default 0: sequential reading)");
+    options.addOption("reader_ordered", null, false, 
+                      "return documents read in parallel in the order of sequential reading (required for periodic commits)");
+    options.addOption("read_ahead", null, false, 
+                      "decompress the input file (Yahoo Answers) in a background thread");
+    options.addOption("bzip2_threads", null, true, 
+                      "decompress blocks of the bz2 input file using this number of threads " + 
+                      "(default: the number of processors; 0: sequential decompression)");
+    options.addOption("commit_interval", null, true, "commit the index and save the source position every this many documents");
+    options.addOption("resume",     null, false, "continue indexing from the last commit");
+    options.addOption("append",     null, false, 
+                      "add documents to an existing index: replace documents with the same ID, skip unchanged documents, and append to the QREL file");
+    options.addOption("stats_interval", null, true, "collect per-stage statistics and print them every this many seconds");
+    options.addOption("stats_file", null, true, "collect per-stage statistics and save them to this CSV (or JSON if the name ends with .json) file");
     
     Joiner   commaJoin  = Joiner.on(',');
-    Joiner   spaceJoin  = Joiner.on(' ');
+    
+    options.addOption("dir_type",   null, true, 
+                      "a type of the index directory: " + DirectoryFactory.DIR_TYPE_FS + "," + 
+                      DirectoryFactory.DIR_TYPE_MMAP + "," + DirectoryFactory.DIR_TYPE_NIO + 
+                      " (default " + DirectoryFactory.DIR_TYPE_FS + ")");
     
     options.addOption("source_type", null, true, 
                       "document source type: " + commaJoin.join(SourceFactory.getDocSourceList()));
@@ -80,8 +103,11 @@ public class LuceneIndexer {
     
     IndexWriter       indexWriter = null;
     BufferedWriter    qrelWriter = null;
-    
-    int docNum = 0;
+    IndexingPipeline  pipeline = null;
+    ShardedIndexer    shardedIndexer = null;
+    IndexedDocLookup  existingDocs = null;
+    IndexingStats     stats = null;
+    String            statsFileName = null;
     
     try {
       CommandLine cmd = parser.parse(options, args);
@@ -109,9 +135,6 @@ public class LuceneIndexer {
       if (sourceName == null)
         Usage("Specify document source type", options);
       
-      if (qrelFileName != null)
-        qrelWriter = new BufferedWriter(new FileWriter(qrelFileName));
-      
       File outputDir = new File(outputDirName);
       if (!outputDir.exists()) {
         if (!outputDir.mkdirs()) {
@@ -147,55 +170,240 @@ public class LuceneIndexer {
           Usage("Wrong format for 'bm25_b'", options);
         }
       }        
+      
+      int threadQty = 1;
+      
+      if (cmd.hasOption("threads")) {
+        try {
+          threadQty = Integer.parseInt(cmd.getOptionValue("threads"));
+        } catch (NumberFormatException e) {
+          Usage("Wrong format for 'threads'", options);
+        }
+        if (threadQty < 1) {
+          Usage("The number of threads should be >= 1", options);
+        }
+      }
+      
+      int shardQty = 1;
+      
+      if (cmd.hasOption("shards")) {
+        try {
+          shardQty = Integer.parseInt(cmd.getOptionValue("shards"));
+        } catch (NumberFormatException e) {
+          Usage("Wrong format for 'shards'", options);
+        }
+        if (shardQty < 1) {
+          Usage("The number of shards should be >= 1", options);
+        }
+      }
+      
+      int readerThreadQty = 0;
+      
+      if (cmd.hasOption("reader_threads")) {
+        try {
+          readerThreadQty = Integer.parseInt(cmd.getOptionValue("reader_threads"));
+        } catch (NumberFormatException e) {
+          Usage("Wrong format for 'reader_threads'", options);
+        }
+        if (readerThreadQty < 0) {
+          Usage("The number of reader threads should be >= 0", options);
+        }
+        if (readerThreadQty > 0 && !ContentSourceSource.supportsParallelRead(sourceName)) {
+          Usage("Parallel reading of input files is not supported for the source type " + sourceName, options);
+        }
+        if (readerThreadQty > 0 && shardQty > 1) {
+          Usage("Parallel reading of input files is not supported in the sharded mode (shards read files in parallel)", options);
+        }
+      }
+      
+      boolean readerOrdered = cmd.hasOption("reader_ordered");
+      
+      CompressUtils.setReadAhead(cmd.hasOption("read_ahead"));
+      
+      if (cmd.hasOption("bzip2_threads")) {
+        try {
+          CompressUtils.setBZip2ThreadQty(Integer.parseInt(cmd.getOptionValue("bzip2_threads")));
+        } catch (IllegalArgumentException e) {
+          Usage("Wrong value of 'bzip2_threads': " + e.getMessage(), options);
+        }
+      }
+      
+      boolean resume = cmd.hasOption("resume");
+      int     commitInterval = resume ? DEFAULT_COMMIT_INTERVAL : 0;
+      
+      if (cmd.hasOption("commit_interval")) {
+        try {
+          commitInterval = Integer.parseInt(cmd.getOptionValue("commit_interval"));
+        } catch (NumberFormatException e) {
+          Usage("Wrong format for 'commit_interval'", options);
+        }
+        if (commitInterval < 1) {
+          Usage("The commit interval should be >= 1", options);
+        }
+      }
+      
+      if (commitInterval > 0 && shardQty > 1) {
+        Usage("Periodic commits and resuming are not supported in the sharded mode", options);
+      }
+      
+      if (commitInterval > 0 && readerThreadQty > 0 && !readerOrdered) {
+        Usage("Periodic commits and resuming require 'reader_ordered' if input files are read in parallel", options);
+      }
+      
+      boolean append = cmd.hasOption("append");
+      
+      if (append) {
+        if (shardQty > 1) {
+          Usage("The append mode is not supported in the sharded mode", options);
+        }
+        if (commitInterval > 0) {
+          // A failed append can be simply re-run: the committed documents are skipped as unchanged
+          Usage("Periodic commits and resuming are not supported in the append mode", options);
+        }
+      }
 
-      EnglishAnalyzer   analyzer = new EnglishAnalyzer();
-      FSDirectory       indexDir    = FSDirectory.open(Paths.get(outputDirName));
-      IndexWriterConfig indexConf   = new IndexWriterConfig(analyzer);
+      int statsInterval = 0;
       
-      /*
-          OpenMode.CREATE creates a new index or overwrites an existing one.
-          https://lucene.apache.org/core/6_0_0/core/org/apache/lucene/index/IndexWriterConfig.OpenMode.html#CREATE
-      */
-      indexConf.setOpenMode(OpenMode.CREATE); 
-      indexConf.setRAMBufferSizeMB(ramBufferSizeMB);
+      if (cmd.hasOption("stats_interval")) {
+        try {
+          statsInterval = Integer.parseInt(cmd.getOptionValue("stats_interval"));
+        } catch (NumberFormatException e) {
+          Usage("Wrong format for 'stats_interval'", options);
+        }
+        if (statsInterval < 1) {
+          Usage("The statistics reporting interval should be >= 1", options);
+        }
+      }
+      statsFileName = cmd.getOptionValue("stats_file");
       
+      if (statsInterval > 0 || statsFileName != null) {
+        stats = new IndexingStats();
+        if (statsInterval > 0) stats.startReporting(statsInterval);
+      }
+
       System.out.println(String.format("BM25 parameters k1=%f b=%f ", bm25_k1, bm25_b));
       
+      Similarity        similarity = null;
+      
       if (useFixedBM25) {
         System.out.println(String.format("Using fixed BM25Simlarity, k1=%f b=%f", bm25_k1, bm25_b));
-        indexConf.setSimilarity(new BM25SimilarityFix(bm25_k1, bm25_b));
+        similarity = new BM25SimilarityFix(bm25_k1, bm25_b);
       } else {
         System.out.println(String.format("Using Lucene BM25Similarity, k1=%f b=%f", bm25_k1, bm25_b));
-        indexConf.setSimilarity(new BM25Similarity(bm25_k1, bm25_b));
+        similarity = new BM25Similarity(bm25_k1, bm25_b);
+      }
+      
+      String dirType = cmd.hasOption("dir_type") ? cmd.getOptionValue("dir_type") : DirectoryFactory.DIR_TYPE_FS;
+      
+      // A RAM-resident index would be lost
+      if (!DirectoryFactory.isType(dirType, DirectoryFactory.DIR_TYPE_FS) && 
+          !DirectoryFactory.isType(dirType, DirectoryFactory.DIR_TYPE_MMAP) && 
+          !DirectoryFactory.isType(dirType, DirectoryFactory.DIR_TYPE_NIO)) {
+        Usage("Wrong directory type: " + dirType, options);
       }
       
-      indexWriter = new IndexWriter(indexDir, indexConf);
+      Directory         indexDir    = DirectoryFactory.createDirectory(dirType, Paths.get(outputDirName), false);
+      System.out.println("Using the directory type: " + indexDir.getClass().getSimpleName());
       
-      DocumentSource inpDocSource = SourceFactory.createDocumentSource(sourceName, inputFileName);
-      DocumentEntry  inpDoc = null;
-      TextCleaner    textCleaner = new TextCleaner(null);
+      Map<String, String> commitData = null;
       
-      while ((inpDoc = inpDocSource.next()) != null) {
-        ++docNum;
-
-        Document  luceneDoc = new Document();
-        ArrayList<String> cleanedToks = textCleaner.cleanUp(inpDoc.mDocText);
-        String cleanText = spaceJoin.join(cleanedToks);
+      if (resume) {
+        if (!DirectoryReader.indexExists(indexDir)) {
+          Usage("There is no index to resume in " + outputDirName, options);
+        }
+        commitData = IndexCheckpointer.readLastCommitData(indexDir);
+        if (commitData.get(IndexCheckpointer.KEY_SOURCE_POS) == null) {
+          Usage("The last commit of the index in " + outputDirName + " has no saved source position", options);
+        }
+        if (Boolean.parseBoolean(commitData.get(IndexCheckpointer.KEY_COMPLETE))) {
+          System.out.println("The index in " + outputDirName + " is already complete, nothing to do");
+          return;
+        }
+        System.out.println(String.format("Resuming after %s documents, source position %s", 
+                                         commitData.get(IndexCheckpointer.KEY_DOC_QTY),
+                                         commitData.get(IndexCheckpointer.KEY_SOURCE_POS)));
+        if (qrelFileName != null) {
+          IndexCheckpointer.truncateQrelFile(new File(qrelFileName), commitData);
+        }
+      }
+      
+      if (append && DirectoryReader.indexExists(indexDir)) {
+        commitData = IndexCheckpointer.readLastCommitData(indexDir);
+        if (qrelFileName != null && commitData.get(IndexCheckpointer.KEY_QREL_BYTES) != null) {
+          // Drop QREL entries of documents that a failed run didn't commit
+          IndexCheckpointer.truncateQrelFile(new File(qrelFileName), commitData);
+        }
+      }
+      
+      if (qrelFileName != null)
+        qrelWriter = new BufferedWriter(new FileWriter(qrelFileName, resume || append /* append */));
+      
+      /*
+          OpenMode.CREATE creates a new index or overwrites an existing one.
+          https://lucene.apache.org/core/6_0_0/core/org/apache/lucene/index/IndexWriterConfig.OpenMode.html#CREATE
+      */
+      OpenMode openMode = OpenMode.CREATE;
+      if (resume) openMode = OpenMode.APPEND;
+      if (append) openMode = OpenMode.CREATE_OR_APPEND;
+      
+      IndexWriterConfig indexConf   = createIndexConfig(similarity, ramBufferSizeMB, openMode, stats);
+      if (commitInterval > 0) {
+        // Only checkpoints can commit, otherwise, the saved source position becomes invalid
+        indexConf.setCommitOnClose(false);
+      }
+      
+      // Flushes can be timed only by wrapping the directory
+      indexWriter = new IndexWriter(stats != null ? stats.wrapDirectory(indexDir) : indexDir, indexConf);
+      
+      if (append) {
+        existingDocs = new IndexedDocLookup(indexWriter);
+        System.out.println(String.format("Appending to the index with %d documents", existingDocs.getDocQty()));
+      }
+      
+      if (shardQty > 1) {
+        shardedIndexer = new ShardedIndexer(sourceName, inputFileName, outputDirName, qrelWriter,
+                                            shardQty, threadQty, similarity, ramBufferSizeMB);
+        if (stats != null) shardedIndexer.setStats(stats);
+        shardedIndexer.run(indexWriter);
+      } else {
+        DocumentSource    inpDocSource = SourceFactory.createDocumentSource(sourceName, inputFileName, 
+                                                                         readerThreadQty, readerOrdered);
+        if (readerThreadQty > 0) {
+          System.out.println(String.format("Reading input files using %d thread(s), %s order of documents", 
+                                           readerThreadQty, readerOrdered ? "the sequential" : "an arbitrary"));
+        }
+        IndexCheckpointer checkpointer = null;
         
-//        System.out.println(inpDoc.mDocId);
-//        System.out.println(cleanText);
-//        System.out.println("==============================");
-
-        luceneDoc.add(new StringField(UtilConst.FIELD_ID, inpDoc.mDocId, Field.Store.YES));
-        luceneDoc.add(new TextField(UtilConst.FIELD_TEXT, cleanText, Field.Store.YES));               
-        indexWriter.addDocument(luceneDoc);
+        if (commitInterval > 0) {
+          if (!(inpDocSource instanceof CheckpointableSource)) {
+            Usage("Periodic commits are not supported for the source type " + sourceName, options);
+          }
+          CheckpointableSource src = (CheckpointableSource) inpDocSource;
+          int startDocQty = 0;
+          if (commitData != null) {
+            src.seek(commitData.get(IndexCheckpointer.KEY_SOURCE_POS));
+            startDocQty = Integer.parseInt(commitData.get(IndexCheckpointer.KEY_DOC_QTY));
+          }
+          System.out.println(String.format("Committing the index every %d documents", commitInterval));
+          checkpointer = new IndexCheckpointer(indexWriter, src, 
+                                               qrelWriter, qrelFileName != null ? new File(qrelFileName) : null,
+                                               commitInterval, startDocQty);
+        }
         
-        if (inpDoc.mIsRel != null && qrelWriter != null) {
-          saveQrelOneEntry(qrelWriter, inpDoc.mQueryId, inpDoc.mDocId, inpDoc.mIsRel ? MAX_GRADE:0);
+        System.out.println(String.format("Using %d indexing thread(s)", threadQty));
+        
+        pipeline = new IndexingPipeline(indexWriter, qrelWriter, threadQty, checkpointer);
+        pipeline.setExistingDocs(existingDocs);
+        if (stats != null) pipeline.setStats(stats);
+        pipeline.run(inpDocSource);
+        
+        if (checkpointer != null) {
+          checkpointer.checkpoint(pipeline.getDocQty(), true);
         }
-        if (docNum % 1000 == 0) 
-          System.out.println(String.format("Indexed %d documents", docNum));
-
+      }
+      
+      if (commitInterval == 0 && qrelWriter != null) {
+        IndexCheckpointer.setFinalCommitData(indexWriter, qrelWriter, new File(qrelFileName));
       }
       
     } catch (ParseException e) {
@@ -205,18 +413,76 @@ public class LuceneIndexer {
       System.err.println("Terminating due to an exception: " + e);
       System.exit(1);
     } finally {
-      System.out.println(String.format("Indexed %d documents", docNum));
+      if (pipeline != null)
+        System.out.println(String.format("Indexed %d documents", pipeline.getDocQty()));
+      if (shardedIndexer != null)
+        System.out.println(String.format("Indexed %d documents", shardedIndexer.getDocQty()));
       
       try {
+        if (null != existingDocs) existingDocs.close();
         if (null != indexWriter) indexWriter.close();
         if (null != qrelWriter) qrelWriter.close();
+        // Closing the writer waits for merges, so statistics are complete only now
+        if (null != stats) {
+          stats.stopReporting();
+          stats.printSummary();
+          if (statsFileName != null) stats.save(statsFileName);
+        }
+        if (CompressUtils.isReadAhead()) System.out.println(CompressUtils.getReadAheadStallSummary());
       } catch (IOException e) {
         System.err.println("IO exception: " + e);
         e.printStackTrace();
+      } catch (InterruptedException e) {
+        System.err.println("Interrupted: " + e);
       }
     }
   }
 
+  /**
+   * Creates an index writer configuration.
+   * 
+   * @param similarity        a similarity to use.
+   * @param ramBufferSizeMB   the size of the RAM buffer.
+   * @param openMode          an index open mode.
+   * @return an index writer configuration object.
+   */
+  public static IndexWriterConfig createIndexConfig(Similarity similarity, 
+                                                    double ramBufferSizeMB,
+                                                    OpenMode openMode) {
+    return createIndexConfig(similarity, ramBufferSizeMB, openMode, null);
+  }
+
+  /**
+   * Creates an index writer configuration.
+   * 
+   * @param similarity        a similarity to use.
+   * @param ramBufferSizeMB   the size of the RAM buffer.
+   * @param openMode          an index open mode.
+   * @param stats             if not null, the analyzer, flushes, and merges record their timings
+   *                          (to record flushes, the directory should be wrapped using 
+   *                          {@link IndexingStats#wrapDirectory(org.apache.lucene.store.Directory)}).
+   * @return an index writer configuration object.
+   */
+  public static IndexWriterConfig createIndexConfig(Similarity similarity, 
+                                                    double ramBufferSizeMB,
+                                                    OpenMode openMode,
+                                                    IndexingStats stats) {
+    Analyzer analyzer = new EnglishAnalyzer();
+    if (stats != null) analyzer = stats.wrapAnalyzer(analyzer);
+    
+    IndexWriterConfig indexConf = new IndexWriterConfig(analyzer);
+    
+    indexConf.setOpenMode(openMode); 
+    indexConf.setRAMBufferSizeMB(ramBufferSizeMB);
+    indexConf.setSimilarity(similarity);
+    if (stats != null) {
+      indexConf.setMergePolicy(stats.wrapMergePolicy(indexConf.getMergePolicy()));
+      indexConf.setMergeScheduler(stats.createMergeScheduler());
+    }
+    
+    return indexConf;
+  }
+
   protected static final String NL = System.getProperty("line.separator");
   
   /**
@@ -17,12 +17,19 @@ package apps;
 
 import org.apache.commons.cli.*;
 import org.apache.lucene.analysis.en.EnglishAnalyzer;
+import org.apache.lucene.search.Query;
 import org.apache.lucene.search.similarities.*;
 
 import com.google.common.base.Joiner;
 
 import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
 import java.util.Random;
+import java.util.concurrent.*;
 
 import utils.*;
 import lucene.*;
@@ -71,11 +78,48 @@ public class LuceneQuery {
     options.addOption("bm25_b",     null, true, "BM25 parameter: b");
     options.addOption("bm25_k1",    null, true, "BM25 parameter: k1");
     options.addOption("bm25fixed",  null, false, "use the fixed BM25 similarity");
+    options.addOption("bm25_norm_cache", null, true, 
+                      "precompute length normalization of the fixed BM25 similarity for documents shorter than this value");
     
     options.addOption("seed",       null, true, "random seed");
+    options.addOption("cache_ids",  null, false, "load all document IDs into memory when opening the index");
+    options.addOption("bm25_k1_grid", null, true, 
+                      "a comma-separated list of k1 values: run queries for each combination of k1 and b values");
+    options.addOption("bm25_b_grid",  null, true, 
+                      "a comma-separated list of b values: run queries for each combination of k1 and b values");
+    options.addOption("threads",    null, true, 
+                      "the number of query threads (default 1); in the grid search mode, " +
+                      "the number of parameter combinations processed in parallel");
+    options.addOption("search_threads", null, true, 
+                      "the number of threads searching index segments of a single query (default 0: sequential search)");
+    options.addOption("slice_max_docs", null, true, 
+                      "the maximum number of documents in a group of segments searched by one thread " +
+                      "(default 0: each segment is searched separately)");
+    QueryPreparer.addOptions(options);
+    options.addOption("prune_report", null, false, 
+                      "also run full (non-reduced) queries and compare latency and effectiveness");
+    options.addOption("dir_type",   null, true, 
+                      "a type of the index directory: " + Joiner.on(',').join(DirectoryFactory.getDirectoryTypeList()) + 
+                      " (default " + DirectoryFactory.DIR_TYPE_FS + ")");
+    options.addOption("preload",    null, false, 
+                      "sequentially read index files (terms, postings, norms, and doc values) before running queries, " + 
+                      "a memory-mapped directory loads all files into memory");
+    options.addOption("warmup_queries", null, true, 
+                      "execute this number of queries from the beginning of the input file before " +
+                      "the timed run (results are discarded)");
+    options.addOption("eval_qrels", null, true, 
+                      "a QREL file: evaluate saved results (trec_eval and gdeval metrics) at the end of the run");
+    options.addOption("eval_out",   null, true, 
+                      "an optional file to save per-query values of metrics (requires 'eval_qrels')");
+    options.addOption("read_ahead", null, false, 
+                      "decompress the input file in a background thread");
+    options.addOption("bzip2_threads", null, true, 
+                      "decompress blocks of the bz2 input file using this number of threads " + 
+                      "(default: the number of processors; 0: sequential decompression)");
+    options.addOption("verify_topk", null, false, 
+                      "re-run each query scoring all matching documents and check that top-k results are identical");
     
     Joiner   commaJoin  = Joiner.on(',');
-    Joiner   spaceJoin  = Joiner.on(' ');
     
     options.addOption("source_type", null, true, 
                       "query source type: " + commaJoin.join(SourceFactory.getQuerySourceList()));
@@ -181,12 +225,25 @@ public class LuceneQuery {
       
       boolean useFixedBM25 = cmd.hasOption("bm25fixed");
       
+      int normCacheSize = 0;
+      
+      if (cmd.hasOption("bm25_norm_cache")) {
+        try {
+          normCacheSize = Integer.parseInt(cmd.getOptionValue("bm25_norm_cache"));
+        } catch (NumberFormatException e) {
+          Usage("Wrong format for 'bm25_norm_cache'", options);
+        }
+        if (normCacheSize < 0) {
+          Usage("The size of the length normalization cache should be >= 0", options);
+        }
+      }
+      
       EnglishAnalyzer   analyzer = new EnglishAnalyzer();
       Similarity        similarity = null;
       
       if (useFixedBM25) {
         System.out.println(String.format("Using fixed BM25Simlarity, k1=%f b=%f", bm25_k1, bm25_b));
-        similarity = new BM25SimilarityFix(bm25_k1, bm25_b);
+        similarity = new BM25SimilarityFix(bm25_k1, bm25_b, normCacheSize);
       } else {
         System.out.println(String.format("Using Lucene BM25Similarity, k1=%f b=%f", bm25_k1, bm25_b));
         similarity = new BM25Similarity(bm25_k1, bm25_b);
@@ -211,11 +268,170 @@ public class LuceneQuery {
         qrels = new QrelReader(qrelFile);
       }      
       
+      QrelReader evalQrels = null;
+      
+      if (cmd.hasOption("eval_qrels")) {
+        String evalQrelFile = cmd.getOptionValue("eval_qrels");
+        System.out.println("Saved results will be evaluated using the qrel file: '" + evalQrelFile + "'");
+        evalQrels = evalQrelFile.equals(cmd.getOptionValue("r")) ? qrels : new QrelReader(evalQrelFile);
+      } else if (cmd.hasOption("eval_out")) {
+        Usage("The option 'eval_out' requires 'eval_qrels'", options);
+      }
+      
       System.out.println(String.format("Using indexing directory %s", indexDir));
       
-      LuceneCandidateProvider candProvider = new LuceneCandidateProvider(indexDir, analyzer, similarity);
+      boolean cacheIds = cmd.hasOption("cache_ids");
+      boolean verifyTopK = cmd.hasOption("verify_topk");
+      CompressUtils.setReadAhead(cmd.hasOption("read_ahead"));
+      if (cmd.hasOption("bzip2_threads")) {
+        try {
+          CompressUtils.setBZip2ThreadQty(Integer.parseInt(cmd.getOptionValue("bzip2_threads")));
+        } catch (IllegalArgumentException e) {
+          Usage("Wrong value of 'bzip2_threads': " + e.getMessage(), options);
+        }
+      }
+      
+      QueryPreparer.Settings querySettings = null;
+      
+      try {
+        querySettings = new QueryPreparer.Settings(cmd);
+      } catch (IllegalArgumentException e) {
+        Usage(e.getMessage(), options);
+      }
+      
+      if (querySettings.isPruned()) {
+        System.out.println(querySettings.getPruneDescription());
+      } else if (cmd.hasOption("prune_report")) {
+        Usage("The option 'prune_report' requires 'max_query_terms' or 'query_weight_share'", options);
+      }
+      
+      if (verifyTopK) {
+        System.out.println("Top-k results will be verified against exhaustive scoring");
+      }
+      
+      String dirType = cmd.hasOption("dir_type") ? cmd.getOptionValue("dir_type") : DirectoryFactory.DIR_TYPE_FS;
+      
+      if (!DirectoryFactory.isValidType(dirType)) {
+        Usage("Wrong directory type: " + dirType, options);
+      }
+      
+      long start = System.nanoTime();
+      LuceneCandidateProvider candProvider = new LuceneCandidateProvider(indexDir, dirType, cmd.hasOption("preload"), 
+                                                                         analyzer, similarity, cacheIds);
+      System.out.println(String.format("Opened the index in %d ms: %s", (System.nanoTime() - start) / 1000000,
+                                       DirectoryFactory.getMemoryReport(candProvider.getDirectory())));
       TextCleaner             textCleaner = new TextCleaner(stopWords);
       
+      int threadQty = 1;
+      
+      if (cmd.hasOption("threads")) {
+        try {
+          threadQty = Integer.parseInt(cmd.getOptionValue("threads"));
+        } catch (NumberFormatException e) {
+          Usage("Wrong format for 'threads'", options);
+        }
+        if (threadQty < 1) {
+          Usage("The number of threads should be >= 1", options);
+        }
+      }
+      
+      int searchThreadQty = 0, sliceMaxDocs = 0;
+      
+      try {
+        if (cmd.hasOption("search_threads")) searchThreadQty = Integer.parseInt(cmd.getOptionValue("search_threads"));
+        if (cmd.hasOption("slice_max_docs")) sliceMaxDocs = Integer.parseInt(cmd.getOptionValue("slice_max_docs"));
+      } catch (NumberFormatException e) {
+        Usage("Wrong format for 'search_threads' or 'slice_max_docs'", options);
+      }
+      if (searchThreadQty < 0 || sliceMaxDocs < 0) {
+        Usage("The number of search threads and the slice size should be >= 0", options);
+      }
+      
+      if (searchThreadQty > 0) {
+        candProvider.setSearchExecutor(Executors.newFixedThreadPool(searchThreadQty, new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            // The JVM shouldn't wait for these threads to finish
+            Thread t = new Thread(r, "search");
+            t.setDaemon(true);
+            return t;
+          }
+        }), sliceMaxDocs);
+        System.out.println(String.format("Each query searches %d slice(s) of the index using %d thread(s)", 
+                                         candProvider.getSliceQty(), searchThreadQty));
+      }
+      
+      QueryPreparer queryPreparer = new QueryPreparer(candProvider, textCleaner, querySettings);
+      
+      int warmupQty = 0;
+      
+      if (cmd.hasOption("warmup_queries")) {
+        try {
+          warmupQty = Integer.parseInt(cmd.getOptionValue("warmup_queries"));
+        } catch (NumberFormatException e) {
+          Usage("Wrong format for 'warmup_queries'", options);
+        }
+      }
+      
+      // Memory-mapped files are loaded when the index is opened, a RAM copy needs no preloading
+      if (cmd.hasOption("preload") && 
+          !DirectoryFactory.isType(dirType, DirectoryFactory.DIR_TYPE_MMAP) && 
+          !DirectoryFactory.isType(dirType, DirectoryFactory.DIR_TYPE_RAM)) {
+        start = System.nanoTime();
+        long bytes = candProvider.preloadIndexFiles();
+        System.out.println(String.format("Preloaded %.1f MB of index files in %d ms", 
+                                         bytes / 1024.0 / 1024.0, (System.nanoTime() - start) / 1000000));
+      }
+      
+      if (warmupQty > 0) {
+        // Warmup queries are read from the beginning of the input file, but they
+        // don't affect sampling and their results are discarded
+        QueryRunner warmupRunner = new QueryRunner(candProvider, queryPreparer, null, numRet, false, false, null);
+        
+        QuerySource warmupSource = SourceFactory.createQuerySource(sourceName, inputFileName);
+        QueryEntry  warmupQuery = null;
+        int         qty = 0;
+        
+        start = System.nanoTime();
+        
+        while (qty < warmupQty && (warmupQuery = warmupSource.next()) != null) {
+          ++qty;
+          warmupRunner.createTask(qty, qty, warmupQuery).call();
+        }
+        System.out.println(String.format("Executed %d warmup queries in %d ms", 
+                                         qty, (System.nanoTime() - start) / 1000000));
+      }
+      
+      if (cmd.hasOption("bm25_k1_grid") || cmd.hasOption("bm25_b_grid")) {
+        String[] k1Grid = cmd.hasOption("bm25_k1_grid") ? 
+                          cmd.getOptionValue("bm25_k1_grid").split(",") : new String[] { Float.toString(bm25_k1) };
+        String[] bGrid =  cmd.hasOption("bm25_b_grid") ? 
+                          cmd.getOptionValue("bm25_b_grid").split(",") : new String[] { Float.toString(bm25_b) };
+        
+        if (!cmd.hasOption("threads")) threadQty = Runtime.getRuntime().availableProcessors();
+        
+        ArrayList<PreparedQuery> queries = new ArrayList<PreparedQuery>();
+        QuerySource inpQuerySource = SourceFactory.createQuerySource(sourceName, inputFileName);
+        QueryEntry  inpQuery = null;
+        int         questNum = 0;
+        
+        // Queries are sampled, cleaned, and parsed only once
+        while (queries.size() < maxQueryQty && (inpQuery = inpQuerySource.next()) != null) {
+          ++questNum;
+          if (randGen.nextDouble() <= fProb) {
+            queries.add(new PreparedQuery(inpQuery.mQueryId, queryPreparer.prepare(inpQuery.mQueryText)));
+          }
+        }
+        
+        try {
+          runGridSearch(candProvider, queries, k1Grid, bGrid, useFixedBM25, normCacheSize,
+                        qrels, numRet, trecOutFileName, threadQty);
+        } catch (NumberFormatException e) {
+          Usage("Wrong format of the BM25 parameter grid: " + e.getMessage(), options);
+        }
+        return;
+      }
+      
 
       QuerySource inpQuerySource = SourceFactory.createQuerySource(sourceName, inputFileName);
       QueryEntry  inpQuery = null;
@@ -225,78 +441,65 @@ public class LuceneQuery {
       
       int questNum = 0, questQty = 0;
       
-      long totalTimeMS = 0;
+      QueryRunner runner = new QueryRunner(candProvider, queryPreparer, qrels, numRet, verifyTopK, 
+                                           cmd.hasOption("prune_report"), trecOutFile);
       
-      while ((inpQuery = inpQuerySource.next()) != null) {
-        if (questQty >= maxQueryQty) break;
-        ++questNum;
-                
-        String queryID = inpQuery.mQueryId;
-        
-        if (randGen.nextDouble() <= fProb) {
-          ++questQty;
-          
-          String tokQuery = spaceJoin.join(textCleaner.cleanUp(inpQuery.mQueryText));
-          String query = TextCleaner.luceneSafeCleanUp(tokQuery).trim();            
-          
-          ResEntry [] results = null;
+      Evaluator evaluator = evalQrels != null ? new Evaluator(evalQrels) : null;
+      runner.setEvaluator(evaluator);
+      
+      System.out.println(String.format("Using %d query thread(s)", threadQty));
+      
+      ExecutorService                   executor = threadQty > 1 ? Executors.newFixedThreadPool(threadQty) : null;
+      ArrayDeque<Future<QueryResult>>   pending = new ArrayDeque<Future<QueryResult>>();
+      
+      try {
+        while ((inpQuery = inpQuerySource.next()) != null) {
+          if (questQty >= maxQueryQty) break;
+          ++questNum;
           
-          if (query.isEmpty()) {
-            results = new ResEntry[0];
-            System.out.println(
-                String.format("WARNING, empty query id = '%s'", inpQuery.mQueryId));
-          } else {
+          // Sampling is done here (and not by workers), so it is reproducible
+          if (randGen.nextDouble() <= fProb) {
+            ++questQty;
             
-            try {
-              long start = System.currentTimeMillis();
-              
-              results = candProvider.getCandidates(questNum, query, 
-                                                             numRet);
-              
-              long end = System.currentTimeMillis();
-              long searchTimeMS = end - start;
-              totalTimeMS += searchTimeMS;
-              
-              System.out.println(String.format("Obtained results for the query # %d (answered %d queries), queryID %s the search took %d ms, we asked for max %d entries got %d", 
-                                 questNum, questQty, queryID, searchTimeMS, numRet, results.length));
-
-              
-            } catch (ParseException e) {
-              e.printStackTrace();
-              System.err.println("Error parsing query: " + query + " orig question is :" 
-                                 + inpQuery.mQueryText);
-              System.exit(1);
-            }
-          }
-          
-          boolean bSave = true;
-          
-          if (qrels != null) {
-            boolean bOk = false;
-            for (ResEntry r : results) {
-              String label = qrels.get(queryID, r.mDocId);
-              if (candProvider.isRelevLabel(label, 1)) {
-                bOk = true;
-                break;
+            Callable<QueryResult> task = runner.createTask(questNum, questQty, inpQuery);
+            
+            if (executor == null) {
+              runner.save(task.call());
+            } else {
+              pending.add(executor.submit(task));
+              // Results are saved in the input order
+              if (pending.size() >= threadQty * PENDING_QUERIES_PER_THREAD) {
+                runner.save(getResult(pending.poll()));
               }
             }
-            if (!bOk) bSave = false;
           }
           
-//            System.out.println(String.format("Ranking results the query # %d queryId='%s' save results? %b", 
-//                                              questNum, queryID, bSave));          
-          if (bSave) {
-            saveTrecResults(queryID, results, trecOutFile, TREC_RUN, numRet);
-          }
+          if (questNum % 1000 == 0) 
+            System.out.println(String.format("Proccessed %d questions", questNum));
         }
-        
-        if (questNum % 1000 == 0) 
-          System.out.println(String.format("Proccessed %d questions", questNum));
-
-        
+        while (!pending.isEmpty()) {
+          runner.save(getResult(pending.poll()));
+        }
+      } finally {
+        if (executor != null) executor.shutdownNow();
       }
       
-      System.out.println(String.format("Proccessed %d questions, the search took %f MS on average", questQty, (float)totalTimeMS/questQty));        
+      runner.printSummary();
+      if (CompressUtils.isReadAhead()) System.out.println(CompressUtils.getReadAheadStallSummary());
+      
+      if (evaluator != null) {
+        start = System.nanoTime();
+        EvalResult evalRes = evaluator.evaluate(threadQty);
+        System.out.println(String.format("Evaluated %d queries in %d ms:", 
+                                         evaluator.getQueryQty(), (System.nanoTime() - start) / 1000000));
+        evalRes.print(System.out, false);
+        if (cmd.hasOption("eval_out")) evalRes.save(cmd.getOptionValue("eval_out"));
+      }
+      
+      if (verifyTopK && runner.getMismatchQty() > 0) {
+        trecOutFile.close();
+        System.exit(1);
+      }
       
       trecOutFile.close();
       
@@ -309,6 +512,397 @@ public class LuceneQuery {
     }  
   }
   
+  /** The maximum number of queries (per thread) whose results wait to be saved. */
+  private static final int PENDING_QUERIES_PER_THREAD = 16;
+  
+  private static QueryResult getResult(Future<QueryResult> f) throws Exception {
+    try {
+      return f.get();
+    } catch (ExecutionException e) {
+      throw new Exception("Failed to run a query: " + e.getCause(), e.getCause());
+    }
+  }
+  
+  /**
+   * Computes a percentile using the nearest-rank method.
+   * 
+   * @param sorted  a non-empty sorted array of values.
+   * @param percent a percentile (e.g., 99 for the 99th percentile).
+   */
+  private static long getPercentile(long[] sorted, double percent) {
+    int rank = (int) Math.ceil(sorted.length * percent / 100.0);
+    return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+  }
+  
+  /**
+   * Results of one query.
+   */
+  private static class QueryResult {
+    int         mQuestNum;
+    int         mQuestQty;
+    String      mQueryId;
+    ResEntry[]  mResults;
+    /** The search time or -1 for empty queries. */
+    long        mSearchTimeMS = -1;
+    long        mSearchTimeNanos = -1;
+    long        mExhaustiveTimeMS = 0;
+    /** A difference between top-k and exhaustive results (or null). */
+    String      mMismatch = null;
+    /** The number of distinct query terms before and after the query reduction. */
+    int         mTermQty = 0;
+    int         mKeptTermQty = 0;
+    /** Results and the search time of the full (non-reduced) query. */
+    ResEntry[]  mFullResults = null;
+    long        mFullSearchTimeNanos = 0;
+  }
+  
+  /**
+   * Runs queries (possibly, concurrently) and saves results (in one thread,
+   * in the order of queries).
+   */
+  private static class QueryRunner {
+    /**
+     * Constructor.
+     * 
+     * @param pruneReport if true and queries are reduced, full queries are executed 
+     *                    as well to compare the latency and the effectiveness.
+     */
+    QueryRunner(LuceneCandidateProvider candProvider, QueryPreparer queryPreparer, 
+                QrelReader qrels, int numRet, boolean verifyTopK, boolean pruneReport,
+                BufferedWriter trecOutFile) {
+      mCandProvider = candProvider;
+      mQueryPreparer = queryPreparer;
+      mQrels = qrels;
+      mNumRet = numRet;
+      mVerifyTopK = verifyTopK;
+      mPruneReport = pruneReport && queryPreparer.isPruned();
+      mTrecOutFile = trecOutFile;
+    }
+    
+    /**
+     * Makes the runner pass saved results to the evaluator.
+     * 
+     * @param evaluator an evaluator (or null).
+     */
+    void setEvaluator(Evaluator evaluator) {
+      mEvaluator = evaluator;
+    }
+    
+    /**
+     * Creates a task that cleans up the query text and retrieves candidates.
+     * Tasks can be executed concurrently: the candidate provider and 
+     * the text cleaner are thread-safe.
+     */
+    Callable<QueryResult> createTask(final int questNum, final int questQty, final QueryEntry inpQuery) {
+      return new Callable<QueryResult>() {
+        @Override
+        public QueryResult call() throws Exception {
+          QueryResult res = new QueryResult();
+          res.mQuestNum = questNum;
+          res.mQuestQty = questQty;
+          res.mQueryId = inpQuery.mQueryId;
+          
+          ArrayList<String> toks = mQueryPreparer.cleanUp(inpQuery.mQueryText);
+          
+          res.mResults = new ResEntry[0];
+          
+          try {
+            // The time to create a query is included into the search time
+            long                        start = System.nanoTime();
+            QueryPreparer.PreparedText  prepared = mQueryPreparer.prepare(toks);
+            Query                       queryParsed = prepared.mQuery;
+            
+            if (prepared.mTermQty != null) {
+              res.mTermQty = prepared.mTermQty.size();
+              res.mKeptTermQty = prepared.mKeptTermQty;
+            }
+            
+            if (queryParsed == null) return res;
+            
+            res.mResults = mCandProvider.getCandidates(queryParsed, mNumRet, 
+                                              LuceneCandidateProvider.DEFAULT_TOTAL_HITS_THRESHOLD);
+            res.mSearchTimeNanos = System.nanoTime() - start;
+            res.mSearchTimeMS = res.mSearchTimeNanos / 1000000;
+            
+            if (mVerifyTopK) {
+              start = System.nanoTime();
+              ResEntry[] exhaustResults = mCandProvider.getCandidates(queryParsed, mNumRet, 
+                                                LuceneCandidateProvider.EXHAUSTIVE_TOTAL_HITS_THRESHOLD);
+              res.mExhaustiveTimeMS = (System.nanoTime() - start) / 1000000;
+              res.mMismatch = compareResults(res.mResults, exhaustResults);
+            }
+            
+            if (mPruneReport) {
+              start = System.nanoTime();
+              res.mFullResults = mCandProvider.getCandidates(mCandProvider.buildQuery(prepared.mTermQty), mNumRet, 
+                                                LuceneCandidateProvider.DEFAULT_TOTAL_HITS_THRESHOLD);
+              res.mFullSearchTimeNanos = System.nanoTime() - start;
+            }
+          } catch (org.apache.lucene.queryparser.classic.ParseException e) {
+            throw new Exception(e.getMessage() + " orig question is :" + inpQuery.mQueryText, e);
+          }
+          return res;
+        }
+      };
+    }
+    
+    /**
+     * Prints the information about the query and saves its results.
+     */
+    void save(QueryResult res) throws Exception {
+      if (res.mSearchTimeMS < 0) {
+        System.out.println(
+            String.format("WARNING, empty query id = '%s'", res.mQueryId));
+      } else {
+        mTotalTimeNanos += res.mSearchTimeNanos;
+        mLatencies.add(res.mSearchTimeNanos);
+        mExhaustiveTimeMS += res.mExhaustiveTimeMS;
+        System.out.println(String.format("Obtained results for the query # %d (answered %d queries), queryID %s the search took %d ms, we asked for max %d entries got %d", 
+                           res.mQuestNum, res.mQuestQty, res.mQueryId, res.mSearchTimeMS, mNumRet, res.mResults.length));
+        mTermQty += res.mTermQty;
+        mKeptTermQty += res.mKeptTermQty;
+        if (res.mFullResults != null) {
+          mFullLatencies.add(res.mFullSearchTimeNanos);
+          mOverlapSum += getOverlap(res.mResults, res.mFullResults);
+          if (mQrels != null) {
+            mReciprocalRankSum += getReciprocalRank(res.mQueryId, res.mResults);
+            mFullReciprocalRankSum += getReciprocalRank(res.mQueryId, res.mFullResults);
+          }
+        }
+        if (res.mMismatch != null) {
+          ++mMismatchQty;
+          System.out.println(String.format("MISMATCH of top-k and exhaustive results for queryID %s: %s", 
+                                           res.mQueryId, res.mMismatch));
+        }
+      }
+      ++mQueryQty;
+      
+      boolean bSave = true;
+      
+      if (mQrels != null) {
+        bSave = hasRelevant(mQrels, res.mQueryId, res.mResults);
+      }
+      
+      if (bSave) {
+        saveTrecResults(res.mQueryId, res.mResults, mTrecOutFile, TREC_RUN, mNumRet);
+        if (mEvaluator != null) {
+          addTrecResults(mEvaluator, res.mQueryId, res.mResults, mNumRet);
+        }
+      }
+    }
+    
+    /**
+     * @return a share of full query results that are also returned by the reduced query.
+     */
+    private double getOverlap(ResEntry[] results, ResEntry[] fullResults) {
+      if (fullResults.length == 0) return 1;
+      HashSet<String> ids = new HashSet<String>();
+      for (ResEntry r : results) ids.add(r.mDocId);
+      int qty = 0;
+      for (ResEntry r : fullResults) {
+        if (ids.contains(r.mDocId)) ++qty;
+      }
+      return (double) qty / fullResults.length;
+    }
+    
+    private double getReciprocalRank(String queryId, ResEntry[] results) {
+      for (int i = 0; i < results.length; ++i) {
+        if (mQrels.getGrade(queryId, results[i].mDocId) >= 1) return 1.0 / (i + 1);
+      }
+      return 0;
+    }
+    
+    private void printLatency(String name, ArrayList<Long> latencies) {
+      if (latencies.isEmpty()) return;
+      long[] sorted = new long[latencies.size()];
+      for (int i = 0; i < sorted.length; ++i) sorted[i] = latencies.get(i);
+      Arrays.sort(sorted);
+      System.out.println(String.format(Locale.US, 
+                         "%s (ms): p50=%.3f p90=%.3f p99=%.3f max=%.3f", name, 
+                         getPercentile(sorted, 50) / 1e6, getPercentile(sorted, 90) / 1e6, 
+                         getPercentile(sorted, 99) / 1e6, sorted[sorted.length - 1] / 1e6));
+    }
+    
+    int getMismatchQty() {
+      return mMismatchQty;
+    }
+    
+    void printSummary() {
+      System.out.println(String.format("Proccessed %d questions, the search took %f MS on average", 
+                                       mQueryQty, (float)(mTotalTimeNanos / 1e6 / mQueryQty)));        
+      
+      printLatency("Query latency", mLatencies);
+      
+      if (mQueryPreparer.isPruned() && !mLatencies.isEmpty()) {
+        int qty = mLatencies.size();
+        System.out.println(String.format(Locale.US, 
+                           "Query reduction: %.2f distinct terms per query on average, %.2f kept", 
+                           (double) mTermQty / qty, (double) mKeptTermQty / qty));
+        if (mPruneReport) {
+          printLatency("Full query latency", mFullLatencies);
+          System.out.println(String.format(Locale.US, 
+                             "Mean overlap of top-%d results of reduced and full queries: %.4f", 
+                             mNumRet, mOverlapSum / qty));
+          if (mQrels != null) {
+            System.out.println(String.format(Locale.US, 
+                               "MRR@%d: reduced queries %.4f, full queries %.4f", 
+                               mNumRet, mReciprocalRankSum / qty, mFullReciprocalRankSum / qty));
+          }
+        }
+      }
+      
+      if (mVerifyTopK) {
+        System.out.println(String.format("Exhaustive scoring took %f MS on average", (float)mExhaustiveTimeMS/mQueryQty));
+        if (mMismatchQty > 0) {
+          System.err.println(String.format("Top-k verification FAILED: %d queries out of %d have different results", 
+                                           mMismatchQty, mQueryQty));
+        } else {
+          System.out.println(String.format("Top-k verification passed for all %d queries", mQueryQty));
+        }
+      }
+    }
+    
+    private final LuceneCandidateProvider mCandProvider;
+    private final QueryPreparer           mQueryPreparer;
+    private final QrelReader              mQrels;
+    private final int                     mNumRet;
+    private final boolean                 mVerifyTopK;
+    private final boolean                 mPruneReport;
+    private final BufferedWriter          mTrecOutFile;
+    
+    /** Search times (in nanoseconds) of non-empty queries. */
+    private final ArrayList<Long>         mLatencies = new ArrayList<Long>();
+    private final ArrayList<Long>         mFullLatencies = new ArrayList<Long>();
+    
+    private Evaluator       mEvaluator = null;
+    private long            mTermQty = 0, mKeptTermQty = 0;
+    private double          mOverlapSum = 0;
+    private double          mReciprocalRankSum = 0, mFullReciprocalRankSum = 0;
+    
+    private int   mQueryQty = 0;
+    private long  mTotalTimeNanos = 0;
+    private long  mExhaustiveTimeMS = 0;
+    private int   mMismatchQty = 0;
+  }
+  
+  /**
+   * A cleaned and parsed query. 
+   */
+  private static class PreparedQuery {
+    PreparedQuery(String queryId, Query query) {
+      mQueryId = queryId;
+      mQuery = query;
+    }
+    
+    final String  mQueryId;
+    /** A parsed query or null, if the query is empty. */
+    final Query   mQuery;
+  }
+  
+  /**
+   * Executes the same queries for each combination of BM25 parameters k1 and b. 
+   * All combinations use the same index, but each combination has its own searcher
+   * and is processed by a separate task. Results of each combination are saved
+   * to a separate TREC-style run file: &lt;output file&gt;_k1=&lt;k1&gt;_b=&lt;b&gt;.
+   * 
+   * @param candProvider      a provider whose index is shared.
+   * @param queries           prepared queries.
+   * @param k1Grid            values of k1.
+   * @param bGrid             values of b.
+   * @param useFixedBM25      true to use the fixed BM25 similarity.
+   * @param normCacheSize     the size of the length normalization cache of the fixed BM25 similarity.
+   * @param qrels             an optional QREL reader (can be null).
+   * @param numRet            the maximum number of results.
+   * @param trecOutFileName   the output file name (a prefix of run file names).
+   * @param threadQty         the number of combinations processed in parallel.
+   * @throws Exception
+   */
+  private static void runGridSearch(final LuceneCandidateProvider candProvider, 
+                                    final ArrayList<PreparedQuery> queries,
+                                    String[] k1Grid, String[] bGrid,
+                                    boolean useFixedBM25, int normCacheSize,
+                                    final QrelReader qrels, final int numRet, 
+                                    String trecOutFileName, int threadQty) throws Exception {
+    ArrayList<Callable<String>> tasks = new ArrayList<Callable<String>>();
+    
+    for (String k1Str : k1Grid) {
+      for (String bStr : bGrid) {
+        float k1 = Float.parseFloat(k1Str.trim()), b = Float.parseFloat(bStr.trim());
+        final Similarity similarity = useFixedBM25 ? 
+                                      new BM25SimilarityFix(k1, b, normCacheSize) : new BM25Similarity(k1, b);
+        final String outFileName = trecOutFileName + "_k1=" + k1Str.trim() + "_b=" + bStr.trim();
+        
+        tasks.add(new Callable<String>() {
+          @Override
+          public String call() throws Exception {
+            LuceneCandidateProvider provider = new LuceneCandidateProvider(candProvider, similarity);
+            BufferedWriter trecOutFile = new BufferedWriter(new FileWriter(new File(outFileName)));
+            long start = System.currentTimeMillis();
+            try {
+              for (PreparedQuery q : queries) {
+                ResEntry[] results = q.mQuery == null ? 
+                    new ResEntry[0] : 
+                    provider.getCandidates(q.mQuery, numRet, LuceneCandidateProvider.DEFAULT_TOTAL_HITS_THRESHOLD);
+                if (qrels == null || hasRelevant(qrels, q.mQueryId, results)) {
+                  saveTrecResults(q.mQueryId, results, trecOutFile, TREC_RUN, numRet);
+                }
+              }
+            } finally {
+              trecOutFile.close();
+            }
+            return String.format("%s: %d queries, the search took %f MS on average", 
+                                 similarity, queries.size(), 
+                                 (float)(System.currentTimeMillis() - start) / Math.max(1, queries.size()));
+          }
+        });
+      }
+    }
+    
+    System.out.println(String.format("Running %d queries for %d combinations of BM25 parameters using %d thread(s)", 
+                                     queries.size(), tasks.size(), threadQty));
+    
+    ExecutorService executor = Executors.newFixedThreadPool(threadQty);
+    try {
+      for (Future<String> f : executor.invokeAll(tasks)) {
+        try {
+          System.out.println(f.get());
+        } catch (ExecutionException e) {
+          throw new Exception("Failed to run queries: " + e.getCause(), e.getCause());
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+  
+  /**
+   * @return true if the results contain at least one relevant entry.
+   */
+  private static boolean hasRelevant(QrelReader qrels, String queryID, ResEntry[] results) {
+    for (ResEntry r : results) {
+      if (qrels.getGrade(queryID, r.mDocId) >= 1) return true;
+    }
+    return false;
+  }
+  
+  /**
+   * Compares two result lists: document IDs and scores must be exactly the same.
+   * 
+   * @return null if result lists are identical, or a description of the first difference.
+   */
+  private static String compareResults(ResEntry[] res1, ResEntry[] res2) {
+    if (res1.length != res2.length) {
+      return String.format("different number of results %d vs %d", res1.length, res2.length);
+    }
+    for (int i = 0; i < res1.length; ++i) {
+      if (!res1[i].mDocId.equals(res2[i].mDocId) || res1[i].mScore != res2[i].mScore) {
+        return String.format("rank %d: %s (%f) vs %s (%f)", i + 1, 
+                             res1[i].mDocId, res1[i].mScore, res2[i].mDocId, res2[i].mScore);
+      }
+    }
+    return null;
+  }
+  
   /** Some fake document ID, which is unlikely to be equal to a real one */
   private static final String FAKE_DOC_ID = 
       "THIS_IS_A_VERY_LONG_FAKE_DOCUMENT_ID_THAT_SHOULD_NOT_MATCH_ANY_REAL_ONES";
@@ -347,6 +941,26 @@ public class LuceneQuery {
       }
     }
 
+  /**
+   * Passes results to an evaluator exactly as they are saved by 
+   * {@link #saveTrecResults(String, ResEntry[], BufferedWriter, String, int)}:
+   * scores are rounded in the same way and an empty result set is replaced by a fake entry.
+   * 
+   * @param evaluator an evaluator.
+   * @param topicId   a question ID.
+   * @param results   found entries.
+   * @param maxNum    the maximum number of entries to save.
+   */
+  public static void addTrecResults(Evaluator evaluator, String topicId, ResEntry[] results, int maxNum) {
+    if (results.length == 0) {
+      evaluator.add(topicId, FAKE_DOC_ID, 0);
+    }
+    for (int i = 0; i < Math.min(results.length, maxNum); ++i) {
+      evaluator.add(topicId, results[i].mDocId, 
+                    Double.parseDouble(String.format(Locale.US, "%f", results[i].mScore)));
+    }
+  }
+
   /**
    * Save positions, scores, etc information for a single retrieved documents.
    * 
@@ -0,0 +1,284 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package apps;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.cli.*;
+import org.apache.lucene.analysis.en.EnglishAnalyzer;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.similarities.*;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import utils.*;
+import lucene.*;
+import qrels.*;
+import source.*;
+
+/**
+ * <p>A long-running query server that keeps the index, the analyzer, and
+ * the text cleaner (including Stanford NLP models) in memory. It answers
+ * HTTP requests (on localhost by default):</p>
+ * <ul>
+ * <li><code>GET /search?q=&lt;question text&gt;</code> runs a single query;
+ * <li><code>POST /search</code> runs a batch of queries: the request body
+ *     contains one query per line in the format <code>&lt;query id&gt;TAB&lt;question text&gt;</code>.
+ * </ul>
+ * <p>Optional parameters: <code>n</code> (the maximum number of results),
+ * <code>id</code> (a query ID of a single query), <code>run</code> (a run name),
+ * and <code>format</code>: <code>trec</code> (TREC run lines, the default)
+ * or <code>tsv</code> (lines <code>&lt;query id&gt;TAB&lt;document id&gt;TAB&lt;score&gt;</code>).
+ * Queries are cleaned up, parsed, and reduced (see {@link QueryPreparer}) exactly as
+ * in {@link LuceneQuery}, with the same options.</p>
+ *
+ * @author Leonid Boytsov
+ *
+ */
+public class LuceneQueryServer {
+  public static final String SEARCH_PATH = "/search";
+  public static final String FORMAT_TREC = "trec";
+  public static final String FORMAT_TSV = "tsv";
+
+  private static final String DEFAULT_RUN = "fakerun";
+  private static final String DEFAULT_QUERY_ID = "0";
+
+  static void Usage(String err, Options opt) {
+    System.err.println("Error: " + err);
+    HelpFormatter formatter = new HelpFormatter();
+    formatter.printHelp( "LuceneQueryServer", opt);
+    System.exit(1);
+  }
+
+  public static void main(String[] args) {
+    Options options = new Options();
+
+    options.addOption("d",          null, true, "index directory");
+    options.addOption("s",          null, true, "stop word file");
+    options.addOption("n",          null, true, "default max # of results (default 100)");
+    options.addOption("host",       null, true, "a host name or an address to listen on (default localhost)");
+    options.addOption("port",       null, true, "a port number (default 8080)");
+    options.addOption("threads",    null, true, "the number of threads processing requests (default 1)");
+    options.addOption("bm25_b",     null, true, "BM25 parameter: b");
+    options.addOption("bm25_k1",    null, true, "BM25 parameter: k1");
+    options.addOption("bm25fixed",  null, false, "use the fixed BM25 similarity");
+    options.addOption("cache_ids",  null, false, "load all document IDs into memory when opening the index");
+    QueryPreparer.addOptions(options);
+
+    CommandLineParser parser = new org.apache.commons.cli.GnuParser();
+
+    try {
+      CommandLine cmd = parser.parse(options, args);
+
+      String indexDir = cmd.getOptionValue("d");
+      if (indexDir == null) Usage("Specify 'index directory'", options);
+
+      DictNoComments stopWords = null;
+      if (cmd.hasOption("s")) {
+        String stopWordFileName = cmd.getOptionValue("s");
+        stopWords = new DictNoComments(new File(stopWordFileName), true /* lowercasing */);
+        System.out.println("Using the stopword file: " + stopWordFileName);
+      }
+
+      int     numRet = 100, port = 8080, threadQty = 1;
+      float   bm25_k1 = UtilConst.BM25_K1_DEFAULT, bm25_b = UtilConst.BM25_B_DEFAULT;
+      String  host = cmd.hasOption("host") ? cmd.getOptionValue("host") : "localhost";
+
+      try {
+        if (cmd.hasOption("n")) numRet = Integer.parseInt(cmd.getOptionValue("n"));
+        if (cmd.hasOption("port")) port = Integer.parseInt(cmd.getOptionValue("port"));
+        if (cmd.hasOption("threads")) threadQty = Integer.parseInt(cmd.getOptionValue("threads"));
+        if (cmd.hasOption("bm25_k1")) bm25_k1 = Float.parseFloat(cmd.getOptionValue("bm25_k1"));
+        if (cmd.hasOption("bm25_b")) bm25_b = Float.parseFloat(cmd.getOptionValue("bm25_b"));
+      } catch (NumberFormatException e) {
+        Usage("Wrong number format: " + e.getMessage(), options);
+      }
+      if (numRet < 1) Usage("The number of results should be >= 1", options);
+      if (threadQty < 1) Usage("The number of threads should be >= 1", options);
+
+      QueryPreparer.Settings querySettings = null;
+
+      try {
+        querySettings = new QueryPreparer.Settings(cmd);
+      } catch (IllegalArgumentException e) {
+        Usage(e.getMessage(), options);
+      }
+      if (querySettings.isPruned()) System.out.println(querySettings.getPruneDescription());
+
+      Similarity similarity = null;
+
+      if (cmd.hasOption("bm25fixed")) {
+        System.out.println(String.format("Using fixed BM25Simlarity, k1=%f b=%f", bm25_k1, bm25_b));
+        similarity = new BM25SimilarityFix(bm25_k1, bm25_b);
+      } else {
+        System.out.println(String.format("Using Lucene BM25Similarity, k1=%f b=%f", bm25_k1, bm25_b));
+        similarity = new BM25Similarity(bm25_k1, bm25_b);
+      }
+
+      System.out.println(String.format("Using indexing directory %s", indexDir));
+
+      LuceneCandidateProvider candProvider = new LuceneCandidateProvider(indexDir, new EnglishAnalyzer(),
+                                                                         similarity, cmd.hasOption("cache_ids"));
+      QueryPreparer           queryPreparer = new QueryPreparer(candProvider, new TextCleaner(stopWords),
+                                                                querySettings);
+
+      HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
+      server.createContext(SEARCH_PATH, new SearchHandler(candProvider, queryPreparer, numRet));
+      // The candidate provider and the query preparer are thread-safe
+      server.setExecutor(Executors.newFixedThreadPool(threadQty));
+      server.start();
+
+      System.out.println(String.format("Listening on http://%s:%d%s using %d thread(s)",
+                                       host, port, SEARCH_PATH, threadQty));
+    } catch (ParseException e) {
+      e.printStackTrace();
+      Usage("Cannot parse arguments: " + e, options);
+    } catch(Exception e) {
+      e.printStackTrace();
+      System.err.println("Terminating due to an exception: " + e);
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Processes search requests.
+   */
+  private static class SearchHandler implements HttpHandler {
+    SearchHandler(LuceneCandidateProvider candProvider, QueryPreparer queryPreparer, int numRet) {
+      mCandProvider = candProvider;
+      mQueryPreparer = queryPreparer;
+      mNumRet = numRet;
+    }
+
+    @Override
+    public void handle(HttpExchange exch) throws IOException {
+      try {
+        HashMap<String, String> params = parseParams(exch.getRequestURI().getRawQuery());
+
+        int     numRet = mNumRet;
+        String  format = params.containsKey("format") ? params.get("format") : FORMAT_TREC;
+        String  runId = params.containsKey("run") ? params.get("run") : DEFAULT_RUN;
+
+        if (params.containsKey("n")) {
+          try {
+            numRet = Integer.parseInt(params.get("n"));
+          } catch (NumberFormatException e) {
+            numRet = -1;
+          }
+          if (numRet < 1) {
+            sendResponse(exch, 400, "Wrong value of the parameter 'n'\n");
+            return;
+          }
+        }
+        if (!format.equals(FORMAT_TREC) && !format.equals(FORMAT_TSV)) {
+          sendResponse(exch, 400, "Unknown format '" + format + "'\n");
+          return;
+        }
+
+        StringWriter    out = new StringWriter();
+        BufferedWriter  outWriter = new BufferedWriter(out);
+
+        if (exch.getRequestMethod().equals("GET")) {
+          String text = params.get("q");
+          if (text == null) {
+            sendResponse(exch, 400, "Specify the query text (parameter 'q')\n");
+            return;
+          }
+          String queryId = params.containsKey("id") ? params.get("id") : DEFAULT_QUERY_ID;
+          saveResults(outWriter, queryId, runQuery(text, numRet), format, runId, numRet);
+        } else if (exch.getRequestMethod().equals("POST")) {
+          BufferedReader inp = new BufferedReader(
+                                  new InputStreamReader(exch.getRequestBody(), StandardCharsets.UTF_8));
+          String line;
+          while ((line = inp.readLine()) != null) {
+            if (line.trim().isEmpty()) continue;
+            int sep = line.indexOf('\t');
+            if (sep < 0) {
+              sendResponse(exch, 400, "Wrong format of the line (no query ID): '" + line + "'\n");
+              return;
+            }
+            saveResults(outWriter, line.substring(0, sep), runQuery(line.substring(sep + 1), numRet),
+                        format, runId, numRet);
+          }
+        } else {
+          sendResponse(exch, 405, "Only GET and POST requests are supported\n");
+          return;
+        }
+
+        outWriter.flush();
+        sendResponse(exch, 200, out.toString());
+      } catch (Exception e) {
+        e.printStackTrace();
+        sendResponse(exch, 500, "Failed to process the request: " + e + "\n");
+      } finally {
+        exch.close();
+      }
+    }
+
+    private ResEntry[] runQuery(String text, int numRet) throws Exception {
+      Query query = mQueryPreparer.prepare(text);
+
+      if (query == null) return new ResEntry[0];
+
+      return mCandProvider.getCandidates(query, numRet, LuceneCandidateProvider.DEFAULT_TOTAL_HITS_THRESHOLD);
+    }
+
+    private void saveResults(BufferedWriter out, String queryId, ResEntry[] results,
+                             String format, String runId, int numRet) throws IOException {
+      if (format.equals(FORMAT_TREC)) {
+        LuceneQuery.saveTrecResults(queryId, results, out, runId, numRet);
+      } else {
+        for (ResEntry r : results) {
+          out.write(queryId + "\t" + r.mDocId + "\t" + r.mScore);
+          out.newLine();
+        }
+      }
+    }
+
+    private final LuceneCandidateProvider mCandProvider;
+    private final QueryPreparer           mQueryPreparer;
+    private final int                     mNumRet;
+  }
+
+  private static HashMap<String, String> parseParams(String rawQuery) throws UnsupportedEncodingException {
+    HashMap<String, String> res = new HashMap<String, String>();
+    if (rawQuery == null) return res;
+    for (String pair : rawQuery.split("&")) {
+      if (pair.isEmpty()) continue;
+      int sep = pair.indexOf('=');
+      String key = sep < 0 ? pair : pair.substring(0, sep);
+      String val = sep < 0 ? "" : pair.substring(sep + 1);
+      res.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(val, "UTF-8"));
+    }
+    return res;
+  }
+
+  private static void sendResponse(HttpExchange exch, int code, String text) throws IOException {
+    byte[] data = text.getBytes(StandardCharsets.UTF_8);
+    exch.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exch.sendResponseHeaders(code, data.length);
+    try (OutputStream os = exch.getResponseBody()) {
+      os.write(data);
+    }
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package apps;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.Query;
+
+import com.google.common.base.Joiner;
+
+import lucene.*;
+import source.TextCleaner;
+
+/**
+ * <p>Turns a question text into a Lucene query. The text is cleaned up and the query
+ * is either parsed by the query parser, or created directly from tokens. Long queries
+ * can be reduced (see {@link QueryTermPruner}), which implies direct queries.</p>
+ *
+ * <p>The same query construction is used by {@link LuceneQuery} and {@link LuceneQueryServer}:
+ * both register options with {@link #addOptions(Options)} and read them using
+ * {@link Settings}. The object is thread-safe.</p>
+ *
+ * @author Leonid Boytsov
+ *
+ */
+public class QueryPreparer {
+  /**
+   * Adds options that define how queries are constructed.
+   */
+  public static void addOptions(Options options) {
+    options.addOption("direct_query", null, false,
+                      "create queries directly from tokens (repeated terms are merged) instead of using the query parser");
+    options.addOption("max_query_terms", null, true,
+                      "keep at most this number of query terms with the largest weights (implies -direct_query)");
+    options.addOption("query_weight_share", null, true,
+                      "keep query terms with the largest weights until they have this share (0..1] " +
+                      "of the total query weight (implies -direct_query)");
+    options.addOption("prune_qtf",  null, false,
+                      "weigh query terms by IDF multiplied by the query term frequency (default: IDF)");
+  }
+
+  /**
+   * Query construction settings obtained from the command line.
+   */
+  public static class Settings {
+    /**
+     * Reads options added by {@link QueryPreparer#addOptions(Options)}.
+     *
+     * @param cmd a parsed command line.
+     * @throws IllegalArgumentException if an option has a wrong value.
+     */
+    public Settings(CommandLine cmd) {
+      try {
+        if (cmd.hasOption("max_query_terms")) mMaxTermQty = Integer.parseInt(cmd.getOptionValue("max_query_terms"));
+        if (cmd.hasOption("query_weight_share")) mWeightShare = Double.parseDouble(cmd.getOptionValue("query_weight_share"));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Wrong format for 'max_query_terms' or 'query_weight_share'");
+      }
+      if (mMaxTermQty < 0) {
+        throw new IllegalArgumentException("The maximum number of query terms should be >= 0");
+      }
+      if (mWeightShare <= 0 || mWeightShare > 1) {
+        throw new IllegalArgumentException("The share of the query weight should be in (0, 1]");
+      }
+      mUseQtf = cmd.hasOption("prune_qtf");
+      mDirectQuery = cmd.hasOption("direct_query") || isPruned();
+    }
+
+    /**
+     * @return true if long queries are reduced.
+     */
+    public boolean isPruned() {
+      return mMaxTermQty > 0 || mWeightShare < 1;
+    }
+
+    /**
+     * @return true if queries are created directly from tokens.
+     */
+    public boolean isDirect() {
+      return mDirectQuery;
+    }
+
+    /**
+     * @return a one-line description of the query reduction.
+     */
+    public String getPruneDescription() {
+      return String.format("Queries are reduced: at most %d terms (0 means no limit) " +
+                           "that have %.3f of the total weight, weights: %s",
+                           mMaxTermQty, mWeightShare, mUseQtf ? "IDF*qtf" : "IDF");
+    }
+
+    private int     mMaxTermQty = 0;
+    private double  mWeightShare = 1;
+    private final boolean mUseQtf;
+    private final boolean mDirectQuery;
+  }
+
+  /**
+   * A query created from a question text.
+   */
+  public static class PreparedText {
+    /** A query or null, if no terms remain after the clean up. */
+    Query                           mQuery = null;
+    /** All analyzed terms with their frequencies (only if queries are reduced). */
+    LinkedHashMap<String, Integer>  mTermQty = null;
+    /** The number of distinct terms kept by the query reduction. */
+    int                             mKeptTermQty = 0;
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param candProvider  a candidate provider (queries can be executed by any provider sharing its index).
+   * @param textCleaner   a text cleaner.
+   * @param settings      query construction settings.
+   */
+  public QueryPreparer(LuceneCandidateProvider candProvider, TextCleaner textCleaner, Settings settings) {
+    mCandProvider = candProvider;
+    mTextCleaner = textCleaner;
+    mDirectQuery = settings.isDirect();
+    mPruner = settings.isPruned() ?
+              candProvider.createTermPruner(settings.mMaxTermQty, settings.mWeightShare, settings.mUseQtf) : null;
+  }
+
+  /**
+   * @return true if long queries are reduced.
+   */
+  public boolean isPruned() {
+    return mPruner != null;
+  }
+
+  /**
+   * Cleans up a question text.
+   *
+   * @param text  a question text.
+   * @return a list of tokens.
+   */
+  public ArrayList<String> cleanUp(String text) {
+    return mTextCleaner.cleanUp(text);
+  }
+
+  /**
+   * Creates a query from cleaned up tokens.
+   *
+   * @param toks  tokens produced by {@link #cleanUp(String)}.
+   * @return a query (possibly null) and, for reduced queries, the statistics of terms.
+   * @throws Exception
+   */
+  public PreparedText prepare(List<String> toks) throws Exception {
+    PreparedText res = new PreparedText();
+
+    if (mPruner != null) {
+      res.mTermQty = mCandProvider.analyzeQuery(toks);
+      LinkedHashMap<String, Integer> keptTermQty = mPruner.prune(res.mTermQty);
+      res.mKeptTermQty = keptTermQty.size();
+      res.mQuery = mCandProvider.buildQuery(keptTermQty);
+    } else if (mDirectQuery) {
+      res.mQuery = mCandProvider.buildQuery(toks);
+    } else {
+      String query = TextCleaner.luceneSafeCleanUp(mSpaceJoin.join(toks)).trim();
+      if (query.isEmpty()) return res;
+      try {
+        res.mQuery = mCandProvider.parseQuery(query);
+      } catch (ParseException e) {
+        ParseException err = new ParseException("Error parsing query: " + query);
+        err.initCause(e);
+        throw err;
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Cleans up a question text and creates a query.
+   *
+   * @param text  a question text.
+   * @return a query or null, if no terms remain after the clean up.
+   * @throws Exception
+   */
+  public Query prepare(String text) throws Exception {
+    return prepare(cleanUp(text)).mQuery;
+  }
+
+  private final LuceneCandidateProvider mCandProvider;
+  private final TextCleaner             mTextCleaner;
+  private final boolean                 mDirectQuery;
+  private final QueryTermPruner         mPruner;
+  private final Joiner                  mSpaceJoin = Joiner.on(' ');
+}
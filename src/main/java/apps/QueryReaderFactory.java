@@ -62,7 +62,8 @@ public class QueryReaderFactory {
       
       TextCleaner    textCleaner = 
           new TextCleaner(new DictNoComments(new File("data/stopwords.txt"), true /* lower case */), 
-                          Source2XML.USE_STANFORD, Source2XML.USE_LEMMATIZER);
+                          Source2XML.USE_STANFORD, Source2XML.USE_LEMMATIZER,
+                          Runtime.getRuntime().availableProcessors());
       
       Joiner   spaceJoin  = Joiner.on(' ');
       
@@ -75,10 +76,16 @@ public class QueryReaderFactory {
                           (Source2XML.USE_STEMMER ? " (class: " + stemmer.getClass().getCanonicalName() +")" :""));
       
       
+      ArrayList<String> queries = new ArrayList<String>();
+      for (int qid = 0; qid < qr.getQueryQty(); ++qid) {
+        queries.add(qr.getQuery(qid));
+      }
+      ArrayList<ArrayList<String>> cleanedQueries = textCleaner.cleanUpBatch(queries);
+      
       for (int qid = 0; qid < qr.getQueryQty(); ++qid) {
         Map<String,String> outputMap = new HashMap<String,String>();
 
-        ArrayList<String> toks = textCleaner.cleanUp(qr.getQuery(qid));
+        ArrayList<String> toks = cleanedQueries.get(qid);
         
         outputMap.put(UtilConst.XML_FIELD_DOCNO, qr.getQueryId(qid));
         outputMap.put(UtilConst.XML_FIELD_TEXT,  spaceJoin.join(toks));   
@@ -0,0 +1,227 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package apps;
+
+import java.io.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import source.*;
+
+/**
+ * <p>Builds K sub-indexes (shards) concurrently and merges them into the final index
+ * using {@link IndexWriter#addIndexes(Directory...)}. Each shard has its own
+ * index writer with a K times smaller RAM buffer.</p>
+ *
+ * <p>Sources that read data from many files (ClueWeb, GOV2) are partitioned by file.
+ * Other sources (e.g., Yahoo Answers) are read by a single thread, which
+ * distributes ranges of consecutive records among shards. In this case,
+ * QREL entries are written in the input order.</p>
+ *
+ * <p>Because the fixed BM25 similarity stores exact document lengths and
+ * collection statistics are re-computed for the merged index, the merged index
+ * produces the same scores as the index created by a single writer.</p>
+ *
+ * @author Leonid Boytsov
+ *
+ */
+public class ShardedIndexer {
+  /** The number of consecutive records sent to one shard (if we partition by record range). */
+  public static final int RECORD_BLOCK_SIZE = 1000;
+
+  /**
+   * Constructor.
+   *
+   * @param sourceName        a document source type.
+   * @param inputFileName     an input file or directory.
+   * @param outputDirName     a final index directory: shards are created next to it.
+   * @param qrelWriter        an optional QREL writer (can be null).
+   * @param shardQty          the number of shards.
+   * @param threadQty         the total number of indexing threads (divided among shards).
+   * @param similarity        a similarity to use.
+   * @param ramBufferSizeMB   the total size of the RAM buffer (divided among shards).
+   */
+  public ShardedIndexer(String sourceName, String inputFileName, String outputDirName,
+                        BufferedWriter qrelWriter,
+                        int shardQty, int threadQty,
+                        Similarity similarity, double ramBufferSizeMB) {
+    mSourceName = sourceName;
+    mInputFileName = inputFileName;
+    mQrelWriter = qrelWriter;
+    mShardQty = shardQty;
+    mShardThreadQty = Math.max(1, threadQty / shardQty);
+    mSimilarity = similarity;
+    mShardRamBufferSizeMB = ramBufferSizeMB / shardQty;
+    mPipelines = new IndexingPipeline[shardQty];
+    mShardDirs = new File[shardQty];
+
+    File outputDir = new File(outputDirName).getAbsoluteFile();
+    for (int i = 0; i < shardQty; ++i) {
+      mShardDirs[i] = new File(outputDir.getParentFile(), outputDir.getName() + ".shard" + i);
+    }
+  }
+
+  /**
+   * Makes shard writers and pipelines record per-stage statistics.
+   *
+   * @param stats an indexing statistics object.
+   */
+  public void setStats(IndexingStats stats) {
+    mStats = stats;
+  }
+
+  /**
+   * Builds shards and adds them to the final index.
+   *
+   * @param finalWriter a writer of the final index.
+   * @throws Exception
+   */
+  public void run(IndexWriter finalWriter) throws Exception {
+    System.out.println(String.format("Building %d shards using %d thread(s) and %.0f MB RAM buffer per shard",
+                                      mShardQty, mShardThreadQty, mShardRamBufferSizeMB));
+
+    final DocumentSource[]  shardSources = new DocumentSource[mShardQty];
+    RecordRangeSplitter     splitter = null;
+    BufferedWriter          shardQrelWriter = null;
+
+    if (ContentSourceSource.supportsFilePartition(mSourceName)) {
+      System.out.println("Partitioning input by file");
+      for (int i = 0; i < mShardQty; ++i) {
+        shardSources[i] = new ContentSourceSource(mSourceName, mInputFileName, i, mShardQty);
+      }
+      // Sources partitioned by file do not have a single input order
+      shardQrelWriter = mQrelWriter;
+    } else {
+      System.out.println(String.format("Partitioning input by ranges of %d records", RECORD_BLOCK_SIZE));
+      DocumentSource src = new QrelSavingSource(
+                          SourceFactory.createDocumentSource(mSourceName, mInputFileName),
+                          mQrelWriter);
+      splitter = new RecordRangeSplitter(src, mShardQty, RECORD_BLOCK_SIZE);
+      for (int i = 0; i < mShardQty; ++i) {
+        shardSources[i] = splitter.getShard(i);
+      }
+    }
+
+    final IndexWriter[] shardWriters = new IndexWriter[mShardQty];
+    final Throwable[]   failures = new Throwable[mShardQty];
+    // Other shards fail after the splitter is aborted, the first failure is the actual cause
+    final AtomicInteger firstFailed = new AtomicInteger(-1);
+    Thread[]            threads = new Thread[mShardQty];
+    Directory[]         shardDirs = new Directory[mShardQty];
+
+    try {
+      for (int i = 0; i < mShardQty; ++i) {
+        if (mShardDirs[i].exists()) FileUtils.deleteDirectory(mShardDirs[i]);
+        shardDirs[i] = FSDirectory.open(mShardDirs[i].toPath());
+        shardWriters[i] = new IndexWriter(mStats != null ? mStats.wrapDirectory(shardDirs[i]) : shardDirs[i],
+            LuceneIndexer.createIndexConfig(mSimilarity, mShardRamBufferSizeMB, OpenMode.CREATE, mStats));
+        mPipelines[i] = new IndexingPipeline(shardWriters[i], shardQrelWriter, mShardThreadQty);
+        if (mStats != null) mPipelines[i].setStats(mStats);
+      }
+
+      for (int i = 0; i < mShardQty; ++i) {
+        final int shardId = i;
+        final RecordRangeSplitter fsplitter = splitter;
+        threads[i] = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              mPipelines[shardId].run(shardSources[shardId]);
+              shardWriters[shardId].close();
+            } catch (Throwable e) {
+              System.err.println("Failed to build the shard " + shardId + ": " + e);
+              e.printStackTrace();
+              failures[shardId] = e;
+              firstFailed.compareAndSet(-1, shardId);
+              if (fsplitter != null) fsplitter.abort();
+            }
+          }
+        }, "shard-" + i);
+        threads[i].start();
+      }
+      for (Thread t : threads) {
+        t.join();
+      }
+      int failed = firstFailed.get();
+      if (failed >= 0) {
+        throw new Exception("Failed to build the shard " + failed + ": " + failures[failed], failures[failed]);
+      }
+
+      System.out.println("Merging shards into the final index");
+      long start = System.currentTimeMillis();
+      finalWriter.addIndexes(shardDirs);
+      System.out.println(String.format("Merging took %.1f sec", (System.currentTimeMillis() - start) / 1000.0));
+    } finally {
+      for (int i = 0; i < mShardQty; ++i) {
+        if (shardWriters[i] != null && shardWriters[i].isOpen()) shardWriters[i].rollback();
+        if (shardDirs[i] != null) shardDirs[i].close();
+        FileUtils.deleteDirectory(mShardDirs[i]);
+      }
+    }
+  }
+
+  /**
+   * @return the total number of documents indexed in all shards so far.
+   */
+  public int getDocQty() {
+    int res = 0;
+    for (IndexingPipeline p : mPipelines) {
+      if (p != null) res += p.getDocQty();
+    }
+    return res;
+  }
+
+  /**
+   * A wrapper that writes QREL entries in the order in which documents
+   * are read from the underlying source.
+   */
+  private static class QrelSavingSource implements DocumentSource {
+    QrelSavingSource(DocumentSource source, BufferedWriter qrelWriter) {
+      mSource = source;
+      mQrelWriter = qrelWriter;
+    }
+
+    @Override
+    public DocumentEntry next() throws IOException {
+      DocumentEntry e = mSource.next();
+      if (e != null && e.mIsRel != null && mQrelWriter != null) {
+        LuceneIndexer.saveQrelOneEntry(mQrelWriter, e.mQueryId, e.mDocId,
+                                       e.mIsRel ? LuceneIndexer.MAX_GRADE:0);
+      }
+      return e;
+    }
+
+    private final DocumentSource  mSource;
+    private final BufferedWriter  mQrelWriter;
+  }
+
+  private final String              mSourceName;
+  private final String              mInputFileName;
+  private final BufferedWriter      mQrelWriter;
+  private final int                 mShardQty;
+  private final int                 mShardThreadQty;
+  private final Similarity          mSimilarity;
+  private final double              mShardRamBufferSizeMB;
+  private final IndexingPipeline[]  mPipelines;
+  private final File[]              mShardDirs;
+  private IndexingStats             mStats = null;
+}
@@ -0,0 +1,155 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package lucene;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.*;
+
+/**
+ * <p>Creates Lucene directories of different types:</p>
+ * <ul>
+ * <li><b>fs</b>: the default implementation chosen by {@link FSDirectory#open(Path)};
+ * <li><b>mmap</b>: {@link MMapDirectory}, files are unmapped when closed (if the JVM permits)
+ *     and can be optionally loaded into memory when opened;
+ * <li><b>nio</b>: {@link NIOFSDirectory};
+ * <li><b>ram</b>: a copy of the index on the Java heap ({@link ByteBuffersDirectory}),
+ *     which makes sense only for small collections and only for searching.
+ * </ul>
+ *
+ * @author Leonid Boytsov
+ *
+ */
+public class DirectoryFactory {
+  public static final String DIR_TYPE_FS = "fs";
+  public static final String DIR_TYPE_MMAP = "mmap";
+  public static final String DIR_TYPE_NIO = "nio";
+  public static final String DIR_TYPE_RAM = "ram";
+
+  public static String [] getDirectoryTypeList() {
+    return new String[] { DIR_TYPE_FS, DIR_TYPE_MMAP, DIR_TYPE_NIO, DIR_TYPE_RAM };
+  }
+
+  /**
+   * Checks the type of a directory: type names are case-insensitive.
+   *
+   * @param dirType   a directory type specified by the user.
+   * @param type      one of the types in {@link #getDirectoryTypeList()}.
+   * @return true if dirType denotes the given type.
+   */
+  public static boolean isType(String dirType, String type) {
+    return dirType.equalsIgnoreCase(type);
+  }
+
+  /**
+   * @param dirType a directory type specified by the user.
+   * @return true if the type is supported by {@link #createDirectory(String, Path, boolean)}.
+   */
+  public static boolean isValidType(String dirType) {
+    for (String type : getDirectoryTypeList()) {
+      if (isType(dirType, type)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Creates a directory.
+   *
+   * @param dirType   a directory type (see {@link #getDirectoryTypeList()}).
+   * @param path      a path to the index.
+   * @param preload   if true, a memory-mapped directory loads files into memory when they are opened
+   *                  (ignored by other directory types).
+   * @return a directory.
+   * @throws Exception
+   */
+  public static Directory createDirectory(String dirType, Path path, boolean preload) throws Exception {
+    if (isType(dirType, DIR_TYPE_FS)) {
+      return FSDirectory.open(path);
+    }
+    if (isType(dirType, DIR_TYPE_MMAP)) {
+      MMapDirectory dir = new MMapDirectory(path);
+      if (MMapDirectory.UNMAP_SUPPORTED) {
+        dir.setUseUnmap(true);
+      } else {
+        System.out.println("Memory-mapped files cannot be unmapped: " + MMapDirectory.UNMAP_NOT_SUPPORTED_REASON);
+      }
+      dir.setPreload(preload);
+      return dir;
+    }
+    if (isType(dirType, DIR_TYPE_NIO)) {
+      return new NIOFSDirectory(path);
+    }
+    if (isType(dirType, DIR_TYPE_RAM)) {
+      ByteBuffersDirectory  dir = new ByteBuffersDirectory();
+      try (FSDirectory      src = FSDirectory.open(path)) {
+        for (String fileName : src.listAll()) {
+          if (fileName.equals(IndexWriter.WRITE_LOCK_NAME)) continue;
+          dir.copyFrom(src, fileName, fileName, IOContext.READONCE);
+        }
+      }
+      return dir;
+    }
+    throw new Exception("Unrecognized directory type: " + dirType);
+  }
+
+  /**
+   * Describes the memory used by the directory: the size of a heap-resident
+   * copy of the index, or the index size and the resident memory of the process
+   * (which includes memory-mapped index files loaded into memory).
+   *
+   * @param dir a directory.
+   * @return a human-readable description.
+   * @throws IOException
+   */
+  public static String getMemoryReport(Directory dir) throws IOException {
+    long indexBytes = 0;
+    for (String fileName : dir.listAll()) {
+      indexBytes += dir.fileLength(fileName);
+    }
+    if (dir instanceof ByteBuffersDirectory) {
+      return String.format("%s, %.1f MB on the Java heap",
+                           dir.getClass().getSimpleName(), indexBytes / 1024.0 / 1024.0);
+    }
+    long rssBytes = getResidentMemory();
+    return String.format("%s, the index size %.1f MB, the resident memory of the process %s",
+                         dir.getClass().getSimpleName(), indexBytes / 1024.0 / 1024.0,
+                         rssBytes < 0 ? "is unknown" : String.format("%.1f MB", rssBytes / 1024.0 / 1024.0));
+  }
+
+  /**
+   * @return the resident memory of the process (in bytes) or -1, if it
+   *         cannot be obtained (only Linux is supported).
+   */
+  public static long getResidentMemory() {
+    try (BufferedReader inp = new BufferedReader(new FileReader("/proc/self/status"))) {
+      String line;
+      while ((line = inp.readLine()) != null) {
+        if (line.startsWith("VmRSS:")) {
+          // The format is VmRSS: <number> kB
+          String[] parts = line.substring("VmRSS:".length()).trim().split("\\s+");
+          return Long.parseLong(parts[0]) * 1024;
+        }
+      }
+    } catch (Exception e) {
+      return -1;
+    }
+    return -1;
+  }
+}
@@ -17,6 +17,7 @@ package lucene;
 import java.util.*;
 import java.io.*;
 import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Document;
@@ -24,7 +25,13 @@ import org.apache.lucene.index.*;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.*;
 import org.apache.lucene.search.similarities.Similarity;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.PagedBytes;
+import org.apache.lucene.util.packed.PackedInts;
+import org.apache.lucene.util.packed.PackedLongValues;
 
 import com.google.common.base.Splitter;
 
@@ -32,6 +39,15 @@ import utils.*;
 import qrels.*;
 
 public class LuceneCandidateProvider {
+  /**
+   * The number of hits that Lucene counts exactly by default (the same value
+   * as in {@link IndexSearcher#search(Query, int)}). After collecting this many hits,
+   * the top-k search can skip non-competitive blocks of documents (block-max WAND).
+   */
+  public static final int DEFAULT_TOTAL_HITS_THRESHOLD = 1000;
+  /** Scoring all matching documents: the top-k search never skips documents. */
+  public static final int EXHAUSTIVE_TOTAL_HITS_THRESHOLD = Integer.MAX_VALUE;
+
   /**
    * Determines if a QREL label defines a relevant entry.
    * 
@@ -53,6 +69,60 @@ public class LuceneCandidateProvider {
   }
 
   public LuceneCandidateProvider(String indexDirName, Analyzer analyzer, Similarity similarity) throws Exception {
+    this(indexDirName, analyzer, similarity, false);
+  }
+
+  /**
+   * Creates a provider that shares the index and the document ID cache with 
+   * another provider, but uses a different similarity. Because the fixed BM25 similarity 
+   * stores exact document lengths, this permits changing BM25 parameters at query time.
+   * 
+   * @param other       a provider whose index is shared.
+   * @param similarity  a similarity.
+   */
+  public LuceneCandidateProvider(LuceneCandidateProvider other, Similarity similarity) {
+    mSimilarity = similarity;
+    mAnalyzer = other.mAnalyzer;
+    mReader = other.mReader;
+    mIdTables = other.mIdTables;
+    mSearchExecutor = other.mSearchExecutor;
+    mSliceMaxDocs = other.mSliceMaxDocs;
+    mSearcher = createSearcher();
+    
+    mParser = createParserHolder(mAnalyzer);
+    mQueryBuilder = new WeightedTermQueryBuilder(mAnalyzer, UtilConst.FIELD_TEXT);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param indexDirName  an index directory.
+   * @param analyzer      an analyzer.
+   * @param similarity    a similarity.
+   * @param cacheIds      if true, document IDs of all segments are loaded into memory
+   *                      when the index is opened.
+   * @throws Exception
+   */
+  public LuceneCandidateProvider(String indexDirName, Analyzer analyzer, Similarity similarity,
+                                 boolean cacheIds) throws Exception {
+    this(indexDirName, DirectoryFactory.DIR_TYPE_FS, false, analyzer, similarity, cacheIds);
+  }
+  
+  /**
+   * Constructor.
+   * 
+   * @param indexDirName  an index directory.
+   * @param dirType       a type of the Lucene directory (see {@link DirectoryFactory}).
+   * @param preload       if true, a memory-mapped directory loads index files into memory.
+   * @param analyzer      an analyzer.
+   * @param similarity    a similarity.
+   * @param cacheIds      if true, document IDs of all segments are loaded into memory
+   *                      when the index is opened.
+   * @throws Exception
+   */
+  public LuceneCandidateProvider(String indexDirName, String dirType, boolean preload,
+                                 Analyzer analyzer, Similarity similarity,
+                                 boolean cacheIds) throws Exception {
     File indexDir = new File(indexDirName);
     mSimilarity = similarity;
     mAnalyzer = analyzer;
@@ -60,39 +130,273 @@ public class LuceneCandidateProvider {
     if (!indexDir.exists()) {
       throw new Exception(String.format("Directory '%s' doesn't exist", indexDirName)); 
     }
-    mReader = DirectoryReader.open(FSDirectory.open(Paths.get(indexDirName)));
-    mSearcher = new IndexSearcher(mReader);
-    mSearcher.setSimilarity(mSimilarity);
+    mReader = DirectoryReader.open(DirectoryFactory.createDirectory(dirType, Paths.get(indexDirName), preload));
+    mSearcher = createSearcher();
     
-    mParser = new QueryParser(UtilConst.FIELD_TEXT, mAnalyzer);
-    mParser.setDefaultOperator(QueryParser.OR_OPERATOR);
+    mParser = createParserHolder(mAnalyzer);
+    mQueryBuilder = new WeightedTermQueryBuilder(mAnalyzer, UtilConst.FIELD_TEXT);
+    
+    if (cacheIds) {
+      long start = System.currentTimeMillis();
+      mIdTables = new SegmentIdTable[mReader.leaves().size()];
+      long totalBytes = 0;
+      for (LeafReaderContext leaf : mReader.leaves()) {
+        mIdTables[leaf.ord] = new SegmentIdTable(leaf.reader());
+        totalBytes += mIdTables[leaf.ord].ramBytesUsed();
+      }
+      System.out.println(String.format("Cached document IDs of %d segments (%.1f MB) in %d ms",
+                                       mIdTables.length, totalBytes / 1024.0 / 1024.0, 
+                                       System.currentTimeMillis() - start));
+    }
+  }
+  
+  /**
+   * Makes each query search index segments in parallel. Segments are grouped
+   * into slices: each slice is searched by one thread. Per-slice results are merged
+   * so that ties are broken by document IDs, exactly as in the sequential search.
+   * Hence, results and scores are the same as in the sequential search.
+   * 
+   * @param executor      an executor (shared by all queries) or null to search sequentially.
+   * @param sliceMaxDocs  the maximum number of documents in a slice: consecutive segments
+   *                      are grouped until the slice becomes that large (a larger segment
+   *                      is always a slice on its own); if zero, each segment is a separate slice.
+   */
+  public void setSearchExecutor(ExecutorService executor, int sliceMaxDocs) {
+    mSearchExecutor = executor;
+    mSliceMaxDocs = sliceMaxDocs;
+    mSearcher = createSearcher();
+  }
+  
+  /**
+   * @return the number of slices searched in parallel, or 1 if the search is sequential.
+   */
+  public int getSliceQty() {
+    IndexSearcher.LeafSlice[] slices = mSearcher.getSlices();
+    return slices == null ? 1 : slices.length;
+  }
+  
+  private IndexSearcher createSearcher() {
+    IndexSearcher searcher = null;
+    if (mSearchExecutor == null) {
+      searcher = new IndexSearcher(mReader);
+    } else {
+      final int sliceMaxDocs = mSliceMaxDocs;
+      searcher = new IndexSearcher(mReader, mSearchExecutor) {
+        @Override
+        protected LeafSlice[] slices(List<LeafReaderContext> leaves) {
+          if (sliceMaxDocs <= 0) return super.slices(leaves);
+          // Segments must remain in the order of document IDs, 
+          // otherwise ties would be broken differently.
+          ArrayList<LeafSlice>          slices = new ArrayList<LeafSlice>();
+          ArrayList<LeafReaderContext>  curr = new ArrayList<LeafReaderContext>();
+          int                           currDocQty = 0;
+          for (LeafReaderContext leaf : leaves) {
+            int docQty = leaf.reader().maxDoc();
+            if (!curr.isEmpty() && currDocQty + docQty > sliceMaxDocs) {
+              slices.add(new LeafSlice(curr.toArray(new LeafReaderContext[curr.size()])));
+              curr.clear();
+              currDocQty = 0;
+            }
+            curr.add(leaf);
+            currDocQty += docQty;
+          }
+          if (!curr.isEmpty()) {
+            slices.add(new LeafSlice(curr.toArray(new LeafReaderContext[curr.size()])));
+          }
+          return slices.toArray(new LeafSlice[slices.size()]);
+        }
+      };
+    }
+    searcher.setSimilarity(mSimilarity);
+    return searcher;
+  }
+  
+  /**
+   * @return the directory of the index.
+   */
+  public Directory getDirectory() {
+    return ((DirectoryReader) mReader).directory();
+  }
+  
+  /**
+   * Sequentially reads index files that are accessed during the search
+   * (terms, postings, norms, doc values, and compound files), so that they 
+   * are cached by the operating system. Stored fields and positions are not read.
+   * 
+   * @return the number of bytes read.
+   * @throws IOException
+   */
+  public long preloadIndexFiles() throws IOException {
+    Directory dir = getDirectory();
+    byte[]    buf = new byte[PRELOAD_BUFFER_SIZE];
+    long      totalBytes = 0;
+    
+    for (String fileName : dir.listAll()) {
+      int pos = fileName.lastIndexOf('.');
+      if (pos < 0 || !PRELOAD_EXTENSIONS.contains(fileName.substring(pos + 1))) continue;
+      try (IndexInput inp = dir.openInput(fileName, IOContext.READONCE)) {
+        long left = inp.length();
+        while (left > 0) {
+          int len = (int) Math.min(left, buf.length);
+          inp.readBytes(buf, 0, len);
+          left -= len;
+        }
+        totalBytes += inp.length();
+      }
+    }
+    return totalBytes;
   }
   
   public ResEntry[] getCandidates(int queryNum, 
                                 String query, 
                                 int maxQty) throws Exception {
+    return getCandidates(queryNum, query, maxQty, DEFAULT_TOTAL_HITS_THRESHOLD);
+  }
+  
+  /**
+   * Retrieves top-k candidates.
+   * 
+   * @param queryNum            a query number.
+   * @param query               a query text.
+   * @param maxQty              the maximum number of candidates.
+   * @param totalHitsThreshold  the number of hits that are counted exactly: 
+   *                            use {@link #EXHAUSTIVE_TOTAL_HITS_THRESHOLD} to score all matching documents.
+   * @return an array of candidates sorted by score.
+   * @throws Exception
+   */
+  public ResEntry[] getCandidates(int queryNum, 
+                                  String query, 
+                                  int maxQty,
+                                  final int totalHitsThreshold) throws Exception {
+    return getCandidates(parseQuery(query), maxQty, totalHitsThreshold);
+  }
+  
+  /**
+   * A query parser isn't thread-safe, so each thread gets its own copy.
+   */
+  private static ThreadLocal<QueryParser> createParserHolder(final Analyzer analyzer) {
+    return new ThreadLocal<QueryParser>() {
+      @Override
+      protected QueryParser initialValue() {
+        QueryParser parser = new QueryParser(UtilConst.FIELD_TEXT, analyzer);
+        parser.setDefaultOperator(QueryParser.OR_OPERATOR);
+        return parser;
+      }
+    };
+  }
+  
+  /**
+   * The maximum number of clauses is a global setting: it can be increased
+   * concurrently by several query threads, but it should never decrease.
+   */
+  private static synchronized void ensureMaxClauseCount(int clauseQty) {
+    if (clauseQty > BooleanQuery.getMaxClauseCount()) {
+      BooleanQuery.setMaxClauseCount(clauseQty);
+    }
+  }
+  
+  /**
+   * Parses a query. A parsed query can be executed by any provider
+   * that shares the index with this one (e.g., using different similarities).
+   * 
+   * @param query a query text.
+   * @return a parsed query.
+   * @throws Exception
+   */
+  public Query parseQuery(String query) throws Exception {
     ArrayList<String>   toks = new ArrayList<String>();
     for (String s: mSpaceSplit.split(query)) {  
       toks.add(s);
     }
-    if (2 * toks.size() > BooleanQuery.getMaxClauseCount()) {
-      // This a heuristic, but it should work fine in many cases
-      BooleanQuery.setMaxClauseCount(2 * toks.size());
-    }
+    // This a heuristic, but it should work fine in many cases
+    ensureMaxClauseCount(2 * toks.size());
 
+    return mParser.get().parse(query);
+  }
+  
+  /**
+   * Creates a query directly from tokens, without using the query parser
+   * (see {@link WeightedTermQueryBuilder}).
+   * 
+   * @param toks  a list of (cleaned up) query tokens: special characters need not be escaped.
+   * @return a query, or null if no terms remain after the analysis.
+   * @throws Exception
+   */
+  public Query buildQuery(List<String> toks) throws Exception {
+    return mQueryBuilder.build(toks);
+  }
+  
+  /**
+   * Analyzes query tokens and counts occurrences of each term.
+   * 
+   * @param toks  a list of (cleaned up) query tokens.
+   * @return a map from terms to their frequencies (in the order of the first occurrence).
+   * @throws Exception
+   */
+  public LinkedHashMap<String, Integer> analyzeQuery(List<String> toks) throws Exception {
+    return mQueryBuilder.analyze(toks);
+  }
+  
+  /**
+   * Creates a query from analyzed terms (e.g., selected by a {@link QueryTermPruner}).
+   * 
+   * @param termQty a map from terms to their frequencies in the query.
+   * @return a query, or null if the map is empty.
+   */
+  public Query buildQuery(Map<String, Integer> termQty) {
+    return mQueryBuilder.build(termQty);
+  }
+  
+  /**
+   * Creates an object that reduces long queries using statistics of this index.
+   * 
+   * @param maxTermQty    the maximum number of terms to keep (zero means no limit).
+   * @param weightShare   the minimum share of the total query weight to keep (1 means no limit).
+   * @param useQtf        if true, terms are weighted by IDF multiplied by the query term frequency.
+   */
+  public QueryTermPruner createTermPruner(int maxTermQty, double weightShare, boolean useQtf) {
+    return new QueryTermPruner(mReader, UtilConst.FIELD_TEXT, maxTermQty, weightShare, useQtf);
+  }
+  
+  /**
+   * Retrieves top-k candidates for a parsed query.
+   * 
+   * @param queryParsed         a parsed query.
+   * @param maxQty              the maximum number of candidates.
+   * @param totalHitsThreshold  the number of hits that are counted exactly: 
+   *                            use {@link #EXHAUSTIVE_TOTAL_HITS_THRESHOLD} to score all matching documents.
+   * @return an array of candidates sorted by score.
+   * @throws Exception
+   */
+  public ResEntry[] getCandidates(Query queryParsed, 
+                                  int maxQty,
+                                  final int totalHitsThreshold) throws Exception {
     ArrayList<ResEntry> resArr = new ArrayList<ResEntry>();
     
-    Query       queryParsed = mParser.parse(query);
-    
-    TopDocs     hits = mSearcher.search(queryParsed, maxQty);
+    final int   numHits = Math.max(1, Math.min(maxQty, mReader.maxDoc()));
+    TopDocs     hits = mSearcher.search(queryParsed, 
+        new CollectorManager<TopScoreDocCollector, TopDocs>() {
+          @Override
+          public TopScoreDocCollector newCollector() throws IOException {
+            return TopScoreDocCollector.create(numHits, totalHitsThreshold);
+          }
+
+          @Override
+          public TopDocs reduce(Collection<TopScoreDocCollector> collectors) throws IOException {
+            TopDocs[] topDocs = new TopDocs[collectors.size()];
+            int i = 0;
+            for (TopScoreDocCollector c : collectors) {
+              topDocs[i++] = c.topDocs();
+            }
+            return TopDocs.merge(numHits, topDocs);
+          }
+        });
     ScoreDoc[]  scoreDocs = hits.scoreDocs;
     
-    for (ScoreDoc oneHit: scoreDocs) {
-      Document doc = mSearcher.doc(oneHit.doc);
-      String id = doc.get(UtilConst.FIELD_ID);
-      float score = oneHit.score;
-      
-      resArr.add(new ResEntry(id, score));
+    String[]    ids = getDocIds(scoreDocs);
+    
+    for (int i = 0; i < scoreDocs.length; ++i) {
+      resArr.add(new ResEntry(ids[i], scoreDocs[i].score));
     }
     
     ResEntry[] results = resArr.toArray(new ResEntry[resArr.size()]);
@@ -101,11 +405,128 @@ public class LuceneCandidateProvider {
     return results;
   }
   
+  /**
+   * Retrieves external document IDs. IDs are read from the in-memory table (if it exists),
+   * or from doc values. Indexes without ID doc values (created by older versions
+   * of the indexer) are handled by reading stored fields.
+   * 
+   * @param scoreDocs an array of hits.
+   * @return an array of document IDs (in the same order as hits).
+   * @throws IOException
+   */
+  private String[] getDocIds(ScoreDoc[] scoreDocs) throws IOException {
+    String[]                  ids = new String[scoreDocs.length];
+    List<LeafReaderContext>   leaves = mReader.leaves();
+    
+    if (mIdTables != null) {
+      for (int i = 0; i < scoreDocs.length; ++i) {
+        int leafId = ReaderUtil.subIndex(scoreDocs[i].doc, leaves);
+        ids[i] = mIdTables[leafId].get(scoreDocs[i].doc - leaves.get(leafId).docBase);
+      }
+      return ids;
+    }
+    
+    // Doc values iterators can only move forward, so let's visit hits in the order of doc IDs
+    Integer[] order = new Integer[scoreDocs.length];
+    for (int i = 0; i < order.length; ++i) order[i] = i;
+    final ScoreDoc[] fscoreDocs = scoreDocs;
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer o1, Integer o2) {
+        return Integer.compare(fscoreDocs[o1].doc, fscoreDocs[o2].doc);
+      }
+    });
+    
+    int                 currLeafId = -1;
+    BinaryDocValues     currValues = null;
+    LeafReaderContext   currLeaf = null;
+    
+    for (int i : order) {
+      int docId = scoreDocs[i].doc;
+      int leafId = ReaderUtil.subIndex(docId, leaves);
+      if (leafId != currLeafId) {
+        currLeafId = leafId;
+        currLeaf = leaves.get(leafId);
+        currValues = currLeaf.reader().getBinaryDocValues(UtilConst.FIELD_ID);
+      }
+      if (currValues != null && currValues.advanceExact(docId - currLeaf.docBase)) {
+        ids[i] = currValues.binaryValue().utf8ToString();
+      } else {
+        Document doc = mSearcher.doc(docId, mIdFieldSet);
+        ids[i] = doc.get(UtilConst.FIELD_ID);
+      }
+    }
+    
+    return ids;
+  }
+  
+  /**
+   * A compact in-memory table of document IDs of one segment: 
+   * length-prefixed UTF-8 bytes of all IDs are concatenated and stored in paged memory 
+   * with 64-bit (packed) offsets. Thus, the table is not limited to 2GB of IDs 
+   * (e.g., a force-merged ClueWeb segment).
+   */
+  private static class SegmentIdTable {
+    SegmentIdTable(LeafReader reader) throws IOException {
+      int maxDoc = reader.maxDoc();
+      PagedBytes                  data = new PagedBytes(PAGE_BITS);
+      PackedLongValues.Builder    offsets = PackedLongValues.monotonicBuilder(PackedInts.COMPACT);
+      BytesRef                    noId = new BytesRef();
+      
+      BinaryDocValues   values = reader.getBinaryDocValues(UtilConst.FIELD_ID);
+      Set<String>       fieldSet = Collections.singleton(UtilConst.FIELD_ID);
+      
+      for (int docId = 0; docId < maxDoc; ++docId) {
+        BytesRef id = null;
+        if (values != null && values.advanceExact(docId)) {
+          id = values.binaryValue();
+        } else {
+          String s = reader.document(docId, fieldSet).get(UtilConst.FIELD_ID);
+          if (s != null) id = new BytesRef(s);
+        }
+        if (id != null && id.length > MAX_ID_LEN) {
+          throw new IOException(String.format("The ID of the document %d is too long: %d bytes", 
+                                              docId, id.length));
+        }
+        offsets.add(data.copyUsingLengthPrefix(id != null ? id : noId));
+      }
+      mOffsets = offsets.build();
+      mData = data.freeze(true);
+    }
+    
+    String get(int docId) {
+      BytesRef id = new BytesRef();
+      mData.fill(id, mOffsets.get(docId));
+      return id.utf8ToString();
+    }
+    
+    long ramBytesUsed() {
+      return mData.ramBytesUsed() + mOffsets.ramBytesUsed();
+    }
+    
+    private static final int PAGE_BITS = 16;
+    // The limit of PagedBytes.copyUsingLengthPrefix
+    private static final int MAX_ID_LEN = 32767;
+    
+    private final PackedLongValues  mOffsets;
+    private final PagedBytes.Reader mData;
+  }
+  
   private IndexReader   mReader = null;
   private IndexSearcher mSearcher = null;
   private Similarity    mSimilarity = null;
   private Analyzer      mAnalyzer = null;
-  private QueryParser   mParser = null;
+  private ThreadLocal<QueryParser> mParser = null;
+  private WeightedTermQueryBuilder mQueryBuilder = null;
+  private SegmentIdTable[] mIdTables = null;
+  private ExecutorService mSearchExecutor = null;
+  private int           mSliceMaxDocs = 0;
+  
+  private static final Set<String> PRELOAD_EXTENSIONS = 
+      new HashSet<String>(Arrays.asList("tim", "tip", "doc", "nvd", "nvm", "dvd", "dvm", "cfs", "cfe"));
+  private static final int PRELOAD_BUFFER_SIZE = 1024 * 1024;
+  
+  private static Set<String> mIdFieldSet = Collections.singleton(UtilConst.FIELD_ID);
 
   private static Splitter mSpaceSplit = Splitter.on(' ').omitEmptyStrings().trimResults();
 
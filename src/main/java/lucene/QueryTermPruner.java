@@ -0,0 +1,114 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package lucene;
+
+import java.io.IOException;
+import java.util.*;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+
+/**
+ * <p>Reduces long (verbose) queries by keeping only the most important terms.
+ * The importance of a term is its BM25 IDF, optionally multiplied by the number
+ * of occurrences of the term in the query (qtf). Terms that don't occur
+ * in the index are always removed, because they cannot match any document.</p>
+ *
+ * <p>Terms are selected in the order of decreasing weights until either the maximum
+ * number of terms is reached, or the selected terms have the given share of the total
+ * query weight. At least one term that occurs in the index is kept; if no term occurs
+ * in the index, the result is empty. The pruner is thread-safe.</p>
+ *
+ * @author Leonid Boytsov
+ *
+ */
+public class QueryTermPruner {
+  /**
+   * Constructor.
+   *
+   * @param reader        an index reader (to obtain document frequencies).
+   * @param fieldName     a name of the field.
+   * @param maxTermQty    the maximum number of terms to keep, or zero if the number isn't limited.
+   * @param weightShare   keep terms until their cumulative weight reaches this share
+   *                      of the total query weight: 1 means no limit.
+   * @param useQtf        if true, the term weight is IDF multiplied by the query term frequency.
+   */
+  public QueryTermPruner(IndexReader reader, String fieldName,
+                         int maxTermQty, double weightShare, boolean useQtf) {
+    mReader = reader;
+    mFieldName = fieldName;
+    mMaxTermQty = maxTermQty;
+    mWeightShare = weightShare;
+    mUseQtf = useQtf;
+  }
+
+  /**
+   * Selects the most important terms.
+   *
+   * @param termQty   a map from query terms to their frequencies in the query.
+   * @return selected terms with their frequencies (in the original order).
+   * @throws IOException
+   */
+  public LinkedHashMap<String, Integer> prune(LinkedHashMap<String, Integer> termQty) throws IOException {
+    final HashMap<String, Double> weights = new HashMap<String, Double>();
+    ArrayList<String>             terms = new ArrayList<String>();
+    double                        totalWeight = 0;
+    long                          docQty = Math.max(1, mReader.getDocCount(mFieldName));
+
+    for (Map.Entry<String, Integer> e : termQty.entrySet()) {
+      int df = mReader.docFreq(new Term(mFieldName, e.getKey()));
+      if (df == 0) continue;
+      // The same formula as in BM25SimilarityFix
+      double w = Math.log(1 + (docQty - df + 0.5D) / (df + 0.5D));
+      if (mUseQtf) w *= e.getValue();
+      weights.put(e.getKey(), w);
+      terms.add(e.getKey());
+      totalWeight += w;
+    }
+
+    // The sort is stable: terms with equal weights are kept in the original order
+    Collections.sort(terms, new Comparator<String>() {
+      @Override
+      public int compare(String o1, String o2) {
+        return Double.compare(weights.get(o2), weights.get(o1));
+      }
+    });
+
+    HashSet<String> keep = new HashSet<String>();
+    double          keptWeight = 0;
+
+    for (String term : terms) {
+      if (!keep.isEmpty()) {
+        if (mMaxTermQty > 0 && keep.size() >= mMaxTermQty) break;
+        if (keptWeight >= mWeightShare * totalWeight) break;
+      }
+      keep.add(term);
+      keptWeight += weights.get(term);
+    }
+
+    LinkedHashMap<String, Integer> res = new LinkedHashMap<String, Integer>();
+    for (Map.Entry<String, Integer> e : termQty.entrySet()) {
+      if (keep.contains(e.getKey())) res.put(e.getKey(), e.getValue());
+    }
+    return res;
+  }
+
+  private final IndexReader mReader;
+  private final String      mFieldName;
+  private final int         mMaxTermQty;
+  private final double      mWeightShare;
+  private final boolean     mUseQtf;
+}
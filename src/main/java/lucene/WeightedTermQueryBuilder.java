@@ -0,0 +1,127 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+
+import com.google.common.base.Joiner;
+
+/**
+ * <p>Creates a bag-of-words query directly from a list of tokens, bypassing
+ * the classic query parser (and the escaping of special characters it requires).
+ * Tokens are analyzed and repeated terms are merged into a single term query,
+ * whose boost is equal to the number of occurrences. This produces the same
+ * ranking as a query with repeated clauses, but each term is scored only once.</p>
+ *
+ * <p>The global limit on the number of clauses is never changed: if a query has
+ * too many distinct terms, term queries are split into several nested Boolean queries.
+ * The builder is thread-safe.</p>
+ *
+ * @author Leonid Boytsov
+ *
+ */
+public class WeightedTermQueryBuilder {
+  public WeightedTermQueryBuilder(Analyzer analyzer, String fieldName) {
+    mAnalyzer = analyzer;
+    mFieldName = fieldName;
+  }
+
+  /**
+   * Creates a query.
+   *
+   * @param toks  a list of (cleaned up) tokens.
+   * @return a query or null, if there are no terms left after the analysis.
+   * @throws IOException
+   */
+  public Query build(List<String> toks) throws IOException {
+    return build(analyze(toks));
+  }
+
+  /**
+   * Creates a query from analyzed terms.
+   *
+   * @param termQty a map from terms to their frequencies in the query, e.g., produced by {@link #analyze(List)}.
+   * @return a query or null, if the map is empty.
+   */
+  public Query build(Map<String, Integer> termQty) {
+    if (termQty.isEmpty()) return null;
+
+    ArrayList<Query> termQueries = new ArrayList<Query>(termQty.size());
+    for (Map.Entry<String, Integer> e : termQty.entrySet()) {
+      Query q = new TermQuery(new Term(mFieldName, e.getKey()));
+      termQueries.add(e.getValue() > 1 ? new BoostQuery(q, e.getValue()) : q);
+    }
+
+    return createDisjunction(termQueries);
+  }
+
+  /**
+   * Analyzes tokens and counts occurrences of each term.
+   *
+   * @param toks  a list of tokens.
+   * @return a map from terms to their frequencies (in the order of the first occurrence).
+   * @throws IOException
+   */
+  public LinkedHashMap<String, Integer> analyze(List<String> toks) throws IOException {
+    LinkedHashMap<String, Integer> res = new LinkedHashMap<String, Integer>();
+
+    try (TokenStream ts = mAnalyzer.tokenStream(mFieldName, mSpaceJoin.join(toks))) {
+      CharTermAttribute termAttr = ts.addAttribute(CharTermAttribute.class);
+      ts.reset();
+      while (ts.incrementToken()) {
+        String term = termAttr.toString();
+        Integer qty = res.get(term);
+        res.put(term, qty == null ? 1 : qty + 1);
+      }
+      ts.end();
+    }
+
+    return res;
+  }
+
+  private static Query createDisjunction(List<Query> clauses) {
+    int maxClauseQty = BooleanQuery.getMaxClauseCount();
+
+    if (clauses.size() > maxClauseQty) {
+      // Each nested query has at most maxClauseQty clauses
+      ArrayList<Query> nested = new ArrayList<Query>();
+      for (int start = 0; start < clauses.size(); start += maxClauseQty) {
+        nested.add(createDisjunction(clauses.subList(start, Math.min(clauses.size(), start + maxClauseQty))));
+      }
+      return createDisjunction(nested);
+    }
+
+    BooleanQuery.Builder builder = new BooleanQuery.Builder();
+    for (Query q : clauses) {
+      builder.add(q, BooleanClause.Occur.SHOULD);
+    }
+    return builder.build();
+  }
+
+  private final Analyzer  mAnalyzer;
+  private final String    mFieldName;
+  private final Joiner    mSpaceJoin = Joiner.on(' ');
+}
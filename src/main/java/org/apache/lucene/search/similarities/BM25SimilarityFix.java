@@ -36,10 +36,36 @@ import org.apache.lucene.util.SmallFloat;
  * 
  * This version (created by Leonid Boytsov) doesn't use a lossy one-byte approximation for the normalization factor.
  * 
+ * Top-k search with block-max WAND: Lucene computes an upper bound of scores in a block
+ * of postings by calling {@link SimScorer#score(float, long)} for the competitive (freq, norm)
+ * pairs (impacts) stored in the index. This is correct as long as the score does not decrease 
+ * when freq increases and does not increase when the norm increases (norms are compared
+ * as unsigned longs). Both conditions hold here: the norm is a non-negative document length,
+ * which enters the denominator with a non-negative coefficient <code>k1 * b / avgdl</code>,
+ * and <code>freq / (freq + c)</code> is non-decreasing in freq for <code>c &gt;= 0</code>.
+ * Because the index stores exact lengths rather than their lossy one-byte approximations, the bounds
+ * are also tight: the maximum score in a block is attained by one of its impacts.
+ * Impacts of documents longer than 127 tokens are not accumulated in a fixed-size array,
+ * but Lucene still keeps only pairs that are not dominated by other pairs.
+ * 
+ * Optionally, the length-dependent part of the denominator, i.e., <code>k1 * b * dl / avgdl</code>,
+ * can be precomputed for short documents (whose length is smaller than the size of the cache). 
+ * Each scorer builds its own table for the average length of its field, so the similarity
+ * itself has no mutable state. Scoring of short documents then requires a table lookup instead
+ * of an integer-to-float conversion and a multiplication. The terms of the denominator are added
+ * in the same order, so scores are exactly the same as scores computed without the cache. 
+ * Precomputing the complete normalization factor <code>k1 * (1 - b + b * dl / avgdl)</code> would
+ * save one more addition, but it would change the order of additions and, consequently, 
+ * the last bits of scores (and the order of documents with nearly equal scores).
+ * 
  */
 public class BM25SimilarityFix extends Similarity {
+  /** A size of the length normalization cache that covers most community QA answers. */
+  public static final int DEFAULT_NORM_CACHE_SIZE = 1024;
+
   private final float k1;
   private final float b;
+  private final int normCacheSize;
 
   /**
    * BM25 with the supplied parameter values.
@@ -49,6 +75,22 @@ public class BM25SimilarityFix extends Similarity {
    *         not within the range {@code [0..1]}
    */
   public BM25SimilarityFix(float k1, float b) {
+    this(k1, b, 0);
+  }
+
+  /**
+   * BM25 with the supplied parameter values and an optional length normalization cache.
+   * @param k1 Controls non-linear term frequency normalization (saturation).
+   * @param b Controls to what degree document length normalizes tf values.
+   * @param normCacheSize The length-dependent factor is precomputed for documents shorter
+   *        than this value, zero disables the cache.
+   * @throws IllegalArgumentException if {@code k1} is infinite or negative, if {@code b} is 
+   *         not within the range {@code [0..1]}, or if {@code normCacheSize} is negative
+   */
+  public BM25SimilarityFix(float k1, float b, int normCacheSize) {
+    if (normCacheSize < 0) {
+      throw new IllegalArgumentException("illegal normCacheSize value: " + normCacheSize + ", must be non-negative");
+    }
     if (Float.isFinite(k1) == false || k1 < 0) {
       throw new IllegalArgumentException("illegal k1 value: " + k1 + ", must be a non-negative finite value");
     }
@@ -57,6 +99,7 @@ public class BM25SimilarityFix extends Similarity {
     }
     this.k1 = k1;
     this.b  = b;
+    this.normCacheSize = normCacheSize;
   }
   
   /** BM25 with these default values:
@@ -178,7 +221,7 @@ public class BM25SimilarityFix extends Similarity {
     Explanation idf = termStats.length == 1 ? idfExplain(collectionStats, termStats[0]) : idfExplain(collectionStats, termStats);
     float avgdl = avgFieldLength(collectionStats);
 
-    return new BM25ScorerFixed(boost, k1, b, idf, avgdl);
+    return new BM25ScorerFixed(boost, k1, b, idf, avgdl, normCacheSize);
   }
   
   /** Collection statistics for the BM25 model. */
@@ -196,11 +239,13 @@ public class BM25SimilarityFix extends Similarity {
     
     private final float multK1_b_InvAvgdl;
     private final float multK1minusB;
+    /** Precomputed values of <code>multK1_b_InvAvgdl * dl</code> for short documents (possibly empty). */
+    private final float[] lengthNorms;
 
     /** weight (idf * boost) */
     private final float weight;
 
-    BM25ScorerFixed(float boost, float k1, float b, Explanation idf, float avgdl) {
+    BM25ScorerFixed(float boost, float k1, float b, Explanation idf, float avgdl, int normCacheSize) {
       this.boost = boost;
       this.idf = idf;
       this.avgdl = avgdl;
@@ -211,10 +256,21 @@ public class BM25SimilarityFix extends Similarity {
       this.multK1minusB = k1 * (1 - b);
       // Normally avgdl should be >= 1, but let's use Math.max to avoid division by zero just in case
       this.multK1_b_InvAvgdl = k1 * b / Math.max(1e-10f, avgdl);
+      
+      this.lengthNorms = new float[normCacheSize];
+      for (int len = 0; len < normCacheSize; ++len) {
+        float doclen = len;
+        this.lengthNorms[len] = this.multK1_b_InvAvgdl * doclen;
+      }
     }
 
     @Override
     public float score(float freq, long norm) {
+      if (norm >= 0 && norm < this.lengthNorms.length) {
+        float wf = this.weight * freq;
+        float denom = freq + this.multK1minusB + this.lengthNorms[(int) norm];
+        return wf / denom;
+      }
       float doclen = norm;
       float wf = this.weight * freq;
       float denom = freq + this.multK1minusB + this.multK1_b_InvAvgdl * doclen;
@@ -9,7 +9,6 @@ package parsers;
  * 
  */
 
-import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -19,7 +18,12 @@ import java.text.DateFormat;
 import java.text.ParsePosition;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.Properties;
+import java.util.ArrayDeque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.io.comparator.PathFileComparator;
 
@@ -29,7 +33,7 @@ import org.apache.lucene.benchmark.byTask.feeds.NoMoreDataException;
 import org.apache.lucene.benchmark.byTask.utils.Config;
 import org.apache.lucene.benchmark.byTask.utils.StreamUtils;
 
-import edu.cmu.lemurproject.WarcRecord;;
+import utils.StageStats;
 
 /**
  * Implements a ContentSource for the TREC ClueWeb09/12 collections.
@@ -44,14 +48,28 @@ import edu.cmu.lemurproject.WarcRecord;;
  * (<b>default=trec</b>).
  * <li><b>html.parser</b> - specifies the {@link HTMLParser} class to use for
  * parsing the HTML parts of the TREC documents content (<b>default=DemoHTMLParser</b>).
+ * <li><b>docs.shard.qty</b>, <b>docs.shard.id</b> - if the number of shards is
+ * larger than one, only every <code>docs.shard.qty</code>-th input file
+ * (starting from the file number <code>docs.shard.id</code>) is read
+ * (<b>default=1 and 0</b>).
+ * <li><b>docs.reader.threads</b> - if positive, each input file is read by its own
+ * task: this number of reader threads decompress files, extract WARC records, and parse HTML
+ * independently, documents are passed to consumers via bounded queues (<b>default=0</b>,
+ * i.e., files are read one by one by consumer threads).
+ * <li><b>docs.reader.ordered</b> - if true, reader threads return documents in the same
+ * order as a sequential reader; otherwise, documents are returned as soon as they are read.
+ * Only in the ordered mode, the source position can be saved and restored
+ * (<b>default=false</b>).
  * </ul>
+ * <p>In the parallel mode, input files are read only once (<b>content.source.forever</b>
+ * should be false) and records that cannot be parsed are skipped.</p>
  * 
  * @author Leonid Boytsov
  * 
  * Re-using some of the code from org.apache.lucene.benchmark.byTask.feeds.TrecContentSource
  * 
  */
-public class ClueWebContentSource extends ContentSourceDateUtil {
+public class ClueWebContentSource extends ContentSourceDateUtil implements SeekableContentSource {
 
   static final class DateFormatInfo {
     DateFormat[] dfs;
@@ -61,14 +79,60 @@ public class ClueWebContentSource extends ContentSourceDateUtil {
   private File dataDir = null;
   private ArrayList<Path> inputFiles = new ArrayList<Path>();
   private int nextFile = 0;
+  // The number of documents read from the current file
+  private int docInFileQty = 0;
   // Use to synchronize threads on reading from the TREC documents.
   private Object lock = new Object();
 
   // Required for test
-  DataInputStream reader;
+  WarcReader reader;
   int iteration = 0;
   HTMLParser htmlParser;
+  
+  // The parallel mode: the number of reader threads (zero means sequential reading)
+  private int readerThreadQty = 0;
+  private boolean orderedRead = false;
+  private ExecutorService readerPool = null;
+  // The ordered mode: queues of files (in the order of files) that are not read completely
+  private ArrayDeque<BlockingQueue<ReadItem>> fileQueues = null;
+  // The unordered mode: all reader tasks share one queue
+  private BlockingQueue<ReadItem> sharedQueue = null;
+  private int readFileQty = 0;
+  private int startFileQty = 0;
+  // The first file to read and the number of documents to skip in this file (set by seek)
+  private int readerStartFile = 0;
+  private int skipDocQty = 0;
+  
+  private static final int QUEUE_DOCS_PER_THREAD = 64;
+  
+  /**
+   * A document or an end-of-file marker (docData == null) passed from a reader task.
+   */
+  private static final class ReadItem {
+    ReadItem(DocData docData, int fileId, int docInFileQty, Exception error) {
+      this.docData = docData;
+      this.fileId = fileId;
+      this.docInFileQty = docInFileQty;
+      this.error = error;
+    }
+    
+    final DocData docData;
+    final int fileId;
+    // The number of response records read from the file (including this one)
+    final int docInFileQty;
+    final Exception error;
+  }
     
+  /**
+   * Makes the HTML parser record parsing times. This function should be
+   * called after {@link #setConfig(Config)}, which creates the parser.
+   *
+   * @param stats a stage statistics object.
+   */
+  public void setHtmlParseStats(StageStats stats) {
+    htmlParser = new TimedHTMLParser(htmlParser, stats);
+  }
+  
   void openNextFile() throws NoMoreDataException, IOException {
     close();
 
@@ -88,7 +152,8 @@ public class ClueWebContentSource extends ContentSourceDateUtil {
       try {
         // supports gzip, bzip2, or regular text file, extension is used to detect
         InputStream inputStream = StreamUtils.inputStream(f);   
-        reader = new DataInputStream(inputStream);
+        reader = new WarcReader(inputStream);
+        docInFileQty = 0;
         return;
       } catch (Exception e) {
         if (verbose) {
@@ -102,6 +167,11 @@ public class ClueWebContentSource extends ContentSourceDateUtil {
   
   @Override
   public void close() throws IOException {
+    if (readerThreadQty > 0) {
+      synchronized (lock) {
+        stopReaders();
+      }
+    }
     if (reader == null) {
       return;
     }
@@ -121,33 +191,85 @@ public class ClueWebContentSource extends ContentSourceDateUtil {
   
   @Override
   public DocData getNextDocData(DocData docData) throws NoMoreDataException, IOException {
-    WarcRecord  CurrRec = null;
+    if (readerThreadQty > 0) {
+      DocData res = takeParsedDocData();
+      addItem();
+      return res;
+    }
+    
+    String trecId, url, dateStr, html;
     
     // protect reading from the TREC files by multiple threads. The rest of the
-    // method, i.e., parsing the content and returning the DocData can run unprotected.
+    // method, i.e., parsing the HTML and returning the DocData can run unprotected.
+    // The reader re-uses its buffers, so the HTML body needs to be extracted here.
     synchronized (lock) {
       if (reader == null) {
         openNextFile();
       }
       
+      boolean found;
       do {
-        CurrRec = WarcRecord.readNextWarcRecord(reader);
+        found = reader.next();
         /*
          *  We need to skip special auxiliary entries, e.g., in the
          *  beginning of the file.
          */
         
-      } while (CurrRec != null && !CurrRec.getHeaderRecordType().equals("response"));
+      } while (found && !reader.getType().equals(WarcReader.TYPE_RESPONSE));
       
-      if (CurrRec == null) {
+      if (!found) {
         openNextFile();
         return getNextDocData(docData);
       }
+      ++docInFileQty;
+      
+      trecId = reader.getTrecId();
+      url = reader.getTargetUri();
+      dateStr = reader.getDate();
+      html = isSupportedUrl(url) ? reader.getHttpBodyUTF8() : null;
     }       
  
-    Date    date = parseDate(CurrRec.getHeaderMetadataItem("WARC-Date"));    
-    String  url = CurrRec.getHeaderMetadataItem("WARC-Target-URI");
-    String  trecId = CurrRec.getHeaderMetadataItem("WARC-TREC-ID");
+    DocData parsed = parseRecord(trecId, url, dateStr, html, docData);
+    if (parsed != null) docData = parsed;
+
+    addItem();
+
+    return docData;
+  }
+  
+  private static boolean isSupportedUrl(String url) {
+    return url != null && (url.startsWith("http://") || 
+                           url.startsWith("ftp://") ||
+                           url.startsWith("https://"));
+  }
+  
+  /**
+   * Extracts the fields of a WARC response record. The HTML body is decoded
+   * only for supported URLs.
+   * 
+   * @param rec       a WARC reader positioned at a response record.
+   * @param docData   a document data object to fill.
+   * @return the filled document data object or null if the record cannot be parsed.
+   */
+  private DocData parseRecord(WarcReader rec, DocData docData) throws IOException {
+    String url = rec.getTargetUri();
+    return parseRecord(rec.getTrecId(), url, rec.getDate(), 
+                       isSupportedUrl(url) ? rec.getHttpBodyUTF8() : null, docData);
+  }
+  
+  /**
+   * Parses a WARC response record.
+   * 
+   * @param trecId    the value of WARC-TREC-ID.
+   * @param url       the value of WARC-Target-URI.
+   * @param dateStr   the value of WARC-Date.
+   * @param html      the HTTP response body (null if the URL isn't supported or the body cannot be found). 
+   * @param docData   a document data object to fill.
+   * @return the filled document data object or null if the record cannot be parsed.
+   */
+  private DocData parseRecord(String trecId, String url, String dateStr, String html, 
+                              DocData docData) throws IOException {
+    Date    date = parseDate(dateStr);    
     
     if (null == trecId)
       throw new RuntimeException("No WARC-TREC-ID field for url: '" + url + "'");
@@ -155,22 +277,10 @@ public class ClueWebContentSource extends ContentSourceDateUtil {
       
     // This code segment relies on HtmlParser being thread safe. When we get 
     // here, everything else is already private to that thread, so we're safe.
-    if (url.startsWith("http://") || 
-        url.startsWith("ftp://") ||
-        url.startsWith("https://")
-        ) {          
+    if (isSupportedUrl(url)) {          
       // In ClueWeb09, the HTTP response was incorrectly terminated by \n\n instead of \r\n\r\n
-      // as requested by the standard 
-      // So, to make all ClueWeb12 documents parseable with the old approach, we replace the first
-      // \r\n\r\n with \n\n and will proceed as if we have ClueWeb09
-      String Response = CurrRec.getContentUTF8().replaceFirst("\r\n\r\n", "\n\n");
-
-      int EndOfHead = Response.indexOf("\n\n");
-
-      
-      if (EndOfHead >= 0) {
-        String html = Response.substring(EndOfHead + 2);
-        
+      // as requested by the standard. WarcReader accepts either separator.
+      if (html != null) {
         //System.out.println(html);
         //System.out.println("====================");
                 
@@ -178,7 +288,7 @@ public class ClueWebContentSource extends ContentSourceDateUtil {
      // This should be done after parse(), b/c parse() resets properties
         docData.getProps().put("url", url);
         docData.setName(trecId);
-        
+        return docData;
       } else {
         /*
          *  TODO: @leo What do we do here exactly? 
@@ -193,10 +303,191 @@ public class ClueWebContentSource extends ContentSourceDateUtil {
        */    
       System.err.println("Ignoring schema in URI: " + url);  
     }
+    return null;
+  }
+  
+  /**
+   * Takes the next document read by reader tasks (the parallel mode).
+   */
+  private DocData takeParsedDocData() throws NoMoreDataException, IOException {
+    synchronized (lock) {
+      if (readerPool == null) {
+        startReaders();
+      }
+      while (true) {
+        ReadItem item = null;
+        try {
+          if (orderedRead) {
+            if (fileQueues.isEmpty()) break;
+            item = fileQueues.peek().take();
+            if (item.docData == null && item.error == null) {
+              fileQueues.poll();
+              continue;
+            }
+          } else {
+            if (readFileQty == startFileQty) break;
+            item = sharedQueue.take();
+            if (item.docData == null && item.error == null) {
+              ++readFileQty;
+              continue;
+            }
+          }
+        } catch (InterruptedException e) {
+          throw new IOException("Interrupted while waiting for documents", e);
+        }
+        if (item.error != null) {
+          throw new IOException("Failed to read " + inputFiles.get(item.fileId) + ": " + item.error, item.error);
+        }
+        nextFile = item.fileId + 1;
+        docInFileQty = item.docInFileQty;
+        return item.docData;
+      }
+      stopReaders();
+      // All files are read
+      readerStartFile = inputFiles.size();
+      skipDocQty = 0;
+      throw new NoMoreDataException();
+    }
+  }
+  
+  /**
+   * Creates a reader task for each file starting from readerStartFile. Tasks are started in the order 
+   * of files, so the first unfinished file is always being read.
+   */
+  private void startReaders() {
+    readerPool = Executors.newFixedThreadPool(readerThreadQty, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        // Readers blocked on full queues shouldn't prevent the JVM from exiting 
+        Thread t = new Thread(r, "warc-reader");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    fileQueues = new ArrayDeque<BlockingQueue<ReadItem>>();
+    sharedQueue = new LinkedBlockingQueue<ReadItem>(QUEUE_DOCS_PER_THREAD * readerThreadQty);
+    readFileQty = 0;
+    startFileQty = 0;
+    
+    for (int fileId = readerStartFile; fileId < inputFiles.size(); ++fileId) {
+      BlockingQueue<ReadItem> queue = sharedQueue;
+      if (orderedRead) {
+        queue = new LinkedBlockingQueue<ReadItem>(QUEUE_DOCS_PER_THREAD);
+        fileQueues.add(queue);
+      }
+      readerPool.execute(new FileReaderTask(fileId, fileId == readerStartFile ? skipDocQty : 0, queue));
+      ++startFileQty;
+    }
+    readerPool.shutdown();
+  }
+  
+  private void stopReaders() {
+    if (readerPool != null) {
+      readerPool.shutdownNow();
+      readerPool = null;
+    }
+    fileQueues = null;
+    sharedQueue = null;
+  }
+  
+  /**
+   * Reads, decompresses, and parses all documents of one file.
+   */
+  private class FileReaderTask implements Runnable {
+    FileReaderTask(int fileId, int skipQty, BlockingQueue<ReadItem> queue) {
+      this.fileId = fileId;
+      this.skipQty = skipQty;
+      this.queue = queue;
+    }
+    
+    @Override
+    public void run() {
+      Path f = inputFiles.get(fileId);
+      try {
+        WarcReader inp = null;
+        try {
+          inp = new WarcReader(StreamUtils.inputStream(f));
+        } catch (Exception e) {
+          if (!verbose) throw e;
+          System.out.println("Skipping 'bad' file " + f.toFile().getAbsolutePath()+" due to "+e.getMessage());
+        }
+        if (inp != null) {
+          if (verbose) {
+            System.out.println("opening: " + f + " length: " + f.toFile().length());
+          }
+          try {
+            int docQty = 0;
+            while (inp.next()) {
+              if (!inp.getType().equals(WarcReader.TYPE_RESPONSE)) continue;
+              if (++docQty <= skipQty) continue;
+              DocData docData = parseRecord(inp, new DocData());
+              if (docData != null) {
+                queue.put(new ReadItem(docData, fileId, docQty, null));
+              }
+            }
+            if (docQty < skipQty) {
+              throw new IOException("Cannot skip " + skipQty + " documents, the file " + 
+                                    f + " has only " + docQty);
+            }
+          } finally {
+            inp.close();
+          }
+        }
+        queue.put(new ReadItem(null, fileId, 0, null));
+      } catch (InterruptedException e) {
+        // The source is closed
+      } catch (Exception e) {
+        try {
+          queue.put(new ReadItem(null, fileId, 0, e));
+        } catch (InterruptedException e1) {
+          // The source is closed
+        }
+      }
+    }
+    
+    private final int fileId;
+    private final int skipQty;
+    private final BlockingQueue<ReadItem> queue;
+  }
 
-    addItem();
+  @Override
+  public int[] getPosition() {
+    if (readerThreadQty > 0 && !orderedRead) {
+      throw new IllegalStateException("The position is not defined if documents are read in parallel without ordering");
+    }
+    synchronized (lock) {
+      return new int[] { nextFile - 1, docInFileQty };
+    }
+  }
 
-    return docData;
+  @Override
+  public void seek(int fileId, int docQty) throws IOException, NoMoreDataException {
+    if (fileId < 0) return;
+    if (readerThreadQty > 0) {
+      if (!orderedRead) {
+        throw new IllegalStateException("Cannot seek if documents are read in parallel without ordering");
+      }
+      synchronized (lock) {
+        stopReaders();
+        // Reader tasks skip documents, the position is the same as after a sequential seek
+        readerStartFile = fileId;
+        skipDocQty = docQty;
+        nextFile = fileId + 1;
+        docInFileQty = docQty;
+      }
+      return;
+    }
+    synchronized (lock) {
+      nextFile = fileId;
+      openNextFile();
+      while (docInFileQty < docQty) {
+        if (!reader.next()) {
+          throw new IOException("Cannot skip " + docQty + " documents, the file " + 
+                                inputFiles.get(fileId) + " has only " + docInFileQty);
+        }
+        if (reader.getType().equals(WarcReader.TYPE_RESPONSE)) ++docInFileQty;
+      }
+    }
   }
 
   @Override
@@ -206,6 +497,8 @@ public class ClueWebContentSource extends ContentSourceDateUtil {
       close();
       nextFile = 0;
       iteration = 0;
+      readerStartFile = 0;
+      skipDocQty = 0;
     }
   }
 
@@ -235,20 +528,34 @@ public class ClueWebContentSource extends ContentSourceDateUtil {
       }
 
       tmpf.sort(new PathFileComparator());
+      ArrayList<Path> allFiles = new ArrayList<Path>();
       for (File f : tmpf) {
-        inputFiles.add(f.toPath());
-        System.out.println(f);
+        allFiles.add(f.toPath());
       }
       
-      if (inputFiles.size() == 0) {
+      if (allFiles.size() == 0) {
         throw new IllegalArgumentException("No files in dataDir: " + dataDir);
       }
+      
+      inputFiles = selectShardFiles(allFiles, config);
+      for (Path p : inputFiles) {
+        System.out.println(p);
+      }
 
       // html parser      
       
       String htmlParserClassName = config.get("html.parser",
           "org.apache.lucene.benchmark.byTask.feeds.DemoHTMLParser");
       htmlParser = Class.forName(htmlParserClassName).asSubclass(HTMLParser.class).newInstance();
+      
+      readerThreadQty = config.get("docs.reader.threads", 0);
+      orderedRead = config.get("docs.reader.ordered", false);
+      if (readerThreadQty < 0) {
+        throw new IllegalArgumentException("Invalid number of reader threads: " + readerThreadQty);
+      }
+      if (readerThreadQty > 0 && forever) {
+        throw new IllegalArgumentException("Files can be read in parallel only once (content.source.forever=false)");
+      }
     } catch (Exception e) {
       // Should not get here. Throw runtime exception.
       throw new RuntimeException(e);
@@ -1,8 +1,10 @@
 package parsers;
 
+import java.nio.file.Path;
 import java.text.DateFormat;
 import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Locale;
 
@@ -17,6 +19,7 @@ import parsers.TrecContentSource.DateFormatInfo;
  * 
  */
 import org.apache.lucene.benchmark.byTask.feeds.ContentSource;
+import org.apache.lucene.benchmark.byTask.utils.Config;
 
 public abstract class ContentSourceDateUtil extends ContentSource {
   
@@ -68,4 +71,28 @@ public abstract class ContentSourceDateUtil extends ContentSource {
     }
     return null; 
   }  
+
+  /**
+   * Selects a subset of input files that belongs to a given shard,
+   * which is defined by the parameters <code>docs.shard.qty</code>
+   * and <code>docs.shard.id</code>. The i-th file belongs to
+   * the shard number i % <code>docs.shard.qty</code>.
+   * 
+   * @param files   a complete list of input files.
+   * @param config  a configuration object.
+   * @return a list of files for the shard (can be empty).
+   */
+  protected static ArrayList<Path> selectShardFiles(ArrayList<Path> files, Config config) {
+    int shardQty = config.get("docs.shard.qty", 1);
+    int shardId  = config.get("docs.shard.id", 0);
+    if (shardQty < 1 || shardId < 0 || shardId >= shardQty) {
+      throw new IllegalArgumentException("Invalid shard parameters: docs.shard.qty=" + shardQty + 
+                                         " docs.shard.id=" + shardId);
+    }
+    ArrayList<Path> res = new ArrayList<Path>();
+    for (int i = 0; i < files.size(); ++i) {
+      if (i % shardQty == shardId) res.add(files.get(i));
+    }
+    return res;
+  }
 }
@@ -0,0 +1,30 @@
+package parsers;
+
+import java.io.IOException;
+
+import org.apache.lucene.benchmark.byTask.feeds.NoMoreDataException;
+
+/**
+ * A content source that reads documents from a list of files and
+ * can start reading from a given document of a given file.
+ * 
+ * @author Leonid Boytsov
+ *
+ */
+public interface SeekableContentSource {
+  /**
+   * @return the index of the current input file (or -1 if no file was opened yet)
+   *         and the number of documents read from this file.
+   */
+  int[] getPosition();
+  
+  /**
+   * Opens a given file and skips a given number of documents.
+   * 
+   * @param fileId    a file index.
+   * @param docQty    a number of documents to skip.
+   * @throws IOException
+   * @throws NoMoreDataException 
+   */
+  void seek(int fileId, int docQty) throws IOException, NoMoreDataException;
+}
@@ -0,0 +1,54 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package parsers;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Date;
+
+import org.apache.lucene.benchmark.byTask.feeds.DocData;
+
+import utils.StageStats;
+
+/**
+ * An {@link HTMLParser} wrapper that records the parsing time of each document.
+ * The number of bytes is approximated by the number of characters in
+ * the parsed title and body.
+ *
+ * @author Leonid Boytsov
+ *
+ */
+public class TimedHTMLParser implements HTMLParser {
+  public TimedHTMLParser(HTMLParser parser, StageStats stats) {
+    mParser = parser;
+    mStats = stats;
+  }
+
+  @Override
+  public DocData parse(DocData docData, String name, Date date, Reader reader,
+                       ContentSourceDateUtil trecSrc) throws IOException {
+    long start = System.nanoTime();
+    DocData res = mParser.parse(docData, name, date, reader, trecSrc);
+    long len = 0;
+    if (res.getTitle() != null) len += res.getTitle().length();
+    if (res.getBody() != null) len += res.getBody().length();
+    mStats.record(System.nanoTime() - start, 1, len);
+    return res;
+  }
+
+  private final HTMLParser  mParser;
+  private final StageStats  mStats;
+}
@@ -42,6 +42,8 @@ import org.apache.lucene.benchmark.byTask.utils.StreamUtils;
 
 import parsers.TrecDocParser.ParsePathType;
 
+import utils.StageStats;
+
 /**
  * Implements a {@link ContentSource} over the TREC collection.
  * <p>
@@ -57,11 +59,15 @@ import parsers.TrecDocParser.ParsePathType;
  * parsing the TREC documents content (<b>default=TrecGov2Parser</b>).
  * <li><b>html.parser</b> - specifies the {@link HTMLParser} class to use for
  * parsing the HTML parts of the TREC documents content (<b>default=DemoHTMLParser</b>).
+ * <li><b>docs.shard.qty</b>, <b>docs.shard.id</b> - if the number of shards is
+ * larger than one, only every <code>docs.shard.qty</code>-th input file
+ * (starting from the file number <code>docs.shard.id</code>) is read
+ * (<b>default=1 and 0</b>).
  * <li><b>content.source.encoding</b> - if not specified, ISO-8859-1 is used.
  * <li><b>content.source.excludeIteration</b> - if true, do not append iteration number to docname
  * </ul>
  */
-public class TrecContentSource extends ContentSourceDateUtil {
+public class TrecContentSource extends ContentSourceDateUtil implements SeekableContentSource {
 
   static final class DateFormatInfo {
     DateFormat[] dfs;
@@ -80,6 +86,8 @@ public class TrecContentSource extends ContentSourceDateUtil {
   private File dataDir = null;
   private ArrayList<Path> inputFiles = new ArrayList<Path>();
   private int nextFile = 0;
+  // The number of documents read from the current file
+  private int docInFileQty = 0;
   // Use to synchronize threads on reading from the TREC documents.
   private Object lock = new Object();
 
@@ -105,6 +113,16 @@ public class TrecContentSource extends ContentSourceDateUtil {
     return htmlParser;
   }
   
+  /**
+   * Makes the HTML parser record parsing times. This function should be
+   * called after {@link #setConfig(Config)}, which creates the parser.
+   *
+   * @param stats a stage statistics object.
+   */
+  public void setHtmlParseStats(StageStats stats) {
+    htmlParser = new TimedHTMLParser(htmlParser, stats);
+  }
+  
   /**
    * Read until a line starting with the specified <code>lineStart</code>.
    * @param buf buffer for collecting the data if so specified/ 
@@ -162,6 +180,7 @@ public class TrecContentSource extends ContentSourceDateUtil {
         InputStream inputStream = StreamUtils.inputStream(f); // support either gzip, bzip2, or regular text file, by extension  
         reader = new BufferedReader(new InputStreamReader(inputStream, encoding), StreamUtils.BUFFER_SIZE);
         currPathType = TrecDocParser.pathType(f.toFile());
+        docInFileQty = 0;
         return;
       } catch (Exception e) {
         if (verbose) {
@@ -224,6 +243,7 @@ public class TrecContentSource extends ContentSourceDateUtil {
       // 3. read all until end of doc
       docBuf.setLength(0);
       read(docBuf, TERMINATING_DOC, false, true);
+      ++docInFileQty;
     }
       
     // count char length of text to be parsed (may be larger than the resulted plain doc body text).
@@ -237,6 +257,32 @@ public class TrecContentSource extends ContentSourceDateUtil {
     return docData;
   }
 
+  @Override
+  public int[] getPosition() {
+    synchronized (lock) {
+      return new int[] { nextFile - 1, docInFileQty };
+    }
+  }
+
+  @Override
+  public void seek(int fileId, int docQty) throws IOException, NoMoreDataException {
+    if (fileId < 0) return;
+    synchronized (lock) {
+      StringBuilder docBuf = getDocBuffer();
+      nextFile = fileId;
+      openNextFile();
+      while (docInFileQty < docQty) {
+        if (nextFile != fileId + 1) {
+          throw new IOException("Cannot skip " + docQty + " documents, the file " + 
+                                inputFiles.get(fileId) + " has fewer documents");
+        }
+        docBuf.setLength(0);
+        read(docBuf, TERMINATING_DOC, false, false);
+        ++docInFileQty;
+      }
+    }
+  }
+
   @Override
   public void resetInputs() throws IOException {
     synchronized (lock) {
@@ -260,10 +306,12 @@ public class TrecContentSource extends ContentSourceDateUtil {
 
     try {
       // files
-      collectFiles(dataDir.toPath(), inputFiles);
-      if (inputFiles.size() == 0) {
+      ArrayList<Path> allFiles = new ArrayList<Path>();
+      collectFiles(dataDir.toPath(), allFiles);
+      if (allFiles.size() == 0) {
         throw new IllegalArgumentException("No files in dataDir: " + dataDir);
       }
+      inputFiles = selectShardFiles(allFiles, config);
       // trec doc parser      
       
       String trecDocParserClassName = config.get("trec.doc.parser", "org.apache.lucene.benchmark.byTask.feeds.TrecGov2Parser");
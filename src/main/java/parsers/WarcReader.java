@@ -0,0 +1,330 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package parsers;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * <p>A streaming reader of WARC records that works directly on bytes. Unlike
+ * {@link edu.cmu.lemurproject.WarcRecord}, it doesn't create a string for every header
+ * line and doesn't copy the record content: headers are scanned in a reusable line buffer,
+ * the content is read into a reusable byte buffer, and only the HTTP response body is
+ * converted to a string (see {@link #getHttpBodyUTF8()}).</p>
+ *
+ * <p>Only the fields needed to index ClueWeb documents are extracted: WARC-Type,
+ * WARC-TREC-ID, WARC-Target-URI, and WARC-Date. Records are parsed in the same way as
+ * {@link edu.cmu.lemurproject.WarcRecord#readNextWarcRecord(java.io.DataInputStream)} does.
+ * Values returned by getters are valid only until the next call to {@link #next()}.</p>
+ *
+ * <p>The reader is not thread-safe.</p>
+ *
+ * @author Leonid Boytsov
+ *
+ */
+public class WarcReader implements Closeable {
+  public static final String TYPE_RESPONSE = "response";
+
+  /**
+   * Constructor.
+   *
+   * @param inp an input stream, it doesn't need to be buffered.
+   */
+  public WarcReader(InputStream inp) {
+    mInp = inp;
+  }
+
+  /**
+   * Reads the next record.
+   *
+   * @return false if there are no more (complete) records.
+   * @throws IOException
+   */
+  public boolean next() throws IOException {
+    mType = "";
+    mTrecId = null;
+    mTargetUri = null;
+    mDate = "";
+    mContentLen = 0;
+    mBodyStart = BODY_START_UNKNOWN;
+
+    // Skip everything before the version line
+    while (true) {
+      int len = readLine();
+      if (len < 0) return false;
+      if (startsWith(0, len, VERSION_PREFIX)) break;
+    }
+
+    int contentLen = -1;
+    // Read header lines till the empty line that follows Content-Length
+    while (true) {
+      int len = readLine();
+      if (len < 0) return false;
+      int end = trimEnd(0, len);
+      int start = skipSpaces(0, end);
+      if (start == end) {
+        if (contentLen >= 0) break;
+        continue;
+      }
+      int colon = indexOf(start, end, (byte)':');
+      if (colon < 0) continue;
+      int keyEnd = trimEnd(start, colon);
+      int valStart = skipSpaces(colon + 1, end);
+
+      if (keyEquals(start, keyEnd, CONTENT_LENGTH)) {
+        contentLen = parseInt(valStart, end);
+      } else if (keyEquals(start, keyEnd, WARC_TYPE)) {
+        mType = decode(mLine, valStart, end);
+      } else if (keyEquals(start, keyEnd, WARC_TREC_ID)) {
+        mTrecId = decode(mLine, valStart, end);
+      } else if (keyEquals(start, keyEnd, WARC_TARGET_URI)) {
+        mTargetUri = decode(mLine, valStart, end);
+      } else if (keyEquals(start, keyEnd, WARC_DATE)) {
+        mDate = decode(mLine, valStart, end);
+      }
+    }
+
+    return readContent(contentLen);
+  }
+
+  /**
+   * @return the record type or an empty string if the type isn't specified.
+   */
+  public String getType() {
+    return mType;
+  }
+
+  /**
+   * @return the value of WARC-TREC-ID or null.
+   */
+  public String getTrecId() {
+    return mTrecId;
+  }
+
+  /**
+   * @return the value of WARC-Target-URI or null.
+   */
+  public String getTargetUri() {
+    return mTargetUri;
+  }
+
+  /**
+   * @return the value of WARC-Date or an empty string if the date isn't specified.
+   */
+  public String getDate() {
+    return mDate;
+  }
+
+  /**
+   * @return the content length of the current record.
+   */
+  public int getContentLength() {
+    return mContentLen;
+  }
+
+  /**
+   * Finds the start of the HTTP response body, which follows the first empty line.
+   * In ClueWeb09, HTTP headers are incorrectly terminated by \n\n rather than by \r\n\r\n,
+   * so both separators are accepted (whichever comes first).
+   *
+   * @return the offset of the body in the record content or -1 if there is no separator.
+   */
+  public int getHttpBodyStart() {
+    if (mBodyStart == BODY_START_UNKNOWN) {
+      mBodyStart = -1;
+      for (int i = 0; i + 1 < mContentLen; ++i) {
+        byte b = mContent[i];
+        if (b == '\n') {
+          if (mContent[i + 1] == '\n') {
+            mBodyStart = i + 2;
+            break;
+          }
+        } else if (b == '\r' && i + 3 < mContentLen &&
+                   mContent[i + 1] == '\n' && mContent[i + 2] == '\r' && mContent[i + 3] == '\n') {
+          mBodyStart = i + 4;
+          break;
+        }
+      }
+    }
+    return mBodyStart;
+  }
+
+  /**
+   * @return the HTTP response body decoded as UTF-8 or null if the body cannot be found.
+   */
+  public String getHttpBodyUTF8() {
+    int start = getHttpBodyStart();
+    if (start < 0) return null;
+    return decode(mContent, start, mContentLen);
+  }
+
+  @Override
+  public void close() throws IOException {
+    mInp.close();
+  }
+
+  /**
+   * Reads the content, it may be preceded by line breaks of the previous record,
+   * which are skipped two bytes at a time (as in WarcRecord).
+   */
+  private boolean readContent(int contentLen) throws IOException {
+    if (mContent.length < contentLen) {
+      mContent = new byte[Math.max(contentLen, mContent.length * 2)];
+    }
+    int qty = 0;
+    while (qty == 0 && qty < contentLen) {
+      int b1 = readByte(), b2 = readByte();
+      if (b1 < 0 || b2 < 0) return false;
+      if (b1 != '\r' && b2 != '\n') {
+        mContent[qty++] = (byte)b1;
+        if (qty < contentLen) mContent[qty++] = (byte)b2;
+      }
+    }
+    while (qty < contentLen) {
+      if (mBufPos >= mBufLen && !fill()) return false;
+      int n = Math.min(contentLen - qty, mBufLen - mBufPos);
+      System.arraycopy(mBuf, mBufPos, mContent, qty, n);
+      mBufPos += n;
+      qty += n;
+    }
+    mContentLen = Math.max(contentLen, 0);
+    return true;
+  }
+
+  /**
+   * Reads the next line (without the trailing \n) into mLine.
+   *
+   * @return the length of the line or -1 if there is no more data.
+   */
+  private int readLine() throws IOException {
+    int len = 0;
+    while (true) {
+      if (mBufPos >= mBufLen && !fill()) return len > 0 ? len : -1;
+      int start = mBufPos, end = mBufPos;
+      while (end < mBufLen && mBuf[end] != '\n') ++end;
+      int n = end - start;
+      if (len + n > mLine.length) {
+        mLine = Arrays.copyOf(mLine, Math.max(len + n, mLine.length * 2));
+      }
+      System.arraycopy(mBuf, start, mLine, len, n);
+      len += n;
+      if (end < mBufLen) {
+        mBufPos = end + 1;
+        return len;
+      }
+      mBufPos = mBufLen;
+    }
+  }
+
+  private int readByte() throws IOException {
+    if (mBufPos >= mBufLen && !fill()) return -1;
+    return mBuf[mBufPos++] & 0xff;
+  }
+
+  private boolean fill() throws IOException {
+    int n;
+    try {
+      do {
+        n = mInp.read(mBuf, 0, mBuf.length);
+      } while (n == 0);
+    } catch (EOFException e) {
+      // A truncated (compressed) file, WarcRecord ignores incomplete records as well
+      return false;
+    }
+    if (n < 0) return false;
+    mBufPos = 0;
+    mBufLen = n;
+    return true;
+  }
+
+  // Spaces are defined as in String.trim()
+  private int skipSpaces(int start, int end) {
+    while (start < end && (mLine[start] & 0xff) <= ' ') ++start;
+    return start;
+  }
+
+  private int trimEnd(int start, int end) {
+    while (end > start && (mLine[end - 1] & 0xff) <= ' ') --end;
+    return end;
+  }
+
+  private int indexOf(int start, int end, byte b) {
+    for (int i = start; i < end; ++i) {
+      if (mLine[i] == b) return i;
+    }
+    return -1;
+  }
+
+  private boolean startsWith(int start, int end, byte[] prefix) {
+    if (end - start < prefix.length) return false;
+    for (int i = 0; i < prefix.length; ++i) {
+      if (mLine[start + i] != prefix[i]) return false;
+    }
+    return true;
+  }
+
+  private boolean keyEquals(int start, int end, byte[] key) {
+    return end - start == key.length && startsWith(start, end, key);
+  }
+
+  /**
+   * @return a non-negative integer or -1 if the value isn't a valid number.
+   */
+  private int parseInt(int start, int end) {
+    if (start >= end) return -1;
+    long res = 0;
+    for (int i = start; i < end; ++i) {
+      int d = mLine[i] - '0';
+      if (d < 0 || d > 9) return -1;
+      res = res * 10 + d;
+      if (res > Integer.MAX_VALUE) return -1;
+    }
+    return (int)res;
+  }
+
+  private static String decode(byte[] buf, int start, int end) {
+    return new String(buf, start, end - start, UTF8);
+  }
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final byte[] VERSION_PREFIX = "WARC/".getBytes(UTF8);
+  private static final byte[] CONTENT_LENGTH = "Content-Length".getBytes(UTF8);
+  private static final byte[] WARC_TYPE = "WARC-Type".getBytes(UTF8);
+  private static final byte[] WARC_TREC_ID = "WARC-TREC-ID".getBytes(UTF8);
+  private static final byte[] WARC_TARGET_URI = "WARC-Target-URI".getBytes(UTF8);
+  private static final byte[] WARC_DATE = "WARC-Date".getBytes(UTF8);
+
+  private static final int BUF_SIZE = 8 * 1024;
+  private static final int BODY_START_UNKNOWN = -2;
+
+  private final InputStream mInp;
+  private final byte[]      mBuf = new byte[BUF_SIZE];
+  private int               mBufPos = 0;
+  private int               mBufLen = 0;
+  private byte[]            mLine = new byte[1024];
+  private byte[]            mContent = new byte[BUF_SIZE];
+  private int               mContentLen = 0;
+  private int               mBodyStart = BODY_START_UNKNOWN;
+
+  private String mType = "";
+  private String mTrecId;
+  private String mTargetUri;
+  private String mDate = "";
+}
@@ -0,0 +1,227 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package qrels;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.*;
+
+/**
+ * <p>Per-query values of evaluation metrics computed by {@link Evaluator}.
+ * A metric may be undefined for some queries (e.g., NDCG is computed only for queries
+ * that have at least one relevant document), such values are stored as NaN.</p>
+ *
+ * @author Leonid Boytsov
+ *
+ */
+public class EvalResult {
+  EvalResult(List<String> queryIds, List<String> metricNames) {
+    mQueryIds = new ArrayList<String>(queryIds);
+    for (String name : metricNames) {
+      double[] vals = new double[queryIds.size()];
+      Arrays.fill(vals, Double.NaN);
+      mValues.put(name, vals);
+    }
+  }
+
+  void set(String metricName, int queryIndex, double value) {
+    mValues.get(metricName)[queryIndex] = value;
+  }
+
+  /**
+   * @return names of all metrics (in the order they are printed).
+   */
+  public ArrayList<String> getMetricNames() {
+    return new ArrayList<String>(mValues.keySet());
+  }
+
+  /**
+   * @return identifiers of all queries in the run.
+   */
+  public ArrayList<String> getQueryIds() {
+    return new ArrayList<String>(mQueryIds);
+  }
+
+  /**
+   * Retrieves per-query values of a metric.
+   *
+   * @param metricName  a metric name.
+   * @return a map from query identifiers to metric values (only for queries where the metric is defined).
+   */
+  public LinkedHashMap<String, Double> getQueryValues(String metricName) {
+    double[]                      vals = getValues(metricName);
+    LinkedHashMap<String, Double> res = new LinkedHashMap<String, Double>();
+    for (int i = 0; i < vals.length; ++i) {
+      if (!Double.isNaN(vals[i])) res.put(mQueryIds.get(i), vals[i]);
+    }
+    return res;
+  }
+
+  /**
+   * @return the number of queries for which the metric is defined.
+   */
+  public int getQueryQty(String metricName) {
+    int qty = 0;
+    for (double v : getValues(metricName)) {
+      if (!Double.isNaN(v)) ++qty;
+    }
+    return qty;
+  }
+
+  /**
+   * Computes an aggregate value of a metric. As in trec_eval, counts (metrics
+   * whose names start with <code>num_</code>) are summed, other metrics are averaged
+   * over queries for which they are defined (including the recall, which is
+   * <code>set_recall</code> in trec_eval).
+   *
+   * @param metricName  a metric name.
+   * @return an aggregate value (zero, if the metric isn't defined for any query).
+   */
+  public double getMean(String metricName) {
+    double  sum = 0;
+    int     qty = 0;
+    for (double v : getValues(metricName)) {
+      if (Double.isNaN(v)) continue;
+      sum += v;
+      ++qty;
+    }
+    if (metricName.startsWith(COUNT_PREFIX)) return sum;
+    return qty > 0 ? sum / qty : 0;
+  }
+
+  /**
+   * Prints metrics in the format of trec_eval: metric name, query identifier (or <code>all</code>),
+   * and the value (separated by tabs).
+   *
+   * @param out       an output stream.
+   * @param perQuery  if true, values for individual queries are printed as well.
+   */
+  public void print(PrintStream out, boolean perQuery) {
+    if (perQuery) {
+      for (int i = 0; i < mQueryIds.size(); ++i) {
+        for (Map.Entry<String, double[]> e : mValues.entrySet()) {
+          double v = e.getValue()[i];
+          if (!Double.isNaN(v)) out.println(formatLine(e.getKey(), mQueryIds.get(i), v));
+        }
+      }
+    }
+    for (String name : mValues.keySet()) {
+      out.println(formatLine(name, ALL_QUERIES, getMean(name)));
+    }
+  }
+
+  /**
+   * Saves metrics in the format of trec_eval -q (see {@link #print(PrintStream, boolean)}).
+   *
+   * @param fileName  an output file name.
+   * @throws IOException
+   */
+  public void save(String fileName) throws IOException {
+    try (PrintStream out = new PrintStream(new FileOutputStream(fileName), false, "UTF-8")) {
+      print(out, true);
+    }
+  }
+
+  /**
+   * Reads per-query values of a metric from a file in one of the formats:
+   * <ul>
+   * <li>the output of trec_eval -q (or of {@link #save(String)}): lines <code>metric query-id value</code>;
+   * <li>the output of gdeval.pl: comma-separated lines, the first line contains metric names;
+   * <li>a single line of values separated by white spaces (queries are identified by their positions).
+   * </ul>
+   * Aggregate values (query IDs <code>all</code> and <code>amean</code>) are ignored.
+   *
+   * @param fileName    an input file name.
+   * @param metricName  a metric name (ignored for a single line of values).
+   * @return a map from query identifiers to metric values.
+   * @throws IOException
+   */
+  public static LinkedHashMap<String, Double> readQueryValues(String fileName, String metricName) throws IOException {
+    ArrayList<String> lines = new ArrayList<String>();
+    try (BufferedReader inp = new BufferedReader(new FileReader(fileName))) {
+      String s;
+      while ((s = inp.readLine()) != null) {
+        if (!s.trim().isEmpty()) lines.add(s.trim());
+      }
+    }
+
+    LinkedHashMap<String, Double> res = new LinkedHashMap<String, Double>();
+    if (lines.isEmpty()) return res;
+
+    try {
+      if (lines.get(0).contains(",")) {
+        // gdeval.pl: runid,topic,ndcg@20,err@20
+        int col = Arrays.asList(lines.get(0).split(",")).indexOf(metricName);
+        if (col < 0) throw new IOException("No metric '" + metricName + "' in " + fileName);
+        for (int i = 1; i < lines.size(); ++i) {
+          String[] parts = lines.get(i).split(",");
+          if (parts.length <= col) {
+            throw new IOException(String.format("Wrong format of the line %d in %s: '%s'", i + 1, fileName, lines.get(i)));
+          }
+          if (!parts[1].equals(GDEVAL_ALL_QUERIES)) res.put(parts[1], Double.parseDouble(parts[col]));
+        }
+      } else if (lines.size() == 1 && isNumeric(lines.get(0).split("\\s+")[0])) {
+        String[] parts = lines.get(0).split("\\s+");
+        for (int i = 0; i < parts.length; ++i) res.put(Integer.toString(i + 1), Double.parseDouble(parts[i]));
+      } else {
+        for (int i = 0; i < lines.size(); ++i) {
+          String[] parts = lines.get(i).split("\\s+");
+          if (!parts[0].equals(metricName)) continue;
+          if (parts.length != 3) {
+            throw new IOException(String.format("Wrong format of the line %d in %s: '%s'", i + 1, fileName, lines.get(i)));
+          }
+          if (!parts[1].equals(ALL_QUERIES)) res.put(parts[1], Double.parseDouble(parts[2]));
+        }
+      }
+    } catch (NumberFormatException e) {
+      throw new IOException("Non-numeric metric value in " + fileName + ": " + e.getMessage());
+    }
+    return res;
+  }
+
+  private static boolean isNumeric(String s) {
+    try {
+      Double.parseDouble(s);
+      return true;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  private double[] getValues(String metricName) {
+    double[] vals = mValues.get(metricName);
+    if (vals == null) throw new IllegalArgumentException("Unknown metric: " + metricName);
+    return vals;
+  }
+
+  private static String formatLine(String name, String queryId, double v) {
+    if (name.startsWith(COUNT_PREFIX)) {
+      return String.format(Locale.US, "%-22s\t%s\t%d", name, queryId, Math.round(v));
+    }
+    // gdeval prints 5 digits after the decimal point, trec_eval prints 4. Unlike String.format,
+    // printf in C rounds the exact binary value half-to-even (e.g., 0.015625 is printed as 0.01562).
+    BigDecimal rounded = new BigDecimal(v).setScale(Evaluator.isGdevalMetric(name) ? 5 : 4, RoundingMode.HALF_EVEN);
+    return String.format(Locale.US, "%-22s\t%s\t%s", name, queryId, rounded.toPlainString());
+  }
+
+  public static final String ALL_QUERIES = "all";
+  private static final String GDEVAL_ALL_QUERIES = "amean";
+  private static final String COUNT_PREFIX = "num_";
+
+  private final ArrayList<String>               mQueryIds;
+  private final LinkedHashMap<String, double[]> mValues = new LinkedHashMap<String, double[]>();
+}
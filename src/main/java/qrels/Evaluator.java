@@ -0,0 +1,359 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package qrels;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+import utils.CompressUtils;
+
+/**
+ * <p>Evaluates runs in memory, without calling trec_eval and gdeval.pl.
+ * Queries are evaluated independently and, hence, in parallel.</p>
+ *
+ * <p>The following metrics follow trec_eval semantics: <code>num_ret</code>, <code>num_rel</code>,
+ * <code>num_rel_ret</code>, <code>map</code>, <code>recip_rank</code>, <code>P_k</code>,
+ * and <code>recall</code> (<code>set_recall</code> in trec_eval). They are computed for queries that are both in the run and in
+ * the QREL file; a document is relevant if its grade is at least one.</p>
+ *
+ * <p>The metrics <code>ndcg@k</code> and <code>err@k</code> follow gdeval.pl semantics:
+ * they are computed for queries that are in the run and have at least one
+ * document with a positive grade. Unlike gdeval.pl, query identifiers are used as is
+ * (they don't have to be numeric).</p>
+ *
+ * <p>As in both tools, documents are ranked by their scores (in the descending order),
+ * ties are broken by document identifiers (in the descending order),
+ * ranks in a run file are ignored.</p>
+ *
+ * @author Leonid Boytsov
+ *
+ */
+public class Evaluator {
+  public static final String NUM_RET = "num_ret";
+  public static final String NUM_REL = "num_rel";
+  public static final String NUM_REL_RET = "num_rel_ret";
+  public static final String MAP = "map";
+  public static final String RECIP_RANK = "recip_rank";
+  public static final String RECALL = "recall";
+  public static final String PRECISION_PREFIX = "P_";
+  public static final String NDCG_PREFIX = "ndcg@";
+  public static final String ERR_PREFIX = "err@";
+
+  public static final int[] DEFAULT_PRECISION_CUTOFFS = { 1, 10, 20 };
+  /** The default depth of NDCG and ERR (the same as in gdeval.pl). */
+  public static final int DEFAULT_DEPTH = 20;
+  /** The maximum grade used to compute ERR (the same as in gdeval.pl). */
+  public static final int MAX_GRADE = 4;
+
+  public Evaluator(QrelReader qrels) {
+    mQrels = qrels;
+  }
+
+  /**
+   * Sets cutoffs of the precision (P_k).
+   */
+  public void setPrecisionCutoffs(int[] cutoffs) {
+    for (int k : cutoffs) {
+      if (k < 1) throw new IllegalArgumentException("A precision cutoff should be >= 1");
+    }
+    mCutoffs = cutoffs.clone();
+  }
+
+  /**
+   * Sets the depth of NDCG and ERR.
+   */
+  public void setDepth(int depth) {
+    if (depth < 1) throw new IllegalArgumentException("The depth should be >= 1");
+    mDepth = depth;
+  }
+
+  /**
+   * Adds a retrieved document. Documents of the same query can be added
+   * in any order, but each document should be added only once.
+   *
+   * @param queryId   a query identifier.
+   * @param docId     a document identifier.
+   * @param score     a document score.
+   */
+  public synchronized void add(String queryId, String docId, double score) {
+    Integer qi = mQueryIndex.get(queryId);
+    if (qi == null) {
+      qi = mRuns.size();
+      mQueryIndex.put(queryId, qi);
+      mQueryIds.add(queryId);
+      mRuns.add(new QueryRun());
+    }
+    mRuns.get(qi).add(docId, score);
+  }
+
+  /**
+   * Adds results of a query.
+   *
+   * @param queryId   a query identifier.
+   * @param results   retrieved documents.
+   */
+  public synchronized void addResults(String queryId, ResEntry[] results) {
+    for (ResEntry r : results) add(queryId, r.mDocId, r.mScore);
+  }
+
+  /**
+   * Reads a TREC run file: each line contains a query ID, Q0, a document ID,
+   * a rank (ignored), a score, and a run ID.
+   *
+   * @param fileName  a name of the run file (it can be compressed, see {@link CompressUtils}).
+   * @throws IOException
+   */
+  public void readRun(String fileName) throws IOException {
+    try (BufferedReader inp = new BufferedReader(
+                                new InputStreamReader(CompressUtils.createInputStream(fileName), StandardCharsets.UTF_8))) {
+      String  s;
+      int     lineNum = 0;
+      while ((s = inp.readLine()) != null) {
+        ++lineNum;
+        String line = s.trim();
+        if (line.isEmpty()) continue;
+        String[] parts = line.split("\\s+");
+        if (parts.length < 5) {
+          throw new IOException(String.format("Wrong format of the line %d in %s: '%s'", lineNum, fileName, s));
+        }
+        try {
+          add(parts[0], parts[2], Double.parseDouble(parts[4]));
+        } catch (NumberFormatException e) {
+          throw new IOException(String.format("Score '%s' is not numeric, line %d in %s", parts[4], lineNum, fileName));
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the number of queries in the run.
+   */
+  public synchronized int getQueryQty() {
+    return mQueryIds.size();
+  }
+
+  /**
+   * Evaluates all queries added so far.
+   *
+   * @param threadQty   the number of threads.
+   * @return per-query values of metrics.
+   * @throws Exception
+   */
+  public synchronized EvalResult evaluate(int threadQty) throws Exception {
+    final EvalResult res = new EvalResult(mQueryIds, getMetricNames());
+    final int        queryQty = mQueryIds.size();
+
+    if (threadQty <= 1 || queryQty <= 1) {
+      evaluate(res, 0, queryQty);
+      return res;
+    }
+
+    ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+    // Several chunks per thread to balance the load
+    int chunkSize = Math.max(1, (queryQty + CHUNKS_PER_THREAD * threadQty - 1) / (CHUNKS_PER_THREAD * threadQty));
+
+    for (int start = 0; start < queryQty; start += chunkSize) {
+      final int from = start, to = Math.min(queryQty, start + chunkSize);
+      tasks.add(new Callable<Object>() {
+        @Override
+        public Object call() throws Exception {
+          // Each task writes values of different queries
+          evaluate(res, from, to);
+          return null;
+        }
+      });
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(threadQty);
+    try {
+      for (Future<Object> f : executor.invokeAll(tasks)) {
+        try {
+          f.get();
+        } catch (ExecutionException e) {
+          throw new Exception("Failed to evaluate queries: " + e.getCause(), e.getCause());
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return res;
+  }
+
+  /**
+   * @return true for metrics computed as in gdeval.pl.
+   */
+  public static boolean isGdevalMetric(String metricName) {
+    return metricName.startsWith(NDCG_PREFIX) || metricName.startsWith(ERR_PREFIX);
+  }
+
+  private ArrayList<String> getMetricNames() {
+    ArrayList<String> res = new ArrayList<String>();
+    res.add(NUM_RET);
+    res.add(NUM_REL);
+    res.add(NUM_REL_RET);
+    res.add(MAP);
+    res.add(RECIP_RANK);
+    for (int k : mCutoffs) res.add(PRECISION_PREFIX + k);
+    res.add(RECALL);
+    res.add(NDCG_PREFIX + mDepth);
+    res.add(ERR_PREFIX + mDepth);
+    return res;
+  }
+
+  private void evaluate(EvalResult res, int from, int to) {
+    String ndcgName = NDCG_PREFIX + mDepth, errName = ERR_PREFIX + mDepth;
+
+    for (int qi = from; qi < to; ++qi) {
+      String  queryId = mQueryIds.get(qi);
+      byte[]  qrelGrades = mQrels.getQueryGrades(queryId);
+
+      // The query has no judgments
+      if (qrelGrades == null) continue;
+
+      int[] grades = getRankedGrades(queryId, mRuns.get(qi));
+      int   numRel = 0;
+      for (byte g : qrelGrades) {
+        if (g >= 1) ++numRel;
+      }
+
+      int     relRet = 0;
+      double  precSum = 0, recipRank = 0;
+      for (int i = 0; i < grades.length; ++i) {
+        if (grades[i] >= 1) {
+          ++relRet;
+          precSum += (double) relRet / (i + 1);
+          if (recipRank == 0) recipRank = 1.0 / (i + 1);
+        }
+      }
+
+      res.set(NUM_RET, qi, grades.length);
+      res.set(NUM_REL, qi, numRel);
+      res.set(NUM_REL_RET, qi, relRet);
+      res.set(MAP, qi, numRel > 0 ? precSum / numRel : 0);
+      res.set(RECIP_RANK, qi, recipRank);
+      for (int k : mCutoffs) {
+        int relQty = 0;
+        for (int i = 0; i < Math.min(k, grades.length); ++i) {
+          if (grades[i] >= 1) ++relQty;
+        }
+        res.set(PRECISION_PREFIX + k, qi, (double) relQty / k);
+      }
+      res.set(RECALL, qi, numRel > 0 ? (double) relRet / numRel : 0);
+
+      // NDCG and ERR are computed only for queries with positive judgments
+      int[] idealGrades = getIdealGrades(qrelGrades);
+      if (idealGrades.length > 0) {
+        res.set(ndcgName, qi, getDCG(grades) / getDCG(idealGrades));
+        res.set(errName, qi, getERR(grades));
+      }
+    }
+  }
+
+  /**
+   * @return grades of ranked documents (unjudged documents have zero grades).
+   */
+  private int[] getRankedGrades(String queryId, QueryRun run) {
+    Integer[] order = new Integer[run.mQty];
+    for (int i = 0; i < order.length; ++i) order[i] = i;
+
+    final String[] docIds = run.mDocIds;
+    final double[] scores = run.mScores;
+
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        int cmp = Double.compare(scores[b], scores[a]);
+        return cmp != 0 ? cmp : docIds[b].compareTo(docIds[a]);
+      }
+    });
+
+    int[] grades = new int[order.length];
+    for (int i = 0; i < order.length; ++i) {
+      int grade = mQrels.getGrade(queryId, docIds[order[i]]);
+      grades[i] = grade == QrelReader.NO_GRADE ? 0 : grade;
+    }
+    return grades;
+  }
+
+  /**
+   * @return positive grades sorted in the descending order.
+   */
+  private static int[] getIdealGrades(byte[] qrelGrades) {
+    int[] grades = new int[qrelGrades.length];
+    int   qty = 0;
+    for (byte g : qrelGrades) {
+      if (g > 0) grades[qty++] = g;
+    }
+    grades = Arrays.copyOf(grades, qty);
+    Arrays.sort(grades);
+    for (int i = 0, j = qty - 1; i < j; ++i, --j) {
+      int t = grades[i]; grades[i] = grades[j]; grades[j] = t;
+    }
+    return grades;
+  }
+
+  private double getDCG(int[] grades) {
+    double res = 0;
+    for (int i = 0; i < Math.min(mDepth, grades.length); ++i) {
+      if (grades[i] > 0) res += (Math.pow(2, grades[i]) - 1) / Math.log(i + 2);
+    }
+    return res;
+  }
+
+  private double getERR(int[] grades) {
+    double res = 0, decay = 1;
+    for (int i = 0; i < Math.min(mDepth, grades.length); ++i) {
+      // Negative grades are treated as zeros
+      double r = (Math.pow(2, Math.max(0, grades[i])) - 1) / Math.pow(2, MAX_GRADE);
+      res += r * decay / (i + 1);
+      decay *= 1 - r;
+    }
+    return res;
+  }
+
+  /**
+   * Documents retrieved for one query.
+   */
+  private static class QueryRun {
+    void add(String docId, double score) {
+      if (mQty == mDocIds.length) {
+        mDocIds = Arrays.copyOf(mDocIds, 2 * mQty);
+        mScores = Arrays.copyOf(mScores, 2 * mQty);
+      }
+      mDocIds[mQty] = docId;
+      mScores[mQty] = score;
+      ++mQty;
+    }
+
+    String[]  mDocIds = new String[INIT_DOC_QTY];
+    double[]  mScores = new double[INIT_DOC_QTY];
+    int       mQty = 0;
+  }
+
+  private static final int INIT_DOC_QTY = 16;
+  private static final int CHUNKS_PER_THREAD = 4;
+
+  private final QrelReader                mQrels;
+  private int[]                           mCutoffs = DEFAULT_PRECISION_CUTOFFS;
+  private int                             mDepth = DEFAULT_DEPTH;
+  private final HashMap<String, Integer>  mQueryIndex = new HashMap<String, Integer>();
+  private final ArrayList<String>         mQueryIds = new ArrayList<String>();
+  private final ArrayList<QueryRun>       mRuns = new ArrayList<QueryRun>();
+}
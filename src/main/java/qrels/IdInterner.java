@@ -0,0 +1,121 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package qrels;
+
+import java.util.Arrays;
+
+/**
+ * <p>Maps string identifiers to consecutive integers (0, 1, 2, ...). Strings are kept
+ * in an array and are looked up using an open-addressing hash table of integers,
+ * which needs much less memory than a <code>HashMap&lt;String, Integer&gt;</code>.</p>
+ *
+ * <p>Adding identifiers isn't thread-safe, but lookups can be done concurrently
+ * once all identifiers are added.</p>
+ *
+ * @author Leonid Boytsov
+ *
+ */
+public class IdInterner {
+  public static final int NOT_FOUND = -1;
+
+  public IdInterner() {
+    mSlots = new int[INIT_SLOT_QTY];
+    mIds = new String[INIT_SLOT_QTY / 2];
+  }
+
+  /**
+   * Adds an identifier (if it isn't added yet).
+   *
+   * @param id  a string identifier.
+   * @return the integer identifier.
+   */
+  public int intern(String id) {
+    int slot = findSlot(id);
+    if (mSlots[slot] != 0) return mSlots[slot] - 1;
+
+    if (mQty == mIds.length) mIds = Arrays.copyOf(mIds, 2 * mIds.length);
+    mIds[mQty++] = id;
+    mSlots[slot] = mQty;
+    // The load factor doesn't exceed 0.5
+    if (2 * mQty > mSlots.length) rehash();
+    return mQty - 1;
+  }
+
+  /**
+   * Finds an identifier.
+   *
+   * @param id  a string identifier.
+   * @return the integer identifier or {@link #NOT_FOUND}.
+   */
+  public int find(String id) {
+    return mSlots[findSlot(id)] - 1;
+  }
+
+  /**
+   * @param intId an integer identifier.
+   * @return the respective string identifier.
+   */
+  public String get(int intId) {
+    return mIds[intId];
+  }
+
+  /**
+   * @return the number of identifiers.
+   */
+  public int size() {
+    return mQty;
+  }
+
+  /**
+   * Releases unused memory: should be called after all identifiers are added.
+   */
+  public void trim() {
+    mIds = Arrays.copyOf(mIds, Math.max(1, mQty));
+  }
+
+  private int findSlot(String id) {
+    int mask = mSlots.length - 1;
+    int slot = mix(id.hashCode()) & mask;
+    while (mSlots[slot] != 0 && !mIds[mSlots[slot] - 1].equals(id)) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void rehash() {
+    int[] slots = new int[2 * mSlots.length];
+    int   mask = slots.length - 1;
+    for (int i = 0; i < mQty; ++i) {
+      int slot = mix(mIds[i].hashCode()) & mask;
+      while (slots[slot] != 0) slot = (slot + 1) & mask;
+      slots[slot] = i + 1;
+    }
+    mSlots = slots;
+  }
+
+  /** String hash codes of similar identifiers differ only in lower bits. */
+  private static int mix(int h) {
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private static final int INIT_SLOT_QTY = 1024;
+
+  /** Integer identifiers plus one, zero denotes an empty slot. */
+  private int[]     mSlots;
+  private String[]  mIds;
+  private int       mQty = 0;
+}
@@ -14,55 +14,216 @@
  *  limitations under the License.
  */
 package qrels;
-import java.io.File;
+import java.io.BufferedReader;
+import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 
-import org.apache.commons.io.FileUtils;
-
+/**
+ * <p>A compact in-memory store of TREC qrels. Query and document identifiers
+ * are interned (mapped to integers), grades are stored as bytes. Qrels of each query
+ * are kept in one array sorted by document identifiers, so a grade is found
+ * using a binary search. The file is read line by line.</p>
+ *
+ * <p>If the same query-document pair occurs several times, the last grade is used.
+ * After the file is loaded, the store can be accessed by several threads concurrently.</p>
+ */
 public class QrelReader {
-  private HashMap<String, HashMap<String, String>>    mQrels = 
-                                      new HashMap<String, HashMap<String, String>>(); 
-  
+  /** A grade of a document that isn't judged. */
+  public static final int NO_GRADE = Integer.MIN_VALUE;
+
   /*
    *  Reads TREC qrels from a file.
    */
   public QrelReader(String fileName) throws IOException {
-    for (String s: FileUtils.readLines(new File(fileName))) {
-      s = s.trim();
-      if (s.isEmpty()) continue;
-      String parts[] = s.split("\\s+");
-      String queryId = parts[0];
-      String docId   = parts[2];
-      String rel     = parts[3];
-      HashMap<String, String>   val0 = mQrels.get(queryId);
-      if (val0 == null) {
-        val0 = new HashMap<String, String>();
-        mQrels.put(queryId, val0);
+    int[]   queryIdx = new int[INIT_ENTRY_QTY];
+    int[]   docIdx = new int[INIT_ENTRY_QTY];
+    byte[]  grades = new byte[INIT_ENTRY_QTY];
+    int     qty = 0;
+    int     lineNum = 0;
+
+    try (BufferedReader inp = new BufferedReader(new FileReader(fileName))) {
+      String    s;
+      String[]  parts = new String[4];
+
+      while ((s = inp.readLine()) != null) {
+        ++lineNum;
+        int partQty = splitLine(s, parts);
+        if (partQty == 0) continue;
+        if (partQty < 4) {
+          throw new IOException(String.format("Wrong format of the line %d in %s: '%s'", lineNum, fileName, s));
+        }
+        int grade = 0;
+        try {
+          grade = Integer.parseInt(parts[3]);
+        } catch (NumberFormatException e) {
+          throw new IOException(String.format("Label '%s' is not numeric, line %d in %s", parts[3], lineNum, fileName));
+        }
+        if (grade < Byte.MIN_VALUE || grade > Byte.MAX_VALUE) {
+          throw new IOException(String.format("Label '%s' is out of range, line %d in %s", parts[3], lineNum, fileName));
+        }
+        if (qty == grades.length) {
+          queryIdx = Arrays.copyOf(queryIdx, 2 * qty);
+          docIdx = Arrays.copyOf(docIdx, 2 * qty);
+          grades = Arrays.copyOf(grades, 2 * qty);
+        }
+        queryIdx[qty] = mQueryIds.intern(parts[0]);
+        docIdx[qty] = mDocIds.intern(parts[2]);
+        grades[qty] = (byte) grade;
+        ++qty;
       }
-      val0.put(docId, rel);
     }
+    mQueryIds.trim();
+    mDocIds.trim();
+
+    buildIndex(queryIdx, docIdx, grades, qty);
   }
+
   /**
    * Retrieves relevance value.
-   * 
+   *
    * @param queryId query identifier
    * @param docId   document identifier
    * @return qrel value for given parameters, or null, if not respective value
    * exists.
    */
   public String get(String queryId, String docId) {
-    HashMap<String, String>   val0 = mQrels.get(queryId);
-    if (null == val0) return null;
-    return val0.get(docId);
+    int grade = getGrade(queryId, docId);
+    return grade == NO_GRADE ? null : Integer.toString(grade);
   }
+
+  /**
+   * Retrieves a relevance grade without parsing a string label.
+   *
+   * @param queryId query identifier
+   * @param docId   document identifier
+   * @return the grade, or {@link #NO_GRADE} if the document isn't judged.
+   */
+  public int getGrade(String queryId, String docId) {
+    int qi = mQueryIds.find(queryId);
+    if (qi == IdInterner.NOT_FOUND) return NO_GRADE;
+    int di = mDocIds.find(docId);
+    if (di == IdInterner.NOT_FOUND) return NO_GRADE;
+    int pos = Arrays.binarySearch(mDocs, mQueryStart[qi], mQueryStart[qi + 1], di);
+    return pos < 0 ? NO_GRADE : mGrades[pos];
+  }
+
   /**
    * Return all relevance values for a given query.
-   * 
+   *
    * @param queryId query identifier
    * @return all qrels in the form of a map: docId -> qrel value
    */
   public HashMap<String, String> getQueryQrels(String queryId) {
-    return mQrels.get(queryId);
+    int qi = mQueryIds.find(queryId);
+    if (qi == IdInterner.NOT_FOUND) return null;
+    HashMap<String, String> res = new HashMap<String, String>();
+    for (int i = mQueryStart[qi]; i < mQueryStart[qi + 1]; ++i) {
+      res.put(mDocIds.get(mDocs[i]), Integer.toString(mGrades[i]));
+    }
+    return res;
+  }
+
+  /**
+   * Retrieves grades of all documents judged for a given query.
+   *
+   * @param queryId query identifier
+   * @return an array of grades (in no particular order), or null if the query has no qrels.
+   */
+  public byte[] getQueryGrades(String queryId) {
+    int qi = mQueryIds.find(queryId);
+    if (qi == IdInterner.NOT_FOUND) return null;
+    return Arrays.copyOfRange(mGrades, mQueryStart[qi], mQueryStart[qi + 1]);
+  }
+
+  /**
+   * @return identifiers of all queries (in the order of their first occurrence in the file).
+   */
+  public ArrayList<String> getQueryIds() {
+    ArrayList<String> res = new ArrayList<String>(mQueryIds.size());
+    for (int i = 0; i < mQueryIds.size(); ++i) {
+      res.add(mQueryIds.get(i));
+    }
+    return res;
   }
+
+  /**
+   * @return the number of (distinct) query-document pairs.
+   */
+  public int getEntryQty() {
+    return mDocs.length;
+  }
+
+  /**
+   * Splits a line into at most parts.length whitespace-separated fields.
+   *
+   * @return the number of fields found.
+   */
+  private static int splitLine(String s, String[] parts) {
+    int qty = 0, len = s.length(), i = 0;
+    while (qty < parts.length) {
+      while (i < len && Character.isWhitespace(s.charAt(i))) ++i;
+      if (i == len) break;
+      int start = i;
+      while (i < len && !Character.isWhitespace(s.charAt(i))) ++i;
+      parts[qty++] = s.substring(start, i);
+    }
+    return qty;
+  }
+
+  /**
+   * Groups entries by queries and sorts entries of each query by document identifiers.
+   */
+  private void buildIndex(int[] queryIdx, int[] docIdx, byte[] grades, int qty) {
+    int     queryQty = mQueryIds.size();
+    int[]   start = new int[queryQty + 1];
+
+    for (int i = 0; i < qty; ++i) ++start[queryIdx[i] + 1];
+    for (int i = 0; i < queryQty; ++i) start[i + 1] += start[i];
+
+    // Entry numbers grouped by queries (in the order of the file)
+    int[]   entries = new int[qty];
+    int[]   fill = Arrays.copyOf(start, queryQty);
+    for (int i = 0; i < qty; ++i) entries[fill[queryIdx[i]]++] = i;
+
+    mQueryStart = new int[queryQty + 1];
+    mDocs = new int[qty];
+    mGrades = new byte[qty];
+
+    long[]  buf = new long[0];
+    int     outQty = 0;
+
+    for (int qi = 0; qi < queryQty; ++qi) {
+      int n = start[qi + 1] - start[qi];
+      if (buf.length < n) buf = new long[n];
+      for (int k = 0; k < n; ++k) {
+        int e = entries[start[qi] + k];
+        // Sort by document identifiers, then by positions in the file
+        buf[k] = ((long) docIdx[e] << 32) | e;
+      }
+      Arrays.sort(buf, 0, n);
+      mQueryStart[qi] = outQty;
+      for (int k = 0; k < n; ++k) {
+        int doc = (int) (buf[k] >>> 32);
+        // Duplicates: keep the last one
+        if (k + 1 < n && (int) (buf[k + 1] >>> 32) == doc) continue;
+        mDocs[outQty] = doc;
+        mGrades[outQty] = grades[(int) buf[k]];
+        ++outQty;
+      }
+    }
+    mQueryStart[queryQty] = outQty;
+
+    mDocs = Arrays.copyOf(mDocs, outQty);
+    mGrades = Arrays.copyOf(mGrades, outQty);
+  }
+
+  private static final int INIT_ENTRY_QTY = 1024;
+
+  private final IdInterner  mQueryIds = new IdInterner();
+  private final IdInterner  mDocIds = new IdInterner();
+  /** Qrels of the i-th query are stored in positions mQueryStart[i] ... mQueryStart[i+1]-1. */
+  private int[]             mQueryStart;
+  private int[]             mDocs;
+  private byte[]            mGrades;
 }
@@ -0,0 +1,364 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package qrels;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * <p>Paired significance tests of two runs: the t-test, the randomization
+ * (permutation) test, and bootstrap confidence intervals of the mean difference.
+ * Each test is applied to per-query values of a metric (the first run minus the second run).</p>
+ *
+ * <p>Random iterations are split into fixed-size batches processed by a fork/join pool.
+ * Each batch has its own random number generator, whose seed depends only on the
+ * seed of the test and the batch number. Hence, results don't depend on the number of threads.</p>
+ *
+ * @author Leonid Boytsov
+ *
+ */
+public class SignificanceTest {
+  public static final int DEFAULT_ITER_QTY = 10000;
+  public static final long DEFAULT_SEED = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param x           per-query values of the first run.
+   * @param y           per-query values of the second run (for the same queries in the same order).
+   * @param threadQty   the number of threads.
+   * @param seed        a random seed.
+   */
+  public SignificanceTest(double[] x, double[] y, int threadQty, long seed) {
+    if (x.length != y.length) {
+      throw new IllegalArgumentException("The number of values differs: " + x.length + " vs " + y.length);
+    }
+    if (x.length == 0) throw new IllegalArgumentException("No values to compare");
+    if (threadQty < 1) throw new IllegalArgumentException("The number of threads should be >= 1");
+
+    mX = x.clone();
+    mY = y.clone();
+    mDiff = new double[x.length];
+    for (int i = 0; i < x.length; ++i) mDiff[i] = x[i] - y[i];
+    mThreadQty = threadQty;
+    mSeed = seed;
+  }
+
+  /**
+   * Creates a test for queries that have values in both runs.
+   *
+   * @param x           per-query values of the first run: query ID -> value.
+   * @param y           per-query values of the second run: query ID -> value.
+   * @param threadQty   the number of threads.
+   * @param seed        a random seed.
+   * @return a test object.
+   */
+  public static SignificanceTest createPaired(Map<String, Double> x, Map<String, Double> y,
+                                              int threadQty, long seed) {
+    ArrayList<Double> xv = new ArrayList<Double>(), yv = new ArrayList<Double>();
+    for (Map.Entry<String, Double> e : x.entrySet()) {
+      Double v = y.get(e.getKey());
+      if (v != null) {
+        xv.add(e.getValue());
+        yv.add(v);
+      }
+    }
+    double[] xa = new double[xv.size()], ya = new double[yv.size()];
+    for (int i = 0; i < xa.length; ++i) {
+      xa[i] = xv.get(i);
+      ya[i] = yv.get(i);
+    }
+    return new SignificanceTest(xa, ya, threadQty, seed);
+  }
+
+  /**
+   * @return the number of queries.
+   */
+  public int getQty() {
+    return mDiff.length;
+  }
+
+  public double getMeanX() {
+    return getMean(mX);
+  }
+
+  public double getMeanY() {
+    return getMean(mY);
+  }
+
+  /**
+   * @return the mean difference between the first and the second run.
+   */
+  public double getMeanDiff() {
+    return getMean(mDiff);
+  }
+
+  /**
+   * @return the statistic of the paired t-test (NaN, if all differences are the same).
+   */
+  public double getTStatistic() {
+    int n = mDiff.length;
+    if (n < 2) return Double.NaN;
+    double mean = getMeanDiff(), sum2 = 0;
+    for (double d : mDiff) sum2 += (d - mean) * (d - mean);
+    double stdErr = Math.sqrt(sum2 / (n - 1) / n);
+    return stdErr > 0 ? mean / stdErr : Double.NaN;
+  }
+
+  /**
+   * Carries out a two-sided paired t-test.
+   *
+   * @return the p-value (NaN, if there are fewer than two queries or all differences are the same).
+   */
+  public double getTTestPValue() {
+    double t = getTStatistic();
+    if (Double.isNaN(t)) return Double.NaN;
+    double df = mDiff.length - 1;
+    return regIncompleteBeta(df / (df + t * t), df / 2, 0.5);
+  }
+
+  /**
+   * Carries out a two-sided randomization test: signs of per-query
+   * differences are flipped randomly, the p-value is the (smoothed) share
+   * of iterations whose absolute mean difference isn't smaller than the observed one.
+   *
+   * @param iterQty   the number of iterations.
+   * @return the p-value.
+   */
+  public double getPermutationPValue(int iterQty) {
+    if (iterQty < 1) throw new IllegalArgumentException("The number of iterations should be >= 1");
+    double observed = Math.abs(getSum(mDiff));
+    // Protects against rounding errors when sums of the same values are computed in a different order
+    double eps = 1e-9 * getAbsSum(mDiff);
+
+    long hitQty = getPool().invoke(new PermutationTask(observed - eps, iterQty, 0, getBatchQty(iterQty)));
+
+    return (hitQty + 1.0) / (iterQty + 1.0);
+  }
+
+  /**
+   * Computes a bootstrap (percentile) confidence interval of the mean difference:
+   * queries are resampled with replacement.
+   *
+   * @param iterQty   the number of bootstrap samples.
+   * @param confLevel a confidence level, e.g., 0.95.
+   * @return the lower and the upper bound.
+   */
+  public double[] getBootstrapInterval(int iterQty, double confLevel) {
+    if (iterQty < 1) throw new IllegalArgumentException("The number of iterations should be >= 1");
+    if (confLevel <= 0 || confLevel >= 1) throw new IllegalArgumentException("The confidence level should be in (0, 1)");
+
+    final double[]  means = new double[iterQty];
+    final int       batchQty = getBatchQty(iterQty);
+
+    getPool().invoke(new BootstrapTask(means, 0, batchQty));
+    Arrays.sort(means);
+
+    double alpha = (1 - confLevel) / 2;
+    int lower = (int) Math.floor(alpha * iterQty);
+    int upper = (int) Math.ceil((1 - alpha) * iterQty) - 1;
+    return new double[] { means[Math.max(0, Math.min(iterQty - 1, lower))],
+                          means[Math.max(0, Math.min(iterQty - 1, upper))] };
+  }
+
+  /**
+   * Counts random sign flips of a range of batches whose absolute sum of
+   * differences is at least the threshold.
+   */
+  private class PermutationTask extends RecursiveTask<Long> {
+    private static final long serialVersionUID = 1L;
+
+    PermutationTask(double threshold, int iterQty, int from, int to) {
+      mThreshold = threshold;
+      mIterQty = iterQty;
+      mFrom = from;
+      mTo = to;
+    }
+
+    @Override
+    protected Long compute() {
+      if (mTo - mFrom > 1) {
+        int mid = (mFrom + mTo) >>> 1;
+        PermutationTask left = new PermutationTask(mThreshold, mIterQty, mFrom, mid);
+        left.fork();
+        long right = new PermutationTask(mThreshold, mIterQty, mid, mTo).compute();
+        return left.join() + right;
+      }
+      Random  rand = createRandom(mFrom);
+      int     end = Math.min(mIterQty, (mFrom + 1) * ITER_BATCH_SIZE);
+      long    hits = 0;
+      for (int it = mFrom * ITER_BATCH_SIZE; it < end; ++it) {
+        double  sum = 0;
+        long    bits = 0;
+        for (int i = 0; i < mDiff.length; ++i) {
+          // One random long gives 64 signs
+          if ((i & 63) == 0) bits = rand.nextLong();
+          sum += (bits & 1) != 0 ? mDiff[i] : -mDiff[i];
+          bits >>>= 1;
+        }
+        if (Math.abs(sum) >= mThreshold) ++hits;
+      }
+      return hits;
+    }
+
+    private final double  mThreshold;
+    private final int     mIterQty;
+    private final int     mFrom;
+    private final int     mTo;
+  }
+
+  /**
+   * Computes means of bootstrap samples of a range of batches.
+   */
+  private class BootstrapTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    BootstrapTask(double[] means, int from, int to) {
+      mMeans = means;
+      mFrom = from;
+      mTo = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (mTo - mFrom > 1) {
+        int mid = (mFrom + mTo) >>> 1;
+        invokeAll(new BootstrapTask(mMeans, mFrom, mid), new BootstrapTask(mMeans, mid, mTo));
+        return;
+      }
+      Random  rand = createRandom(mFrom);
+      int     n = mDiff.length;
+      int     end = Math.min(mMeans.length, (mFrom + 1) * ITER_BATCH_SIZE);
+      for (int it = mFrom * ITER_BATCH_SIZE; it < end; ++it) {
+        double sum = 0;
+        for (int i = 0; i < n; ++i) sum += mDiff[rand.nextInt(n)];
+        mMeans[it] = sum / n;
+      }
+    }
+
+    private final double[]  mMeans;
+    private final int       mFrom;
+    private final int       mTo;
+  }
+
+  private ForkJoinPool getPool() {
+    if (mPool == null) mPool = new ForkJoinPool(mThreadQty);
+    return mPool;
+  }
+
+  private Random createRandom(int batch) {
+    return new Random(mSeed ^ ((batch + 1) * 0x9E3779B97F4A7C15L));
+  }
+
+  private static int getBatchQty(int iterQty) {
+    return (iterQty + ITER_BATCH_SIZE - 1) / ITER_BATCH_SIZE;
+  }
+
+  private static double getSum(double[] vals) {
+    double sum = 0;
+    for (double v : vals) sum += v;
+    return sum;
+  }
+
+  private static double getAbsSum(double[] vals) {
+    double sum = 0;
+    for (double v : vals) sum += Math.abs(v);
+    return sum;
+  }
+
+  private static double getMean(double[] vals) {
+    return getSum(vals) / vals.length;
+  }
+
+  /**
+   * The regularized incomplete beta function I_x(a, b), see Numerical Recipes in C, 6.4.
+   */
+  static double regIncompleteBeta(double x, double a, double b) {
+    if (x <= 0) return 0;
+    if (x >= 1) return 1;
+    double front = Math.exp(logGamma(a + b) - logGamma(a) - logGamma(b) +
+                            a * Math.log(x) + b * Math.log(1 - x));
+    // The continued fraction converges quickly only for x < (a + 1) / (a + b + 2)
+    if (x < (a + 1) / (a + b + 2)) {
+      return front * betaContFrac(x, a, b) / a;
+    }
+    return 1 - front * betaContFrac(1 - x, b, a) / b;
+  }
+
+  /**
+   * Evaluates the continued fraction of the incomplete beta function (the modified Lentz's method).
+   */
+  private static double betaContFrac(double x, double a, double b) {
+    final double TINY = 1e-300, EPS = 1e-15;
+    double c = 1, d = 1 - (a + b) * x / (a + 1);
+    if (Math.abs(d) < TINY) d = TINY;
+    d = 1 / d;
+    double h = d;
+    for (int m = 1; m <= MAX_CONT_FRAC_ITER; ++m) {
+      int m2 = 2 * m;
+      double aa = m * (b - m) * x / ((a + m2 - 1) * (a + m2));
+      d = 1 + aa * d;
+      if (Math.abs(d) < TINY) d = TINY;
+      c = 1 + aa / c;
+      if (Math.abs(c) < TINY) c = TINY;
+      d = 1 / d;
+      h *= d * c;
+      aa = -(a + m) * (a + b + m) * x / ((a + m2) * (a + m2 + 1));
+      d = 1 + aa * d;
+      if (Math.abs(d) < TINY) d = TINY;
+      c = 1 + aa / c;
+      if (Math.abs(c) < TINY) c = TINY;
+      d = 1 / d;
+      double del = d * c;
+      h *= del;
+      if (Math.abs(del - 1) < EPS) break;
+    }
+    return h;
+  }
+
+  /**
+   * The logarithm of the gamma function (the Lanczos approximation, g=7, n=9).
+   */
+  private static double logGamma(double x) {
+    if (x < 0.5) {
+      // The reflection formula
+      return Math.log(Math.PI / Math.abs(Math.sin(Math.PI * x))) - logGamma(1 - x);
+    }
+    x -= 1;
+    double a = LANCZOS_COEFF[0], t = x + 7.5;
+    for (int i = 1; i < LANCZOS_COEFF.length; ++i) a += LANCZOS_COEFF[i] / (x + i);
+    return 0.5 * Math.log(2 * Math.PI) + (x + 0.5) * Math.log(t) - t + Math.log(a);
+  }
+
+  private static final double[] LANCZOS_COEFF = {
+    0.99999999999980993, 676.5203681218851, -1259.1392167224028,
+    771.32342877765313, -176.61502916214059, 12.507343278686905,
+    -0.13857109526572012, 9.9843695780195716e-6, 1.5056327351493116e-7
+  };
+
+  private static final int MAX_CONT_FRAC_ITER = 1000;
+  /** The number of iterations that use the same random number generator. */
+  private static final int ITER_BATCH_SIZE = 256;
+
+  private final double[]  mX;
+  private final double[]  mY;
+  private final double[]  mDiff;
+  private final int       mThreadQty;
+  private final long      mSeed;
+  private ForkJoinPool    mPool = null;
+}
@@ -0,0 +1,40 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package source;
+
+import java.io.IOException;
+
+/**
+ * A document source that can report its current position and continue
+ * reading from a previously saved position.
+ */
+public interface CheckpointableSource extends DocumentSource {
+  /**
+   * 
+   * Returns the position right after the last document returned by next().
+   * The format of the position string is specific to the source.
+   * 
+   */
+  String getPosition();
+  
+  /**
+   * 
+   * Skips documents until the position previously returned by getPosition().
+   * Should be called before reading any documents.
+   * 
+   */
+  void seek(String position) throws IOException;
+}
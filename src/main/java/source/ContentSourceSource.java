@@ -24,17 +24,70 @@ import org.apache.lucene.benchmark.byTask.utils.Config;
 import org.apache.lucene.benchmark.byTask.feeds.NoMoreDataException;
 
 import parsers.*;
+import utils.StageStats;
 
-public class ContentSourceSource implements DocumentSource {
+public class ContentSourceSource implements CheckpointableSource {
 
   public static final String SOURCE_TYPE_CLUEWEB    = "CLUEWEB";
   public static final String SOURCE_TYPE_GOV2       = "GOV2";
   public static final String SOURCE_TYPE_WIKIPEDIA  = "WIKIPEDIA";
   
   public ContentSourceSource(String indexType, String indexSource) throws Exception {
+    this(indexType, indexSource, 0, 1);
+  }
+  
+  /**
+   * Creates a source that reads only a subset of input files, which belong
+   * to a given shard (see {@link #supportsFilePartition(String)}).
+   * 
+   * @param indexType     a type of the source.
+   * @param indexSource   a location of input data.
+   * @param shardId       a shard number (starting from zero).
+   * @param shardQty      the total number of shards.
+   * @throws Exception
+   */
+  public ContentSourceSource(String indexType, String indexSource, 
+                             int shardId, int shardQty) throws Exception {
+    this(indexType, indexSource, shardId, shardQty, 0, false);
+  }
+  
+  /**
+   * Creates a source that reads only a subset of input files, which belong
+   * to a given shard (see {@link #supportsFilePartition(String)}), possibly
+   * reading several files in parallel (see {@link #supportsParallelRead(String)}).
+   * 
+   * @param indexType       a type of the source.
+   * @param indexSource     a location of input data.
+   * @param shardId         a shard number (starting from zero).
+   * @param shardQty        the total number of shards.
+   * @param readerThreadQty the number of threads reading input files in parallel 
+   *                        (zero means sequential reading).
+   * @param orderedRead     if true, documents read in parallel are returned in the order 
+   *                        of sequential reading (required to save and restore the position).
+   * @throws Exception
+   */
+  public ContentSourceSource(String indexType, String indexSource, 
+                             int shardId, int shardQty,
+                             int readerThreadQty, boolean orderedRead) throws Exception {
     String typeLC = indexType.toUpperCase();
     mProperties = new Properties();
     
+    if (readerThreadQty > 0) {
+      if (!supportsParallelRead(indexType)) {
+        throw new Exception("Source type " + indexType + " cannot read files in parallel");
+      }
+      mProperties.setProperty("docs.reader.threads", Integer.toString(readerThreadQty));
+      mProperties.setProperty("docs.reader.ordered", Boolean.toString(orderedRead));
+    }
+    
+    if (shardQty > 1) {
+      if (!supportsFilePartition(indexType)) {
+        throw new Exception("Source type " + indexType + " cannot be partitioned by file");
+      }
+      mProperties.setProperty("docs.shard.qty", Integer.toString(shardQty));
+      mProperties.setProperty("docs.shard.id", Integer.toString(shardId));
+    }
+    
     
     // prevent an infinite parsing loop, which is a strange default here
     mProperties.setProperty("content.source.forever", "false"); 
@@ -77,18 +130,56 @@ public class ContentSourceSource implements DocumentSource {
     mConfig = new Config(mProperties);    
     mSource.setConfig(mConfig);
     mSource.resetInputs(); // not clear if this is 100% needed, but let's keep it    
+    if (mSource instanceof SeekableContentSource) {
+      mSeekableSource = (SeekableContentSource) mSource;
+    }
+  }
+  
+  /**
+   * Makes the source record HTML parsing times (for ClueWeb and GOV2 only).
+   *
+   * @param stats a stage statistics object.
+   */
+  public void setHtmlParseStats(StageStats stats) {
+    if (mSource instanceof ClueWebContentSource) {
+      ((ClueWebContentSource) mSource).setHtmlParseStats(stats);
+    } else if (mSource instanceof TrecContentSource) {
+      ((TrecContentSource) mSource).setHtmlParseStats(stats);
+    }
+  }
+  
+  /**
+   * @return true if the source of the given type reads data from many files
+   *         and, hence, it can be partitioned by file.
+   */
+  public static boolean supportsFilePartition(String indexType) {
+    String typeLC = indexType.toUpperCase();
+    return typeLC.equals(SOURCE_TYPE_CLUEWEB) || typeLC.equals(SOURCE_TYPE_GOV2);
+  }
+  
+  /**
+   * @return true if the source of the given type can read several input files in parallel.
+   */
+  public static boolean supportsParallelRead(String indexType) {
+    return indexType.toUpperCase().equals(SOURCE_TYPE_CLUEWEB);
   }
   
   private Config        mConfig;
   private ContentSource mSource;
   private Properties    mProperties;
   private DocData       mDocData = new DocData();
+  private SeekableContentSource mSeekableSource = null;
+  private int           mDocQty = 0;
+  
+  private static final String POS_FILE = "file";
+  private static final String POS_RECORD = "record";
 
   @Override
   public DocumentEntry next() throws IOException {
     if (mSource == null) return null;
     try {
       mDocData = mSource.getNextDocData(mDocData);
+      ++mDocQty;
       String docId = mDocData.getName();
       return new DocumentEntry(null /* no respective query ID */, null /* no relevance information */,
                                docId, mDocData.getTitle() + ' ' + mDocData.getBody());
@@ -98,4 +189,39 @@ public class ContentSourceSource implements DocumentSource {
     return null;
   }
 
+  /**
+   * Returns the position in the form file:&lt;file index&gt;:&lt;# of documents read from the file&gt;
+   * for sources reading many files, or in the form record:&lt;# of documents read&gt; otherwise.
+   */
+  @Override
+  public String getPosition() {
+    if (mSeekableSource != null) {
+      int [] pos = mSeekableSource.getPosition();
+      return POS_FILE + ":" + pos[0] + ":" + pos[1];
+    }
+    return POS_RECORD + ":" + mDocQty;
+  }
+
+  @Override
+  public void seek(String position) throws IOException {
+    String [] parts = position.split(":");
+    try {
+      if (parts[0].equals(POS_FILE) && parts.length == 3 && mSeekableSource != null) {
+        mSeekableSource.seek(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+      } else if (parts[0].equals(POS_RECORD) && parts.length == 2) {
+        int docQty = Integer.parseInt(parts[1]);
+        while (mDocQty < docQty) {
+          if (next() == null) {
+            throw new IOException("Cannot skip " + docQty + " documents, the source has only " + mDocQty);
+          }
+        }
+      } else {
+        throw new IOException("Unsupported source position: '" + position + "'");
+      }
+    } catch (NumberFormatException e) {
+      throw new IOException("Invalid source position: '" + position + "'");
+    } catch (NoMoreDataException e) {
+      throw new IOException("Cannot seek to the position: '" + position + "'");
+    }
+  }
 }
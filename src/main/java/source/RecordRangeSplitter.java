@@ -0,0 +1,180 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package source;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Splits a single document source into several sources (shards), each of which
+ * receives consecutive ranges of records: the first block of records goes
+ * to the shard 0, the second block goes to the shard 1, and so on (in a round-robin
+ * fashion).</p>
+ *
+ * <p>The underlying source is read by a single feeder thread, which is started
+ * when any of the shards is accessed for the first time. All shards need to be
+ * read concurrently, otherwise, the feeder blocks on a full queue.</p>
+ *
+ * @author Leonid Boytsov
+ *
+ */
+public class RecordRangeSplitter {
+  /**
+   * Constructor.
+   *
+   * @param source      the underlying document source.
+   * @param shardQty    the number of shards.
+   * @param blockSize   the number of consecutive records in one block.
+   */
+  public RecordRangeSplitter(DocumentSource source, int shardQty, int blockSize) {
+    mSource = source;
+    mBlockSize = Math.max(1, blockSize);
+    mShards = new Shard[shardQty];
+    for (int i = 0; i < shardQty; ++i) {
+      mShards[i] = new Shard();
+    }
+  }
+
+  /**
+   * @param shardId a shard number (starting from zero).
+   * @return a source that returns only records from the given shard.
+   */
+  public DocumentSource getShard(int shardId) {
+    return mShards[shardId];
+  }
+
+  /**
+   * Stops the feeder, e.g., when a consumer of one of the shards fails.
+   * Consumers of other shards stop as well: reading a shard throws an IOException
+   * (unless all its records have been already read).
+   */
+  public void abort() {
+    mAborted = true;
+  }
+
+  private synchronized void startFeeder() {
+    if (mFeeder != null) return;
+    mFeeder = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        feed();
+      }
+    }, "record-range-splitter");
+    mFeeder.start();
+  }
+
+  private void feed() {
+    try {
+      DocumentEntry e = null;
+      long recNum = 0;
+      while (!mAborted && (e = mSource.next()) != null) {
+        int shardId = (int)((recNum / mBlockSize) % mShards.length);
+        if (!mShards[shardId].put(e)) break;
+        ++recNum;
+      }
+      mComplete = e == null;
+    } catch (Throwable e) {
+      System.err.println("Failed to read the source: " + e);
+      e.printStackTrace();
+      mFailure = e;
+    } finally {
+      for (Shard s : mShards) {
+        s.finish();
+      }
+    }
+  }
+
+  private class Shard implements DocumentSource {
+    ArrayBlockingQueue<DocumentEntry>  mQueue =
+        new ArrayBlockingQueue<DocumentEntry>(2 * mBlockSize);
+    boolean                            mFinished = false;
+
+    @Override
+    public DocumentEntry next() throws IOException {
+      if (mFinished) return null;
+      startFeeder();
+      DocumentEntry e = null;
+      try {
+        while ((e = mQueue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS)) == null) {
+          // Don't wait for the end-of-data marker if another shard failed
+          if (mAborted) {
+            mFinished = true;
+            throw new IOException(ABORT_MESSAGE);
+          }
+        }
+      } catch (InterruptedException ex) {
+        throw new IOException(ex);
+      }
+      if (e == END_OF_DATA) {
+        mFinished = true;
+        if (mFailure != null) {
+          throw new IOException("Failed to read the source: " + mFailure, mFailure);
+        }
+        if (!mComplete) throw new IOException(ABORT_MESSAGE);
+        return null;
+      }
+      return e;
+    }
+
+    /**
+     * Puts an entry to the queue unless the splitter is aborted.
+     *
+     * @return false if the splitter was aborted.
+     */
+    boolean put(DocumentEntry e) {
+      try {
+        while (!mAborted) {
+          if (mQueue.offer(e, POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS)) return true;
+        }
+      } catch (InterruptedException ex) {
+        mAborted = true;
+      }
+      return false;
+    }
+
+    /**
+     * Always delivers the end-of-data marker: if the splitter is aborted,
+     * the remaining entries are dropped to make room for it.
+     */
+    void finish() {
+      try {
+        while (!mQueue.offer(END_OF_DATA, POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+          if (mAborted) mQueue.clear();
+        }
+      } catch (InterruptedException ex) {
+        mAborted = true;
+        // Only the feeder thread adds entries, so the queue has room after clearing it
+        mQueue.clear();
+        mQueue.offer(END_OF_DATA);
+      }
+    }
+  }
+
+  private static final long POLL_TIMEOUT_MS = 100;
+  private static final String ABORT_MESSAGE = "Reading is aborted, because another shard failed";
+  /** A special entry marking the end of the shard. */
+  private static final DocumentEntry END_OF_DATA = new DocumentEntry(null, null, null, null);
+
+  private final DocumentSource  mSource;
+  private final int             mBlockSize;
+  private final Shard[]         mShards;
+  private Thread                mFeeder = null;
+  private volatile boolean      mAborted = false;
+  private volatile Throwable    mFailure = null;
+  /** True if all records of the underlying source were distributed among shards. */
+  private volatile boolean      mComplete = false;
+}
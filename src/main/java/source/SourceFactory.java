@@ -10,6 +10,24 @@ public class SourceFactory {
     } 
     return new ContentSourceSource(sourceName, locationName);
   }
+  
+  /**
+   * Creates a document source that reads input files using several threads
+   * (see {@link ContentSourceSource#supportsParallelRead(String)}).
+   * 
+   * @param sourceName      a source type.
+   * @param locationName    a location of input data.
+   * @param readerThreadQty the number of reader threads (zero means sequential reading).
+   * @param orderedRead     if true, documents are returned in the order of sequential reading.
+   */
+  public static DocumentSource createDocumentSource(String sourceName, String locationName,
+                                                    int readerThreadQty, boolean orderedRead) throws Exception {
+    if (readerThreadQty == 0) return createDocumentSource(sourceName, locationName);
+    if (!ContentSourceSource.supportsParallelRead(sourceName)) {
+      throw new Exception("Source type " + sourceName + " cannot read files in parallel");
+    }
+    return new ContentSourceSource(sourceName, locationName, 0, 1, readerThreadQty, orderedRead);
+  }
 
   public static String [] getDocSourceList() {
     return new String[] { DOC_SOURCE_YAHOO_ANSWERS, 
@@ -15,6 +15,7 @@
  */
 package source;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 import utils.*;
@@ -29,23 +30,38 @@ import edu.stanford.nlp.pipeline.StanfordCoreNLP;
 /**
  * 
  * A simple class to extract a "clean" sequence of tokens from a potentially
- * messy text.
+ * messy text. The object is not modified after construction: 
+ * it can be shared among threads.
  * 
  * @author Leonid Boytsov, modeled after http://nlp.stanford.edu/software/corenlp.shtml
  *
  */
 public class TextCleaner {
   public TextCleaner(DictNoComments stopWords) {
-    initTextCleaner(stopWords, UtilConst.USE_STANFORD, UtilConst.DO_LEMMATIZE);
+    initTextCleaner(stopWords, UtilConst.USE_STANFORD, UtilConst.DO_LEMMATIZE, 1);
   }
   public TextCleaner(DictNoComments stopWords, boolean bUseStanford, boolean bLemmatize) {
-    initTextCleaner(stopWords, bUseStanford, bLemmatize);
+    initTextCleaner(stopWords, bUseStanford, bLemmatize, 1);
+  }
+  /**
+   * Constructor.
+   * 
+   * @param stopWords       a dictionary of stop words (can be null).
+   * @param bUseStanford    do we use Stanford CoreNLP?
+   * @param bLemmatize      do we lemmatize (used only with Stanford CoreNLP)?
+   * @param batchThreadQty  the number of threads used by {@link #cleanUpBatch(List)}.
+   */
+  public TextCleaner(DictNoComments stopWords, boolean bUseStanford, boolean bLemmatize, 
+                     int batchThreadQty) {
+    initTextCleaner(stopWords, bUseStanford, bLemmatize, batchThreadQty);
   }
   private void initTextCleaner(DictNoComments stopWords, 
                                boolean useStanford, 
-                               boolean lemmatize) {
+                               boolean lemmatize,
+                               int batchThreadQty) {
     mStopWords = stopWords;
     mUseStanford = useStanford;
+    mBatchThreadQty = Math.max(1, batchThreadQty);
     if (mUseStanford) {
       mLemmatize = lemmatize;
       Properties props = new Properties();
@@ -59,34 +75,82 @@ public class TextCleaner {
   }
   
   public ArrayList<String> cleanUp(String text) {
-    ArrayList<String>  res = new ArrayList<String>();
-    
     if (mUseStanford) {
       Annotation doc = new Annotation(text);
       mPipeline.annotate(doc);
       
- 
-      
-      for (CoreLabel token: doc.get(CoreAnnotations.TokensAnnotation.class)) {
-        String word = mLemmatize ?
-                      token.get(LemmaAnnotation.class) :
-                      token.get(TextAnnotation.class);
-        
-        word = word.toLowerCase();
-        // Ignore stop words if the stopword dictionary is present
-//        System.out.println(String.format("%s %b", word, mStopWords.contains(word)));
-        if (mStopWords != null && mStopWords.contains(word)) continue; 
-        res.add(word);
+      return extractTokens(doc);
+    }
+    return simpleCleanUp(text);
+  }
+  
+  /**
+   * Cleans up a batch of texts. If Stanford CoreNLP is used, texts are 
+   * annotated by several threads (see {@link #getBatchThreadQty()}).
+   * 
+   * @param texts   a list of texts.
+   * @return a list of token lists in the same order as the input texts.
+   */
+  public ArrayList<ArrayList<String>> cleanUpBatch(List<String> texts) {
+    ArrayList<ArrayList<String>> res = new ArrayList<ArrayList<String>>(texts.size());
+    
+    if (mUseStanford) {
+      ArrayList<Annotation> docs = new ArrayList<Annotation>(texts.size());
+      for (String text : texts) {
+        docs.add(new Annotation(text));
+      }
+      if (mBatchThreadQty > 1 && docs.size() > 1) {
+        mPipeline.annotate(docs, Math.min(mBatchThreadQty, docs.size()));
+      } else {
+        for (Annotation doc : docs) {
+          mPipeline.annotate(doc);
+        }
+      }
+      for (Annotation doc : docs) {
+        res.add(extractTokens(doc));
       }
     } else {
-      // If Stanford is not present using a simpler tokenizer.
-      for (String s: text.replaceAll("\\s", " ").split("[!:;, ]+")) {
-        String word = s.toLowerCase();
-        // Ignore stop words if the stopword dictionary is present
-        if (mStopWords != null && mStopWords.contains(word)) continue; 
-        res.add(word);        
+      for (String text : texts) {
+        res.add(simpleCleanUp(text));
       }
     }
+    
+    return res;
+  }
+  
+  /**
+   * @return the number of threads used to clean up batches.
+   */
+  public int getBatchThreadQty() {
+    return mBatchThreadQty;
+  }
+  
+  private ArrayList<String> extractTokens(Annotation doc) {
+    ArrayList<String>  res = new ArrayList<String>();
+    
+    for (CoreLabel token: doc.get(CoreAnnotations.TokensAnnotation.class)) {
+      String word = mLemmatize ?
+                    token.get(LemmaAnnotation.class) :
+                    token.get(TextAnnotation.class);
+      
+      word = word.toLowerCase();
+      // Ignore stop words if the stopword dictionary is present
+      if (mStopWords != null && mStopWords.contains(word)) continue; 
+      res.add(word);
+    }
+    return res;
+  }
+  
+  private ArrayList<String> simpleCleanUp(String text) {
+    ArrayList<String>  res = new ArrayList<String>();
+    
+    // If Stanford is not present using a simpler tokenizer.
+    for (String s: text.replaceAll("\\s", " ").split("[!:;, ]+")) {
+      String word = s.toLowerCase();
+      // Ignore stop words if the stopword dictionary is present
+      if (mStopWords != null && mStopWords.contains(word)) continue; 
+      res.add(word);        
+    }
     return res;
   }
   
@@ -102,4 +166,5 @@ public class TextCleaner {
   private DictNoComments    mStopWords = null;
   private boolean           mLemmatize = false;
   private boolean           mUseStanford = false;
+  private int               mBatchThreadQty = 1;
 }
@@ -21,7 +21,7 @@ import javax.xml.stream.XMLStreamException;
 
 import utils.UtilConst;
 
-public class YahooAnswersDocumentSource implements DocumentSource {
+public class YahooAnswersDocumentSource implements CheckpointableSource {
 
   public YahooAnswersDocumentSource(String fileName) throws IOException, XMLStreamException {
     mSource = new YahooAnswersStreamParser(fileName, UtilConst.DO_XML_CLEANUP);
@@ -31,6 +31,7 @@ public class YahooAnswersDocumentSource implements DocumentSource {
   public DocumentEntry next() {
     if (mSource.hasNext()) {
       ParsedQuestion quest = mSource.next();
+      ++mQuestQty;
       String    queryId = quest.mQuestUri;
       
       for (int answId = 0; answId < quest.mAnswers.size(); ++answId) 
@@ -50,5 +51,38 @@ public class YahooAnswersDocumentSource implements DocumentSource {
     return null;
   }
 
+  /**
+   * Returns the position in the form record:&lt;# of questions read&gt;.
+   */
+  @Override
+  public String getPosition() {
+    return POS_RECORD + ":" + mQuestQty;
+  }
+
+  @Override
+  public void seek(String position) throws IOException {
+    String [] parts = position.split(":");
+    if (parts.length != 2 || !parts[0].equals(POS_RECORD)) {
+      throw new IOException("Unsupported source position: '" + position + "'");
+    }
+    long questQty = 0;
+    try {
+      questQty = Long.parseLong(parts[1]);
+    } catch (NumberFormatException e) {
+      throw new IOException("Invalid source position: '" + position + "'");
+    }
+    // Questions are skipped without extracting answers
+    while (mQuestQty < questQty) {
+      if (!mSource.hasNext()) {
+        throw new IOException("Cannot skip " + questQty + " questions, the source has only " + mQuestQty);
+      }
+      mSource.next();
+      ++mQuestQty;
+    }
+  }
+
+  private static final String POS_RECORD = "record";
+
   YahooAnswersStreamParser  mSource;
+  long                      mQuestQty = 0;
 }
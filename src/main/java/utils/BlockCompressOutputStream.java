@@ -0,0 +1,182 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>A base class of output streams that split data into blocks of a fixed size, compress
+ * each block independently on a thread pool (as pigz does), and write compressed blocks
+ * in the original order. A subclass defines how a block is compressed: the concatenation
+ * of compressed blocks should be a valid compressed file (e.g., a multi-member gzip file).</p>
+ *
+ * <p>The stream should be used by one producer thread.</p>
+ *
+ * @author Leonid Boytsov
+ *
+ */
+public abstract class BlockCompressOutputStream extends OutputStream {
+  /**
+   * Constructor.
+   *
+   * @param out         an output stream to write compressed data.
+   * @param blockSize   the size of a block of uncompressed data.
+   * @param threadQty   the number of compression threads.
+   */
+  protected BlockCompressOutputStream(OutputStream out, int blockSize, int threadQty) {
+    if (blockSize < 1) {
+      throw new IllegalArgumentException("Invalid block size: " + blockSize);
+    }
+    if (threadQty < 1) {
+      throw new IllegalArgumentException("The number of threads should be >= 1");
+    }
+    mOut = out;
+    mBlockSize = blockSize;
+    mMaxPendingQty = PENDING_BLOCKS_PER_THREAD * threadQty;
+    mBuf = new byte[blockSize];
+    mPool = Executors.newFixedThreadPool(threadQty, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "block-compressor");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * Compresses one block, this function is called from several threads.
+   *
+   * @param data  a block of data.
+   * @param len   the length of the block (it can be zero).
+   * @return compressed data.
+   * @throws IOException
+   */
+  protected abstract byte[] compressBlock(byte[] data, int len) throws IOException;
+
+  @Override
+  public void write(int b) throws IOException {
+    checkOpen();
+    mBuf[mLen++] = (byte)b;
+    if (mLen == mBlockSize) submitBlock();
+  }
+
+  @Override
+  public void write(byte[] buf, int off, int len) throws IOException {
+    checkOpen();
+    if (off < 0 || len < 0 || len > buf.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    while (len > 0) {
+      int qty = Math.min(len, mBlockSize - mLen);
+      System.arraycopy(buf, off, mBuf, mLen, qty);
+      mLen += qty;
+      off += qty;
+      len -= qty;
+      if (mLen == mBlockSize) submitBlock();
+    }
+  }
+
+  /**
+   * Compresses buffered data as a separate (possibly short) block and writes out all blocks.
+   */
+  @Override
+  public void flush() throws IOException {
+    checkOpen();
+    if (mLen > 0) submitBlock();
+    while (!mPending.isEmpty()) writeOldest();
+    mOut.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (mClosed) return;
+    Throwable error = null;
+    try {
+      // A compressed file shouldn't be empty even if there is no data
+      if (mLen > 0 || mBlockQty == 0) submitBlock();
+      while (!mPending.isEmpty()) writeOldest();
+    } catch (Throwable e) {
+      error = e;
+      throw e;
+    } finally {
+      mClosed = true;
+      mPool.shutdownNow();
+      // The underlying stream is closed even if blocks can't be written
+      try {
+        mOut.close();
+      } catch (IOException e) {
+        // The original exception is more informative
+        if (error == null) throw e;
+        error.addSuppressed(e);
+      }
+    }
+  }
+
+  private void submitBlock() throws IOException {
+    final byte[] data = mBuf;
+    final int    len = mLen;
+    mPending.add(mPool.submit(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws Exception {
+        return compressBlock(data, len);
+      }
+    }));
+    ++mBlockQty;
+    // The buffer is owned by the task now
+    mBuf = new byte[mBlockSize];
+    mLen = 0;
+    while (mPending.size() > mMaxPendingQty) writeOldest();
+  }
+
+  private void writeOldest() throws IOException {
+    byte[] compr = null;
+    try {
+      compr = mPending.poll().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while compressing data", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to compress a block: " + e.getCause(), e.getCause());
+    }
+    mOut.write(compr);
+  }
+
+  private void checkOpen() throws IOException {
+    if (mClosed) throw new IOException("The stream is closed");
+  }
+
+  private static final int PENDING_BLOCKS_PER_THREAD = 2;
+
+  private final OutputStream                  mOut;
+  private final int                           mBlockSize;
+  private final int                           mMaxPendingQty;
+  private final ExecutorService               mPool;
+  private final ArrayDeque<Future<byte[]>>    mPending = new ArrayDeque<Future<byte[]>>();
+
+  private byte[]  mBuf;
+  private int     mLen = 0;
+  private long    mBlockQty = 0;
+  private boolean mClosed = false;
+}
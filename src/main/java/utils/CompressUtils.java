@@ -18,6 +18,7 @@ import java.io.*;
 import java.util.zip.*;
 
 import org.apache.tools.bzip2.CBZip2InputStream;
+import org.apache.tools.bzip2.CBZip2OutputStream;
 
 /**
  *   Creates an input/output stream for a potentially compressed file;
@@ -27,13 +28,90 @@ import org.apache.tools.bzip2.CBZip2InputStream;
  *   </p>
  *   <ul>
  *   <li>For reading: .gz and bz2
- *   <li>For writing: only .gz
+ *   <li>For writing: .gz and bz2
  *   </ul>
+ *   <p>
+ *   Compressed files can be decompressed in a background thread
+ *   (see {@link #setReadAhead(boolean)} and {@link ReadAheadInputStream}).
+ *   Blocks of bzip2 files can be decompressed in parallel
+ *   (see {@link #setBZip2ThreadQty(int)} and {@link ParallelBZip2InputStream}),
+ *   by default, using as many threads as there are processors.
+ *   Output files are compressed in parallel as well: blocks are compressed
+ *   independently (see {@link #setCompressThreadQty(int)} and {@link BlockCompressOutputStream}).
+ *   </p>
  *
  */
 public class CompressUtils {
+  public static final int READ_AHEAD_BUFFER_SIZE = 1024 * 1024;
+  public static final int READ_AHEAD_BUFFER_QTY = 4;
+  
   /**
-   * Creates an input stream to read from a regular or compressed file.
+   * Enables or disables read-ahead decompression for streams created by 
+   * {@link #createInputStream(String)}.
+   * 
+   * @param readAhead if true, compressed files are decompressed in a background thread.
+   */
+  public static void setReadAhead(boolean readAhead) {
+    mReadAhead = readAhead;
+  }
+  
+  public static boolean isReadAhead() {
+    return mReadAhead;
+  }
+  
+  /**
+   * Sets the number of threads to decompress bzip2 files.
+   * 
+   * @param threadQty the number of threads (by default, the number of processors); 
+   *                  if zero, files are decompressed sequentially by the consumer thread.
+   */
+  public static void setBZip2ThreadQty(int threadQty) {
+    if (threadQty < 0) {
+      throw new IllegalArgumentException("The number of threads should be >= 0");
+    }
+    mBZip2ThreadQty = threadQty;
+  }
+  
+  public static int getBZip2ThreadQty() {
+    return mBZip2ThreadQty;
+  }
+  
+  /**
+   * Sets the number of threads to compress output files.
+   * 
+   * @param threadQty the number of threads; if zero, files are compressed
+   *                  sequentially by the producer thread.
+   */
+  public static void setCompressThreadQty(int threadQty) {
+    if (threadQty < 0) {
+      throw new IllegalArgumentException("The number of threads should be >= 0");
+    }
+    mCompressThreadQty = threadQty;
+  }
+  
+  public static int getCompressThreadQty() {
+    return mCompressThreadQty;
+  }
+  
+  /**
+   * @return consumer stalls of all read-ahead streams: each stall is recorded as 
+   *         one item, whose volume is the number of bytes in the awaited buffer.
+   */
+  public static StageStats getReadAheadStallStats() {
+    return mStallStats;
+  }
+  
+  /**
+   * @return a one-line summary of read-ahead stalls.
+   */
+  public static String getReadAheadStallSummary() {
+    return String.format("Read-ahead decompression: consumers waited for data %d times, %d ms in total", 
+                         mStallStats.getItemQty(), mStallStats.getNanos() / 1000000);
+  }
+  
+  /**
+   * Creates an input stream to read from a regular or compressed file. Compressed
+   * files are read ahead if this is enabled by {@link #setReadAhead(boolean)}.
    * 
    * @param fileName a file name with an extension (.gz or .bz2) or without it;
    *                   if the user specifies an extension .gz or .bz2,
@@ -43,31 +121,73 @@ public class CompressUtils {
    * @throws IOException
    */
   public static InputStream createInputStream(String fileName) throws IOException {
+    return createInputStream(fileName, mReadAhead);
+  }
+  
+  /**
+   * Creates an input stream to read from a regular or compressed file.
+   * 
+   * @param fileName  a file name with an extension (.gz or .bz2) or without it;
+   *                    if the user specifies an extension .gz or .bz2,
+   *                    we assume that the input
+   *                    file is compressed.
+   * @param readAhead if true, a compressed file is decompressed in a background thread
+   *                  (see {@link ReadAheadInputStream}).
+   * @return an input stream to read from the file. 
+   * @throws IOException
+   */
+  public static InputStream createInputStream(String fileName, boolean readAhead) throws IOException {
     InputStream finp = new FileInputStream(fileName);
-    if (fileName.endsWith(".gz")) return new GZIPInputStream(finp);
-    if (fileName.endsWith(".bz2")) {
-      finp.read(new byte[2]); // skip the mark
+    InputStream res = finp;
+    if (fileName.endsWith(".gz")) {
+      res = new GZIPInputStream(finp);
+    } else if (fileName.endsWith(".bz2")) {
+      if (mBZip2ThreadQty > 0) {
+        res = new ParallelBZip2InputStream(finp, mBZip2ThreadQty);
+      } else {
+        finp = new BufferedInputStream(finp);
+        finp.read(new byte[2]); // skip the mark
 
-      return new CBZip2InputStream(finp);
+        // Concatenated streams are produced, e.g., by pbzip2
+        res = new CBZip2InputStream(finp, true);
+      }
+    }
+    if (readAhead && (fileName.endsWith(".gz") || fileName.endsWith(".bz2"))) {
+      res = new ReadAheadInputStream(res, READ_AHEAD_BUFFER_SIZE, READ_AHEAD_BUFFER_QTY, mStallStats);
     }
-    return finp;
+    return res;
   }
   
   /**
-   * Creates an output stream to write to a regular or compressed file.
+   * Creates an output stream to write to a regular or compressed file. 
+   * Compressed files are written as multi-member gzip files or as concatenated
+   * bzip2 streams (see {@link #setCompressThreadQty(int)}), which can be read
+   * by {@link #createInputStream(String)}.
    * 
-   * @param fileName    a file name with an extension .gz or without it;
-   *                    if the user specifies an extension .gz, we assume
+   * @param fileName    a file name with an extension (.gz or .bz2) or without it;
+   *                    if the user specifies an extension .gz or .bz2, we assume
    *                    that the output file should be compressed.
    * @return an output stream to write to a file.
    * @throws IOException
    */
   public static OutputStream createOutputStream(String fileName) throws IOException {
     OutputStream foutp = new FileOutputStream(fileName);
-    if (fileName.endsWith(".gz")) return new GZIPOutputStream(foutp);
+    if (fileName.endsWith(".gz")) {
+      if (mCompressThreadQty > 0) return new ParallelGZIPOutputStream(foutp, mCompressThreadQty);
+      return new GZIPOutputStream(foutp);
+    }
     if (fileName.endsWith(".bz2")) {
-      throw new IOException("bz2 is not supported for writing");      
+      if (mCompressThreadQty > 0) return new ParallelBZip2OutputStream(foutp, mCompressThreadQty);
+      foutp = new BufferedOutputStream(foutp);
+      foutp.write('B');
+      foutp.write('Z'); // CBZip2OutputStream doesn't write the mark
+      return new CBZip2OutputStream(foutp, ParallelBZip2OutputStream.BLOCK_SIZE_100K);
     }
     return foutp;
   }
+  
+  private static volatile boolean mReadAhead = false;
+  private static volatile int     mBZip2ThreadQty = Runtime.getRuntime().availableProcessors();
+  private static volatile int     mCompressThreadQty = Runtime.getRuntime().availableProcessors();
+  private static final StageStats mStallStats = new StageStats("read_ahead_stall");
 }
@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A thread-safe histogram of latencies (in nanoseconds) with logarithmic buckets.
+ * Each power of two is split into {@link #SUB_BUCKET_QTY} buckets, so that
+ * percentiles are computed with a relative error of at most 25%.</p>
+ *
+ * @author Leonid Boytsov
+ *
+ */
+public class LatencyHistogram {
+  public static final int SUB_BUCKET_BITS = 2;
+  public static final int SUB_BUCKET_QTY = 1 << SUB_BUCKET_BITS;
+
+  /**
+   * Adds one value.
+   *
+   * @param nanos a latency in nanoseconds.
+   */
+  public void record(long nanos) {
+    if (nanos < 0) nanos = 0;
+    mCounts.incrementAndGet(getBucket(nanos));
+    mTotalCount.incrementAndGet();
+    long prevMax;
+    while (nanos > (prevMax = mMax.get())) {
+      if (mMax.compareAndSet(prevMax, nanos)) break;
+    }
+  }
+
+  /**
+   * @return the number of recorded values.
+   */
+  public long getCount() {
+    return mTotalCount.get();
+  }
+
+  /**
+   * @return the maximum recorded value.
+   */
+  public long getMax() {
+    return mMax.get();
+  }
+
+  /**
+   * Computes an approximate percentile: the upper bound of the bucket
+   * that contains the percentile.
+   *
+   * @param percent a percentile (e.g., 99 for the 99th percentile).
+   * @return an approximate percentile value, or 0 if the histogram is empty.
+   */
+  public long getPercentile(double percent) {
+    long total = mTotalCount.get();
+    if (total == 0) return 0;
+    long threshold = Math.max(1, (long) Math.ceil(total * percent / 100.0));
+    long sum = 0;
+    for (int i = 0; i < BUCKET_QTY; ++i) {
+      sum += mCounts.get(i);
+      if (sum >= threshold) return Math.min(getBucketUpperBound(i), mMax.get());
+    }
+    return mMax.get();
+  }
+
+  static int getBucket(long v) {
+    if (v < SUB_BUCKET_QTY) return (int) v;
+    int exp = 63 - Long.numberOfLeadingZeros(v);
+    int sub = (int) ((v >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKET_QTY - 1));
+    return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKET_QTY + sub;
+  }
+
+  static long getBucketUpperBound(int bucket) {
+    if (bucket < SUB_BUCKET_QTY) return bucket;
+    int exp = bucket / SUB_BUCKET_QTY + SUB_BUCKET_BITS - 1;
+    int sub = bucket % SUB_BUCKET_QTY;
+    long width = 1L << (exp - SUB_BUCKET_BITS);
+    return ((SUB_BUCKET_QTY + sub) * width) + width - 1;
+  }
+
+  private static final int BUCKET_QTY = getBucket(Long.MAX_VALUE) + 1;
+
+  private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_QTY);
+  private final AtomicLong      mTotalCount = new AtomicLong();
+  private final AtomicLong      mMax = new AtomicLong();
+}
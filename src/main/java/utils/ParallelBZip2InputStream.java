@@ -0,0 +1,590 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.tools.bzip2.CBZip2InputStream;
+
+/**
+ * <p>Decompresses a bzip2 file using several threads. A bzip2 stream consists
+ * of independent blocks, which aren't byte-aligned, but each block starts with
+ * the 48-bit magic number 0x314159265359 and the stream ends with the magic number
+ * 0x177245385090 followed by the combined CRC. A scanner thread finds these magic numbers
+ * at the bit level, wraps each block into a separate single-block stream, and
+ * submits it to a thread pool, where it is decompressed using {@link CBZip2InputStream}.
+ * Decompressed blocks are returned in the original order.</p>
+ *
+ * <p>A magic number can occur inside compressed data by chance. Such false block
+ * boundaries are detected by checking the CRC of decompressed data: if a block cannot be
+ * decompressed, it is merged with the following blocks. Concatenated (multi-stream) files,
+ * e.g., produced by pbzip2, are supported. If the data ends without the end-of-stream marker,
+ * the consumer gets an exception after the data of all complete blocks.</p>
+ *
+ * <p>Unlike {@link CBZip2InputStream}, this stream expects the input to start with the
+ * "BZ" signature. The stream should be used by one consumer thread.</p>
+ *
+ * @author Leonid Boytsov
+ *
+ */
+public class ParallelBZip2InputStream extends InputStream {
+  /**
+   * Constructor.
+   *
+   * @param inp         a compressed input stream (it is closed when the data ends
+   *                    or when this stream is closed).
+   * @param threadQty   the number of decompression threads.
+   * @throws IOException
+   */
+  public ParallelBZip2InputStream(InputStream inp, int threadQty) throws IOException {
+    if (threadQty < 1) {
+      throw new IllegalArgumentException("The number of threads should be >= 1");
+    }
+    mInp = inp;
+    if (!ensureLoaded(STREAM_HEADER_LEN) || !isStreamHeader(0)) {
+      throw new IOException("Stream is not in the BZip2 format");
+    }
+    mQueue = new ArrayBlockingQueue<Segment>(QUEUE_BLOCKS_PER_THREAD * threadQty);
+    ThreadFactory daemonFactory = new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        // A consumer that doesn't close the stream shouldn't prevent the JVM from exiting
+        Thread t = new Thread(r, "bzip2-decoder");
+        t.setDaemon(true);
+        return t;
+      }
+    };
+    mPool = Executors.newFixedThreadPool(threadQty, daemonFactory);
+    mScanner = daemonFactory.newThread(new Runnable() {
+      @Override
+      public void run() {
+        scan();
+      }
+    });
+    mScanner.setName("bzip2-scanner");
+    mScanner.start();
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!ensureData()) return -1;
+    return mCurr[mCurrPos++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] buf, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || len > buf.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (len == 0) return 0;
+    if (!ensureData()) return -1;
+    int qty = Math.min(len, mCurrLen - mCurrPos);
+    System.arraycopy(mCurr, mCurrPos, buf, off, qty);
+    mCurrPos += qty;
+    return qty;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return mCurr != null ? mCurrLen - mCurrPos : 0;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (mClosed) return;
+    mClosed = true;
+    mScanner.interrupt();
+    mPool.shutdownNow();
+    try {
+      mScanner.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Makes sure that the current decompressed block has unread data.
+   *
+   * @return false if there is no more data.
+   */
+  private boolean ensureData() throws IOException {
+    if (mClosed) throw new IOException("The stream is closed");
+    while (mCurr == null || mCurrPos >= mCurrLen) {
+      if (mEnd) return false;
+      Segment seg = takeSegment();
+      if (seg == null) {
+        mEnd = true;
+        mPool.shutdown();
+        return false;
+      }
+      Block block = null;
+      try {
+        block = seg.mFuture.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for data", e);
+      } catch (ExecutionException e) {
+        block = decodeMerged(seg, e.getCause());
+      }
+      mCurr = block.mData;
+      mCurrLen = block.mLen;
+      mCurrPos = 0;
+    }
+    return true;
+  }
+
+  /**
+   * @return the next segment or null if there are no more segments.
+   */
+  private Segment takeSegment() throws IOException {
+    Segment seg = takeItem();
+    if (seg.mError != null) {
+      throw new IOException("Failed to read bzip2 data: " + seg.mError, seg.mError);
+    }
+    return seg.mBits != null ? seg : null;
+  }
+
+  /**
+   * @return the next item passed by the scanner (a segment, the end-of-data marker, or an error).
+   */
+  private Segment takeItem() throws IOException {
+    if (mPushBack != null) {
+      Segment seg = mPushBack;
+      mPushBack = null;
+      return seg;
+    }
+    try {
+      return mQueue.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for data", e);
+    }
+  }
+
+  /**
+   * A block that cannot be decompressed can be a part of a block that was split
+   * at a false magic number. In this case, it is merged with the following blocks
+   * of the same stream.
+   */
+  private Block decodeMerged(Segment seg, Throwable error) throws IOException {
+    ArrayList<Segment> segs = new ArrayList<Segment>();
+    segs.add(seg);
+    while (segs.size() < MAX_MERGE_QTY) {
+      Segment next = takeItem();
+      if (next.mBits == null || next.mStreamId != seg.mStreamId) {
+        mPushBack = next;
+        break;
+      }
+      next.mFuture.cancel(true);
+      segs.add(next);
+      try {
+        return decode(segs);
+      } catch (IOException e) {
+        // Try to merge more blocks
+      }
+    }
+    throw new IOException("Corrupted bzip2 block: " + error, error);
+  }
+
+  /**
+   * The body of the scanner thread: finds blocks and submits them for decompression.
+   */
+  private void scan() {
+    try {
+      try {
+        scanStreams();
+        mQueue.put(new Segment(null));
+      } finally {
+        mInp.close();
+      }
+    } catch (InterruptedException e) {
+      // The stream is closed
+    } catch (Exception e) {
+      // The consumer will take this segment after all other segments
+      try {
+        mQueue.put(new Segment(e));
+      } catch (InterruptedException e1) {
+        // The stream is closed
+      }
+    }
+  }
+
+  private void scanStreams() throws IOException, InterruptedException {
+    long  pos = 0; // the position of the stream header in bytes
+    int   streamId = 0;
+    while (true) {
+      if (!ensureLoaded(pos + STREAM_HEADER_LEN) || !isStreamHeader(pos)) {
+        throw new IOException("Garbage after a valid BZip2 stream");
+      }
+      mLevel = mData[(int)(pos - mBase) + 3] - '0';
+      mCombinedCRC = 0;
+      mSegStart = -1;
+      long next = scanBlocks(pos + STREAM_HEADER_LEN, streamId++);
+      if (next < 0) return;
+      pos = next;
+    }
+  }
+
+  /**
+   * Finds blocks of a stream.
+   *
+   * @param pos       the position of the first block (in bytes).
+   * @param streamId  a stream number.
+   * @return the position of the next stream or -1 if there are no more streams.
+   */
+  private long scanBlocks(long pos, int streamId) throws IOException, InterruptedException {
+    long scanFrom = pos * 8; // magic numbers can start at this bit or later
+    long reg = 0;
+    for (long i = pos; ; ++i) {
+      if (!ensureLoaded(i + 1)) {
+        // Complete blocks are still returned, but a valid stream ends with the end-of-stream marker
+        if (mSegStart >= 0) emitSegment(mSegStart, i * 8, streamId);
+        throw new IOException("Unexpected end of bzip2 data: the end-of-stream marker is missing");
+      }
+      reg = (reg << 8) | (mData[(int)(i - mBase)] & 0xff);
+      long endBit = (i + 1) * 8;
+      for (int k = 7; k >= 0; --k) {
+        long start = endBit - k - MAGIC_BITS;
+        if (start < scanFrom) continue;
+        long w = (reg >>> k) & MAGIC_MASK;
+        if (w == BLOCK_MAGIC) {
+          if (mSegStart >= 0) emitSegment(mSegStart, start, streamId);
+          mSegStart = start;
+          scanFrom = start + MAGIC_BITS;
+        } else if (w == EOS_MAGIC) {
+          long next = (start + MAGIC_BITS + 32 + 7) / 8;
+          if (isStreamEnd(start, next)) {
+            if (mSegStart >= 0) emitSegment(mSegStart, start, streamId);
+            mSegStart = -1;
+            mKeepFrom = next;
+            return ensureLoaded(next + 1) ? next : -1;
+          }
+          scanFrom = start + MAGIC_BITS;
+        }
+      }
+      // An end-of-stream marker can start in one of previous bytes
+      if (mSegStart < 0) mKeepFrom = i - MAGIC_BITS / 8;
+    }
+  }
+
+  /**
+   * Checks if a (potential) end-of-stream marker is real: either the combined CRC is
+   * correct or the marker is followed by the end of data or by the next stream.
+   *
+   * @param start the position of the marker (in bits).
+   * @param next  the position of the next stream (in bytes).
+   */
+  private boolean isStreamEnd(long start, long next) throws IOException {
+    if (!ensureLoaded(next)) return false;
+    int crc = (int)getBits(start + MAGIC_BITS, 32);
+    // If a block was split at a false magic number, the combined CRC is wrong
+    int combinedCRC = mCombinedCRC;
+    if (mSegStart >= 0) combinedCRC = updateCombinedCRC(combinedCRC, (int)getBits(mSegStart + MAGIC_BITS, 32));
+    if (crc == combinedCRC) return true;
+    if (!ensureLoaded(next + 1)) return true;
+    if (!ensureLoaded(next + STREAM_HEADER_LEN + MAGIC_BITS / 8) || !isStreamHeader(next)) return false;
+    long w = getBits((next + STREAM_HEADER_LEN) * 8, MAGIC_BITS);
+    return w == BLOCK_MAGIC || w == EOS_MAGIC;
+  }
+
+  private boolean isStreamHeader(long pos) {
+    int off = (int)(pos - mBase);
+    int level = mData[off + 3];
+    return mData[off] == 'B' && mData[off + 1] == 'Z' && mData[off + 2] == 'h' && level >= '1' && level <= '9';
+  }
+
+  /**
+   * Copies a block (the bits from start to end) and submits it for decompression.
+   */
+  private void emitSegment(long start, long end, int streamId) throws InterruptedException {
+    BitWriter w = new BitWriter((int)((end - start + 7) / 8));
+    w.copyBits(mData, start - mBase * 8, end - start);
+    final Segment seg = new Segment(w.toByteArray(), end - start, mLevel,
+                                    (int)getBits(start + MAGIC_BITS, 32), streamId);
+    mCombinedCRC = updateCombinedCRC(mCombinedCRC, seg.mBlockCRC);
+    mKeepFrom = end / 8;
+    seg.mFuture = mPool.submit(new Callable<Block>() {
+      @Override
+      public Block call() throws Exception {
+        return decode(Arrays.asList(seg));
+      }
+    });
+    mQueue.put(seg);
+  }
+
+  /**
+   * Makes sure that input bytes up to (but not including) the given position are loaded.
+   *
+   * @return false if the input ends before this position.
+   */
+  private boolean ensureLoaded(long end) throws IOException {
+    while (mBase + mDataLen < end) {
+      long keepFrom = mSegStart >= 0 ? Math.min(mKeepFrom, mSegStart / 8) : mKeepFrom;
+      int  discard = (int)(keepFrom - mBase);
+      if (discard > 0 && discard >= mDataLen / 2) {
+        System.arraycopy(mData, discard, mData, 0, mDataLen - discard);
+        mDataLen -= discard;
+        mBase += discard;
+      }
+      if (mDataLen + READ_SIZE > mData.length) {
+        mData = Arrays.copyOf(mData, Math.max(mData.length * 2, mDataLen + READ_SIZE));
+      }
+      int qty = mInp.read(mData, mDataLen, READ_SIZE);
+      if (qty < 0) return false;
+      mDataLen += qty;
+    }
+    return true;
+  }
+
+  /**
+   * @return up to 64 loaded bits starting from the given position (in bits).
+   */
+  private long getBits(long pos, int qty) {
+    long res = 0;
+    for (int i = 0; i < qty; ++i, ++pos) {
+      int b = mData[(int)(pos / 8 - mBase)];
+      res = (res << 1) | ((b >>> (7 - (int)(pos % 8))) & 1);
+    }
+    return res;
+  }
+
+  private static int updateCombinedCRC(int combinedCRC, int blockCRC) {
+    return ((combinedCRC << 1) | (combinedCRC >>> 31)) ^ blockCRC;
+  }
+
+  /**
+   * Decompresses consecutive segments of one stream as a single block.
+   */
+  private static Block decode(List<Segment> segs) throws IOException {
+    Segment   first = segs.get(0);
+    long      bitQty = 0;
+    for (Segment seg : segs) bitQty += seg.mBitQty;
+    // Without the "BZ" signature, see CBZip2InputStream
+    BitWriter w = new BitWriter((int)(bitQty / 8) + 16);
+    w.writeBits('h', 8);
+    w.writeBits('0' + first.mLevel, 8);
+    for (Segment seg : segs) w.copyBits(seg.mBits, 0, seg.mBitQty);
+    w.writeBits(EOS_MAGIC >>> 24, 24);
+    w.writeBits(EOS_MAGIC & 0xffffff, 24);
+    // The combined CRC of a single-block stream is equal to the block CRC
+    w.writeBits(first.mBlockCRC & 0xffffffffL, 32);
+
+    byte[] data = new byte[first.mLevel * 100000 + 1024];
+    int    len = 0;
+    try {
+      CBZip2InputStream inp = new CBZip2InputStream(new ByteArrayInputStream(w.toByteArray()));
+      while (true) {
+        if (len == data.length) data = Arrays.copyOf(data, data.length * 2);
+        int qty = inp.read(data, len, data.length - len);
+        if (qty < 0) break;
+        len += qty;
+      }
+    } catch (RuntimeException e) {
+      // CBZip2InputStream doesn't check all the data, e.g., it can fail with an array index exception
+      throw new IOException("Corrupted bzip2 block: " + e, e);
+    }
+    // CBZip2InputStream only prints a message if the CRC is wrong
+    if (computeCRC(data, len) != first.mBlockCRC) {
+      throw new IOException("BZip2 CRC error");
+    }
+    return new Block(data, len);
+  }
+
+  private static int computeCRC(byte[] data, int len) {
+    int crc = 0xffffffff;
+    for (int i = 0; i < len; ++i) {
+      crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ data[i]) & 0xff];
+    }
+    return ~crc;
+  }
+
+  private static int[] createCRCTable() {
+    int[] table = new int[256];
+    for (int i = 0; i < 256; ++i) {
+      int c = i << 24;
+      for (int k = 0; k < 8; ++k) {
+        c = (c & 0x80000000) != 0 ? (c << 1) ^ CRC_POLY : c << 1;
+      }
+      table[i] = c;
+    }
+    return table;
+  }
+
+  /**
+   * Writes a sequence of bits (the most significant bit first).
+   */
+  private static final class BitWriter {
+    BitWriter(int capacity) {
+      mBuf = new byte[Math.max(capacity, 16)];
+    }
+
+    /**
+     * Writes the lowest qty (at most 32) bits of the value.
+     */
+    void writeBits(long value, int qty) {
+      mAcc = (mAcc << qty) | (value & ((1L << qty) - 1));
+      mAccQty += qty;
+      while (mAccQty >= 8) {
+        mAccQty -= 8;
+        append((int)(mAcc >>> mAccQty));
+      }
+    }
+
+    /**
+     * Copies bits from a byte array.
+     *
+     * @param src     a source array.
+     * @param off     the position of the first bit.
+     * @param qty     the number of bits.
+     */
+    void copyBits(byte[] src, long off, long qty) {
+      if (mAccQty == 0 && off % 8 == 0) {
+        int byteQty = (int)(qty / 8);
+        ensureCapacity(byteQty);
+        System.arraycopy(src, (int)(off / 8), mBuf, mLen, byteQty);
+        mLen += byteQty;
+        off += byteQty * 8L;
+        qty -= byteQty * 8L;
+      }
+      while (qty >= 8) {
+        writeBits(getByte(src, off), 8);
+        off += 8;
+        qty -= 8;
+      }
+      if (qty > 0) writeBits(getByte(src, off) >>> (8 - qty), (int)qty);
+    }
+
+    /**
+     * @return written bits padded with zeros to a byte boundary.
+     */
+    byte[] toByteArray() {
+      if (mAccQty > 0) writeBits(0, 8 - mAccQty);
+      return Arrays.copyOf(mBuf, mLen);
+    }
+
+    private static int getByte(byte[] src, long off) {
+      int i = (int)(off / 8), shift = (int)(off % 8);
+      int res = (src[i] & 0xff) << shift;
+      if (shift > 0 && i + 1 < src.length) res |= (src[i + 1] & 0xff) >>> (8 - shift);
+      return res & 0xff;
+    }
+
+    private void append(int b) {
+      ensureCapacity(1);
+      mBuf[mLen++] = (byte)b;
+    }
+
+    private void ensureCapacity(int qty) {
+      if (mLen + qty > mBuf.length) {
+        mBuf = Arrays.copyOf(mBuf, Math.max(mBuf.length * 2, mLen + qty));
+      }
+    }
+
+    private byte[]  mBuf;
+    private int     mLen = 0;
+    private long    mAcc = 0;
+    private int     mAccQty = 0;
+  }
+
+  /**
+   * A compressed block (bits from the block magic number to the next magic number),
+   * the end-of-data marker (mBits == null), or an error.
+   */
+  private static final class Segment {
+    Segment(byte[] bits, long bitQty, int level, int blockCRC, int streamId) {
+      mBits = bits;
+      mBitQty = bitQty;
+      mLevel = level;
+      mBlockCRC = blockCRC;
+      mStreamId = streamId;
+      mError = null;
+    }
+
+    Segment(Exception error) {
+      mBits = null;
+      mBitQty = 0;
+      mLevel = 0;
+      mBlockCRC = 0;
+      mStreamId = -1;
+      mError = error;
+    }
+
+    final byte[]      mBits;
+    final long        mBitQty;
+    final int         mLevel;
+    final int         mBlockCRC;
+    final int         mStreamId;
+    final Exception   mError;
+    Future<Block>     mFuture;
+  }
+
+  private static final class Block {
+    Block(byte[] data, int len) {
+      mData = data;
+      mLen = len;
+    }
+
+    final byte[] mData;
+    final int    mLen;
+  }
+
+  private static final long   BLOCK_MAGIC = 0x314159265359L;
+  private static final long   EOS_MAGIC = 0x177245385090L;
+  private static final int    MAGIC_BITS = 48;
+  private static final long   MAGIC_MASK = (1L << MAGIC_BITS) - 1;
+  private static final int    STREAM_HEADER_LEN = 4; // BZh + level
+  private static final int    CRC_POLY = 0x04c11db7;
+  private static final int[]  CRC_TABLE = createCRCTable();
+
+  private static final int    READ_SIZE = 256 * 1024;
+  private static final int    QUEUE_BLOCKS_PER_THREAD = 2;
+  private static final int    MAX_MERGE_QTY = 8;
+
+  private final InputStream             mInp;
+  private final BlockingQueue<Segment>  mQueue;
+  private final ExecutorService         mPool;
+  private final Thread                  mScanner;
+  private volatile boolean              mClosed = false;
+
+  // Used only by the scanner thread (and by the constructor)
+  private byte[]  mData = new byte[READ_SIZE * 2];
+  private int     mDataLen = 0;
+  private long    mBase = 0;      // the position of mData[0] in the input
+  private long    mKeepFrom = 0;  // input bytes before this position can be discarded
+  private long    mSegStart = -1; // the position (in bits) of the current block
+  private int     mLevel;
+  private int     mCombinedCRC;
+
+  // Used only by the consumer thread
+  private byte[]  mCurr = null;
+  private int     mCurrLen = 0;
+  private int     mCurrPos = 0;
+  private boolean mEnd = false;
+  private Segment mPushBack = null;
+}
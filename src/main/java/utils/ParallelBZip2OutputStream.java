@@ -0,0 +1,63 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.tools.bzip2.CBZip2OutputStream;
+
+/**
+ * <p>A bzip2 output stream that compresses blocks of data in parallel (as pbzip2 does).
+ * Each block is written as a separate bzip2 stream: the result is a concatenation
+ * of bzip2 streams, which can be read by {@link ParallelBZip2InputStream},
+ * by {@link org.apache.tools.bzip2.CBZip2InputStream} (if concatenated streams are enabled),
+ * and by <code>bzip2 -d</code>.</p>
+ *
+ * @author Leonid Boytsov
+ *
+ */
+public class ParallelBZip2OutputStream extends BlockCompressOutputStream {
+  public static final int BLOCK_SIZE_100K = 9;
+  /*
+   * A bzip2 block holds slightly less than 900K of (run-length encoded) data:
+   * a smaller chunk is likely to be compressed as one block.
+   */
+  public static final int BLOCK_SIZE = BLOCK_SIZE_100K * 100000 - 1000;
+
+  /**
+   * Constructor.
+   *
+   * @param out       an output stream to write compressed data.
+   * @param threadQty the number of compression threads.
+   */
+  public ParallelBZip2OutputStream(OutputStream out, int threadQty) {
+    super(out, BLOCK_SIZE, threadQty);
+  }
+
+  @Override
+  protected byte[] compressBlock(byte[] data, int len) throws IOException {
+    ByteArrayOutputStream res = new ByteArrayOutputStream(len / 4 + 64);
+    // CBZip2OutputStream doesn't write the mark
+    res.write('B');
+    res.write('Z');
+    CBZip2OutputStream bzip2 = new CBZip2OutputStream(res, BLOCK_SIZE_100K);
+    bzip2.write(data, 0, len);
+    bzip2.close();
+    return res.toByteArray();
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p>A gzip output stream that compresses blocks of data in parallel (as pigz does).
+ * Each block is written as a separate gzip member: the result is a standard
+ * multi-member gzip file, which can be read by {@link java.util.zip.GZIPInputStream}
+ * and by <code>gzip -d</code>.</p>
+ *
+ * @author Leonid Boytsov
+ *
+ */
+public class ParallelGZIPOutputStream extends BlockCompressOutputStream {
+  public static final int BLOCK_SIZE = 1024 * 1024;
+
+  /**
+   * Constructor.
+   *
+   * @param out       an output stream to write compressed data.
+   * @param threadQty the number of compression threads.
+   */
+  public ParallelGZIPOutputStream(OutputStream out, int threadQty) {
+    super(out, BLOCK_SIZE, threadQty);
+  }
+
+  @Override
+  protected byte[] compressBlock(byte[] data, int len) throws IOException {
+    ByteArrayOutputStream res = new ByteArrayOutputStream(len / 2 + 64);
+    GZIPOutputStream gzip = new GZIPOutputStream(res);
+    gzip.write(data, 0, len);
+    gzip.close();
+    return res.toByteArray();
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * <p>An input stream that reads ahead in a background thread: the thread reads
+ * (and, e.g., decompresses) data into a ring of large buffers, while the consumer
+ * processes previously filled buffers. Thus, decompression runs in parallel
+ * with parsing.</p>
+ *
+ * <p>The stream keeps track of the time the consumer is stalled waiting for data.
+ * If the stall time is close to the total processing time, the consumer
+ * is limited by reading/decompression rather than by parsing.</p>
+ *
+ * <p>The stream should be used by one consumer thread.</p>
+ *
+ * @author Leonid Boytsov
+ *
+ */
+public class ReadAheadInputStream extends InputStream {
+  /**
+   * Constructor.
+   *
+   * @param inp         an input stream to read from in the background thread
+   *                    (it is closed when the data ends or when this stream is closed).
+   * @param bufferSize  the size of a buffer.
+   * @param bufferQty   the number of buffers (at least two).
+   * @param stallStats  an optional (can be null) object to record consumer stalls.
+   */
+  public ReadAheadInputStream(InputStream inp, int bufferSize, int bufferQty, StageStats stallStats) {
+    if (bufferSize < 1) {
+      throw new IllegalArgumentException("Invalid buffer size: " + bufferSize);
+    }
+    if (bufferQty < 2) {
+      throw new IllegalArgumentException("The number of buffers should be at least two");
+    }
+    mInp = inp;
+    mStallStats = stallStats;
+    mFree = new ArrayBlockingQueue<Chunk>(bufferQty);
+    mFilled = new ArrayBlockingQueue<Chunk>(bufferQty + 1);
+    for (int i = 0; i < bufferQty; ++i) {
+      mFree.add(new Chunk(bufferSize));
+    }
+    mThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        readAhead();
+      }
+    }, "read-ahead");
+    // A consumer that doesn't close the stream shouldn't prevent the JVM from exiting
+    mThread.setDaemon(true);
+    mThread.start();
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!ensureData()) return -1;
+    return mCurr.mBuf[mCurrPos++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] buf, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || len > buf.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (len == 0) return 0;
+    if (!ensureData()) return -1;
+    int qty = Math.min(len, mCurr.mLen - mCurrPos);
+    System.arraycopy(mCurr.mBuf, mCurrPos, buf, off, qty);
+    mCurrPos += qty;
+    return qty;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return mCurr != null && mCurr.mLen > 0 ? mCurr.mLen - mCurrPos : 0;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (mClosed) return;
+    mClosed = true;
+    mThread.interrupt();
+    try {
+      mThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @return the total time (in nanoseconds) the consumer waited for data.
+   */
+  public long getStallNanos() {
+    return mStallNanos;
+  }
+
+  /**
+   * @return the number of times the consumer waited for data.
+   */
+  public long getStallQty() {
+    return mStallQty;
+  }
+
+  /**
+   * Makes sure that the current buffer has unread data.
+   *
+   * @return false if there is no more data.
+   * @throws IOException if the input stream failed (on every call after the failure).
+   */
+  private boolean ensureData() throws IOException {
+    if (mClosed) throw new IOException("The stream is closed");
+    if (mCurr != null) {
+      // An error is reported on every call rather than turning into the end of data
+      checkError(mCurr);
+      if (mCurr.mLen < 0) return false;
+      if (mCurrPos < mCurr.mLen) return true;
+      mFree.add(mCurr);
+      mCurr = null;
+    }
+    Chunk next = mFilled.poll();
+    if (next == null) {
+      long start = System.nanoTime();
+      try {
+        next = mFilled.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for data", e);
+      }
+      long nanos = System.nanoTime() - start;
+      mStallNanos += nanos;
+      ++mStallQty;
+      if (mStallStats != null) mStallStats.record(nanos, 1, Math.max(next.mLen, 0));
+    }
+    mCurr = next;
+    mCurrPos = 0;
+    checkError(next);
+    return next.mLen > 0;
+  }
+
+  private static void checkError(Chunk chunk) throws IOException {
+    if (chunk.mError != null) {
+      throw new IOException("Failed to read ahead: " + chunk.mError, chunk.mError);
+    }
+  }
+
+  /**
+   * The body of the background thread: fills free buffers one by one, the last
+   * buffer passed to the consumer is the end-of-data marker.
+   */
+  private void readAhead() {
+    try {
+      try {
+        while (true) {
+          Chunk     chunk = mFree.take();
+          Exception error = null;
+          chunk.mLen = 0;
+          try {
+            while (chunk.mLen < chunk.mBuf.length) {
+              int qty = mInp.read(chunk.mBuf, chunk.mLen, chunk.mBuf.length - chunk.mLen);
+              if (qty < 0) break;
+              chunk.mLen += qty;
+            }
+          } catch (Exception e) {
+            // Data read before the error are passed to the consumer first
+            error = e;
+          }
+          boolean eof = error != null || chunk.mLen < chunk.mBuf.length;
+          if (chunk.mLen > 0) mFilled.put(chunk);
+          if (eof) {
+            // The queue of filled buffers has an extra slot for this chunk
+            mFilled.put(new Chunk(error));
+            return;
+          }
+        }
+      } finally {
+        mInp.close();
+      }
+    } catch (InterruptedException e) {
+      // The stream is closed
+    } catch (IOException e) {
+      // Failed to close the input, all the data were passed to the consumer
+    }
+  }
+
+  private static final class Chunk {
+    Chunk(int bufferSize) {
+      mBuf = new byte[bufferSize];
+    }
+
+    /**
+     * Creates the end-of-data marker.
+     *
+     * @param error an exception thrown by the input stream or null.
+     */
+    Chunk(Exception error) {
+      mBuf = null;
+      mLen = -1;
+      mError = error;
+    }
+
+    final byte[]  mBuf;
+    int           mLen;
+    Exception     mError;
+  }
+
+  private final InputStream           mInp;
+  private final StageStats            mStallStats;
+  private final BlockingQueue<Chunk>  mFree;
+  private final BlockingQueue<Chunk>  mFilled;
+  private final Thread                mThread;
+
+  private Chunk             mCurr = null;
+  private int               mCurrPos = 0;
+  private volatile boolean  mClosed = false;
+  private long              mStallNanos = 0;
+  private long              mStallQty = 0;
+}
@@ -0,0 +1,88 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Thread-safe counters and a latency histogram of one processing stage,
+ * e.g., reading documents or adding them to the index.</p>
+ *
+ * @author Leonid Boytsov
+ *
+ */
+public class StageStats {
+  /**
+   * Constructor.
+   *
+   * @param name a stage name.
+   */
+  public StageStats(String name) {
+    mName = name;
+  }
+
+  /**
+   * Records one execution of the stage.
+   *
+   * @param nanos   the time spent (in nanoseconds).
+   * @param items   the number of processed items (e.g., documents).
+   * @param bytes   the number of processed bytes.
+   */
+  public void record(long nanos, long items, long bytes) {
+    mItemQty.addAndGet(items);
+    mBytes.addAndGet(bytes);
+    mNanos.addAndGet(nanos);
+    mHist.record(nanos);
+  }
+
+  public String getName() {
+    return mName;
+  }
+
+  /**
+   * @return the total number of processed items.
+   */
+  public long getItemQty() {
+    return mItemQty.get();
+  }
+
+  /**
+   * @return the total number of processed bytes.
+   */
+  public long getBytes() {
+    return mBytes.get();
+  }
+
+  /**
+   * @return the total time spent in this stage (summed over all threads).
+   */
+  public long getNanos() {
+    return mNanos.get();
+  }
+
+  /**
+   * @return a histogram of latencies of individual executions.
+   */
+  public LatencyHistogram getHistogram() {
+    return mHist;
+  }
+
+  private final String            mName;
+  private final AtomicLong        mItemQty = new AtomicLong();
+  private final AtomicLong        mBytes = new AtomicLong();
+  private final AtomicLong        mNanos = new AtomicLong();
+  private final LatencyHistogram  mHist = new LatencyHistogram();
+}
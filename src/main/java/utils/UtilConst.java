@@ -23,6 +23,10 @@ public class UtilConst {
    * An text field
    */
   public static final String FIELD_TEXT = "TEXT";
+  /**
+   * A content hash field (stored only as doc values).
+   */
+  public static final String FIELD_HASH = "HASH";
   
   public static final String XML_FIELD_DOCNO = "DOCNO";
   
@@ -0,0 +1,117 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package apps;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.Test;
+
+import source.DocumentEntry;
+import source.DocumentSource;
+import utils.UtilConst;
+
+public class IndexingPipelineTest {
+  private static class ListSource implements DocumentSource {
+    ListSource(DocumentEntry ... docs) {
+      mIter = Arrays.asList(docs).iterator();
+    }
+
+    @Override
+    public DocumentEntry next() throws IOException {
+      return mIter.hasNext() ? mIter.next() : null;
+    }
+
+    private final Iterator<DocumentEntry> mIter;
+  }
+
+  private static DocumentEntry doc(String docId, String text) {
+    return new DocumentEntry("q1", true, docId, text);
+  }
+
+  private static IndexWriter createWriter(Directory dir, OpenMode openMode) throws IOException {
+    return new IndexWriter(dir, LuceneIndexer.createIndexConfig(new BM25Similarity(), 16, openMode));
+  }
+
+  private static int countDocs(DirectoryReader reader, String docId) throws IOException {
+    return new IndexSearcher(reader).count(new TermQuery(new Term(UtilConst.FIELD_ID, docId)));
+  }
+
+  private void checkAppendWithRepeatedIds(int workerQty) throws Exception {
+    Directory dir = new ByteBuffersDirectory();
+    IndexWriter writer = createWriter(dir, OpenMode.CREATE);
+    new IndexingPipeline(writer, null, 1).run(new ListSource(doc("a", "old text a"), doc("b", "old text b")));
+    writer.close();
+
+    writer = createWriter(dir, OpenMode.CREATE_OR_APPEND);
+    StringWriter qrels = new StringWriter();
+    BufferedWriter qrelWriter = new BufferedWriter(qrels);
+    IndexedDocLookup existingDocs = new IndexedDocLookup(writer);
+    IndexingPipeline pipeline = new IndexingPipeline(writer, qrelWriter, workerQty);
+    pipeline.setExistingDocs(existingDocs);
+    int docQty = pipeline.run(new ListSource(
+        doc("c", "new text c"),
+        doc("a", "old text a"),
+        doc("c", "another new text c"),
+        doc("b", "new text b"),
+        doc("b", "newer text b"),
+        doc("c", "new text c")));
+    existingDocs.close();
+    writer.close();
+    qrelWriter.close();
+
+    assertEquals(2, docQty);
+    assertEquals(1, pipeline.getSkippedQty());
+    assertEquals(1, pipeline.getReplacedQty());
+    assertEquals(3, pipeline.getDuplicateQty());
+
+    DirectoryReader reader = DirectoryReader.open(dir);
+    assertEquals(3, reader.numDocs());
+    for (String docId : new String[]{"a", "b", "c"}) {
+      assertEquals(docId, 1, countDocs(reader, docId));
+    }
+    reader.close();
+
+    // Only the first occurrence of the new document gets a QREL entry
+    List<String> qrelLines = Arrays.asList(qrels.toString().split("\r?\n"));
+    assertEquals(Arrays.asList("q1 0 c " + LuceneIndexer.MAX_GRADE), qrelLines);
+  }
+
+  @Test
+  public void testAppendWithRepeatedNewIdSingleWorker() throws Exception {
+    checkAppendWithRepeatedIds(1);
+  }
+
+  @Test
+  public void testAppendWithRepeatedNewIdManyWorkers() throws Exception {
+    checkAppendWithRepeatedIds(4);
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package apps;
+
+import static org.junit.Assert.*;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.Test;
+
+import utils.StageStats;
+import utils.UtilConst;
+
+public class IndexingStatsTest {
+  @Test
+  public void testFlushes() throws Exception {
+    IndexingStats     stats = new IndexingStats();
+    Directory         dir = new ByteBuffersDirectory();
+    IndexWriterConfig conf = LuceneIndexer.createIndexConfig(new BM25Similarity(), 16, OpenMode.CREATE, stats);
+    // Keep flushed segments as they are
+    conf.setMergePolicy(stats.wrapMergePolicy(NoMergePolicy.INSTANCE));
+    IndexWriter writer = new IndexWriter(stats.wrapDirectory(dir), conf);
+
+    final int flushQty = 3, docsPerFlush = 50;
+    for (int i = 0; i < flushQty; ++i) {
+      for (int k = 0; k < docsPerFlush; ++k) {
+        Document doc = new Document();
+        doc.add(new TextField(UtilConst.FIELD_TEXT, "document number " + i + " " + k, Field.Store.YES));
+        writer.addDocument(doc);
+      }
+      writer.commit();
+    }
+    writer.close();
+
+    long segBytes = 0;
+    SegmentInfos infos = SegmentInfos.readLatestCommit(dir);
+    for (SegmentCommitInfo info : infos) {
+      segBytes += info.sizeInBytes();
+    }
+    assertEquals(flushQty, infos.size());
+
+    StageStats flush = stats.getStage(IndexingStats.STAGE_FLUSH);
+    assertEquals(flushQty, flush.getHistogram().getCount());
+    assertEquals(flushQty * docsPerFlush, flush.getItemQty());
+    assertEquals(segBytes, flush.getBytes());
+    assertTrue(flush.getNanos() > 0);
+    assertEquals(0, stats.getStage(IndexingStats.STAGE_MERGE).getItemQty());
+  }
+
+  @Test
+  public void testAddedIndexesAreNotFlushes() throws Exception {
+    Directory   srcDir = new ByteBuffersDirectory();
+    IndexWriter srcWriter = new IndexWriter(srcDir,
+                                            LuceneIndexer.createIndexConfig(new BM25Similarity(), 16, OpenMode.CREATE));
+    Document doc = new Document();
+    doc.add(new TextField(UtilConst.FIELD_TEXT, "some text", Field.Store.YES));
+    srcWriter.addDocument(doc);
+    srcWriter.close();
+
+    IndexingStats stats = new IndexingStats();
+    IndexWriter   writer = new IndexWriter(stats.wrapDirectory(new ByteBuffersDirectory()),
+                                           LuceneIndexer.createIndexConfig(new BM25Similarity(), 16, OpenMode.CREATE, stats));
+    writer.addIndexes(srcDir);
+    writer.close();
+
+    assertEquals(0, stats.getStage(IndexingStats.STAGE_FLUSH).getItemQty());
+  }
+
+  @Test
+  public void testUnits() {
+    assertEquals("chars", IndexingStats.getUnit(IndexingStats.STAGE_READ));
+    assertEquals("bytes", IndexingStats.getUnit(IndexingStats.STAGE_FLUSH));
+    assertEquals("bytes", IndexingStats.getUnit(IndexingStats.STAGE_MERGE));
+  }
+}
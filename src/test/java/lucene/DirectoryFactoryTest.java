@@ -0,0 +1,48 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package lucene;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
+import org.junit.Test;
+
+public class DirectoryFactoryTest {
+  @Test
+  public void testTypesAreCaseInsensitive() throws Exception {
+    assertTrue(DirectoryFactory.isType("MMAP", DirectoryFactory.DIR_TYPE_MMAP));
+    assertTrue(DirectoryFactory.isType("Ram", DirectoryFactory.DIR_TYPE_RAM));
+    assertFalse(DirectoryFactory.isType("nio", DirectoryFactory.DIR_TYPE_MMAP));
+
+    for (String type : DirectoryFactory.getDirectoryTypeList()) {
+      assertTrue(DirectoryFactory.isValidType(type.toUpperCase()));
+    }
+    assertFalse(DirectoryFactory.isValidType("mmapx"));
+    assertFalse(DirectoryFactory.isValidType(""));
+
+    // The validation agrees with the type that is actually created
+    Path path = Files.createTempDirectory("dir_factory");
+    try (Directory dir = DirectoryFactory.createDirectory("MMAP", path, false)) {
+      assertTrue(dir instanceof MMapDirectory);
+    } finally {
+      Files.delete(path);
+    }
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package qrels;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import utils.CompressUtils;
+
+/**
+ * Compares the evaluator with reference outputs of trec_eval 9.0.4 and gdeval.pl
+ * (see src/test/resources/qrels/README.md).
+ */
+public class EvaluatorTest {
+  private static final String DATA_DIR = "src/test/resources/qrels/";
+  /** trec_eval prints four digits after the decimal point. */
+  private static final double TREC_EVAL_EPS = 0.5e-4 + 1e-9;
+  /** gdeval.pl prints five digits after the decimal point. */
+  private static final double GDEVAL_EPS = 0.5e-5 + 1e-9;
+
+  @Test
+  public void testClueWeb09() throws Exception {
+    compareWithReference("eval_data/clueweb09_1MQ/qrels_1MQ.txt", "1MQ");
+  }
+
+  @Test
+  public void testClueWeb12() throws Exception {
+    compareWithReference("eval_data/clueweb12_Web/qrels_Web_dedup.txt", "Web");
+  }
+
+  @Test
+  public void testTieBreakAndNegativeGrades() throws Exception {
+    File qrelFile = File.createTempFile("qrels", ".txt");
+    try (FileWriter out = new FileWriter(qrelFile)) {
+      out.write("1 0 a 1\n1 0 b 0\n1 0 c -2\n1 0 d 2\n1 0 e 1\n");
+    }
+    Evaluator eval = new Evaluator(new QrelReader(qrelFile.getPath()));
+    qrelFile.delete();
+
+    // Ties are broken by document IDs in the descending order: c, b, a, d
+    eval.add("1", "a", 1);
+    eval.add("1", "d", 0.5);
+    eval.add("1", "c", 1);
+    eval.add("1", "b", 1);
+
+    EvalResult    res = eval.evaluate(1);
+    final double  eps = 1e-12;
+
+    assertEquals(3, res.getMean(Evaluator.NUM_REL), eps);
+    assertEquals(2, res.getMean(Evaluator.NUM_REL_RET), eps);
+    assertEquals(1.0 / 3, res.getMean(Evaluator.RECIP_RANK), eps);
+    assertEquals(0, res.getMean(Evaluator.PRECISION_PREFIX + 1), eps);
+    assertEquals(0.1, res.getMean(Evaluator.PRECISION_PREFIX + 20), eps);
+    assertEquals((1.0 / 3 + 2.0 / 4) / 3, res.getMean(Evaluator.MAP), eps);
+    assertEquals(2.0 / 3, res.getMean(Evaluator.RECALL), eps);
+
+    // The negative grade of the first document is treated as zero
+    double dcg = 1 / Math.log(4) + 3 / Math.log(5);
+    double idealDcg = 3 / Math.log(2) + 1 / Math.log(3) + 1 / Math.log(4);
+    assertEquals(dcg / idealDcg, res.getMean(Evaluator.NDCG_PREFIX + 20), eps);
+    double err = (1.0 / 16) / 3 + (1 - 1.0 / 16) * (3.0 / 16) / 4;
+    assertEquals(err, res.getMean(Evaluator.ERR_PREFIX + 20), eps);
+  }
+
+  private void compareWithReference(String qrelFile, String name) throws Exception {
+    Evaluator eval = new Evaluator(new QrelReader(qrelFile));
+    eval.readRun(DATA_DIR + "run_" + name + ".txt.gz");
+    EvalResult res = eval.evaluate(2);
+
+    HashMap<String, LinkedHashMap<String, Double>> trecEval = readTrecEval(DATA_DIR + "trec_eval_" + name + ".txt.gz");
+    assertEquals(9, trecEval.size());
+    for (Map.Entry<String, LinkedHashMap<String, Double>> e : trecEval.entrySet()) {
+      String metricName = e.getKey().equals("set_recall") ? Evaluator.RECALL : e.getKey();
+      compareValues(name + " " + metricName, e.getValue(), res, metricName, TREC_EVAL_EPS);
+    }
+
+    HashMap<String, LinkedHashMap<String, Double>> gdeval = readGdeval(DATA_DIR + "gdeval_" + name + ".csv");
+    assertEquals(2, gdeval.size());
+    for (Map.Entry<String, LinkedHashMap<String, Double>> e : gdeval.entrySet()) {
+      compareValues(name + " " + e.getKey(), e.getValue(), res, e.getKey(), GDEVAL_EPS);
+    }
+  }
+
+  /**
+   * Compares per-query values and the aggregate value (the query <code>all</code>).
+   */
+  private void compareValues(String msg, LinkedHashMap<String, Double> ref,
+                             EvalResult res, String metricName, double eps) {
+    LinkedHashMap<String, Double> vals = res.getQueryValues(metricName);
+    Double                        mean = ref.remove("all");
+
+    assertNotNull(msg + ": no aggregate value", mean);
+    assertEquals(msg + ": different sets of queries", ref.keySet(), vals.keySet());
+    for (Map.Entry<String, Double> e : ref.entrySet()) {
+      assertEquals(msg + " query " + e.getKey(), e.getValue(), vals.get(e.getKey()), eps);
+    }
+    assertEquals(msg + " all", mean, res.getMean(metricName), eps);
+  }
+
+  /**
+   * Reads the output of <code>trec_eval -q</code>.
+   */
+  private static HashMap<String, LinkedHashMap<String, Double>> readTrecEval(String fileName) throws IOException {
+    HashMap<String, LinkedHashMap<String, Double>> res = new HashMap<String, LinkedHashMap<String, Double>>();
+    try (BufferedReader inp = new BufferedReader(
+                                new InputStreamReader(CompressUtils.createInputStream(fileName), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = inp.readLine()) != null) {
+        String[] parts = line.trim().split("\\s+");
+        addValue(res, parts[0], parts[1], Double.parseDouble(parts[2]));
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Reads the CSV output of gdeval.pl, where the aggregate value is denoted by <code>amean</code>.
+   */
+  private static HashMap<String, LinkedHashMap<String, Double>> readGdeval(String fileName) throws IOException {
+    HashMap<String, LinkedHashMap<String, Double>> res = new HashMap<String, LinkedHashMap<String, Double>>();
+    try (BufferedReader inp = new BufferedReader(
+                                new InputStreamReader(CompressUtils.createInputStream(fileName), StandardCharsets.UTF_8))) {
+      String[] header = inp.readLine().split(",");
+      String   line;
+      while ((line = inp.readLine()) != null) {
+        String[] parts = line.split(",");
+        String   queryId = parts[1].equals("amean") ? "all" : parts[1];
+        for (int i = 2; i < parts.length; ++i) {
+          addValue(res, header[i], queryId, Double.parseDouble(parts[i]));
+        }
+      }
+    }
+    return res;
+  }
+
+  private static void addValue(HashMap<String, LinkedHashMap<String, Double>> res,
+                               String metricName, String queryId, double value) {
+    LinkedHashMap<String, Double> vals = res.get(metricName);
+    if (vals == null) {
+      vals = new LinkedHashMap<String, Double>();
+      res.put(metricName, vals);
+    }
+    vals.put(queryId, value);
+  }
+}
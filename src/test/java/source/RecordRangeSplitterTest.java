@@ -0,0 +1,174 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package source;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RecordRangeSplitterTest {
+  private static final long JOIN_TIMEOUT_MS = 30000;
+
+  /**
+   * A source of numbered records, it either ends after a given number of records
+   * or fails (if failAfter is non-negative).
+   */
+  private static class NumberedSource implements DocumentSource {
+    NumberedSource(long qty, long failAfter) {
+      mQty = qty;
+      mFailAfter = failAfter;
+    }
+
+    @Override
+    public DocumentEntry next() throws IOException {
+      if (mFailAfter >= 0 && mNext == mFailAfter) throw new IOException("Source failure");
+      if (mNext >= mQty) return null;
+      String id = Long.toString(mNext++);
+      return new DocumentEntry(null, null, id, "text " + id);
+    }
+
+    private final long mQty;
+    private final long mFailAfter;
+    private long       mNext = 0;
+  }
+
+  /**
+   * Reads a shard in a separate thread; the consumer can fail after reading a given number of records.
+   */
+  private static class Consumer extends Thread {
+    Consumer(RecordRangeSplitter splitter, int shardId, int failAfter) {
+      mSplitter = splitter;
+      mShard = splitter.getShard(shardId);
+      mFailAfter = failAfter;
+    }
+
+    @Override
+    public void run() {
+      try {
+        DocumentEntry e;
+        while ((e = mShard.next()) != null) {
+          mIds.add(Long.parseLong(e.mDocId));
+          if (mIds.size() == mFailAfter) {
+            throw new RuntimeException("Consumer failure");
+          }
+        }
+      } catch (Throwable e) {
+        mFailure = e;
+        mSplitter.abort();
+      }
+    }
+
+    final RecordRangeSplitter mSplitter;
+    final DocumentSource      mShard;
+    final int                 mFailAfter;
+    final List<Long>          mIds = new ArrayList<Long>();
+    volatile Throwable        mFailure = null;
+  }
+
+  private static Consumer[] runConsumers(RecordRangeSplitter splitter, int shardQty, int failedShard, int failAfter)
+      throws InterruptedException {
+    Consumer[] consumers = new Consumer[shardQty];
+    for (int i = 0; i < shardQty; ++i) {
+      consumers[i] = new Consumer(splitter, i, i == failedShard ? failAfter : -1);
+      consumers[i].start();
+    }
+    for (Consumer c : consumers) {
+      c.join(JOIN_TIMEOUT_MS);
+      assertFalse("A shard consumer hangs", c.isAlive());
+    }
+    return consumers;
+  }
+
+  @Test
+  public void testRecordRanges() throws Exception {
+    final int shardQty = 3, blockSize = 10, qty = 1005;
+    RecordRangeSplitter splitter = new RecordRangeSplitter(new NumberedSource(qty, -1), shardQty, blockSize);
+    Consumer[] consumers = runConsumers(splitter, shardQty, -1, -1);
+
+    int total = 0;
+    for (int shardId = 0; shardId < shardQty; ++shardId) {
+      Consumer c = consumers[shardId];
+      assertNull(c.mFailure);
+      long prev = -1;
+      for (long id : c.mIds) {
+        assertEquals(shardId, (id / blockSize) % shardQty);
+        assertTrue(id > prev);
+        prev = id;
+      }
+      total += c.mIds.size();
+      // The end of data is reported repeatedly
+      assertNull(c.mShard.next());
+    }
+    assertEquals(qty, total);
+  }
+
+  @Test
+  public void testConsumerFailureStopsOtherShards() throws Exception {
+    final int shardQty = 3;
+    // The source is much larger than the queues
+    RecordRangeSplitter splitter = new RecordRangeSplitter(new NumberedSource(Long.MAX_VALUE, -1), shardQty, 10);
+    Consumer[] consumers = runConsumers(splitter, shardQty, 1, 5);
+
+    assertTrue(consumers[1].mFailure instanceof RuntimeException);
+    for (int shardId = 0; shardId < shardQty; ++shardId) {
+      if (shardId != 1) {
+        assertTrue("Healthy shards should see the abort", consumers[shardId].mFailure instanceof IOException);
+      }
+    }
+  }
+
+  @Test
+  public void testConsumerFailureWithSlowSource() throws Exception {
+    final int shardQty = 4;
+    // The failed consumer stops reading before the feeder fills queues of other shards
+    RecordRangeSplitter splitter = new RecordRangeSplitter(new NumberedSource(Long.MAX_VALUE, -1) {
+      @Override
+      public DocumentEntry next() throws IOException {
+        try {
+          Thread.sleep(1);
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        return super.next();
+      }
+    }, shardQty, 1);
+    Consumer[] consumers = runConsumers(splitter, shardQty, 0, 1);
+
+    assertTrue(consumers[0].mFailure instanceof RuntimeException);
+    for (int shardId = 1; shardId < shardQty; ++shardId) {
+      assertNotNull(consumers[shardId].mFailure);
+    }
+  }
+
+  @Test
+  public void testSourceFailure() throws Exception {
+    final int shardQty = 2;
+    RecordRangeSplitter splitter = new RecordRangeSplitter(new NumberedSource(1000, 55), shardQty, 10);
+    Consumer[] consumers = runConsumers(splitter, shardQty, -1, -1);
+
+    int total = 0;
+    for (Consumer c : consumers) {
+      assertTrue(c.mFailure instanceof IOException);
+      total += c.mIds.size();
+    }
+    // Records read before the failure are delivered
+    assertEquals(55, total);
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package utils;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+public class BlockCompressOutputStreamTest {
+  @Test
+  public void testRoundTrip() throws Exception {
+    byte[] data = new byte[3000000];
+    new Random(0).nextBytes(data);
+    ByteArrayOutputStream compr = new ByteArrayOutputStream();
+    try (OutputStream out = new ParallelGZIPOutputStream(compr, 3)) {
+      out.write(data);
+    }
+    ByteArrayOutputStream res = new ByteArrayOutputStream();
+    try (GZIPInputStream inp = new GZIPInputStream(new ByteArrayInputStream(compr.toByteArray()))) {
+      byte[] buf = new byte[65536];
+      int    qty;
+      while ((qty = inp.read(buf)) >= 0) res.write(buf, 0, qty);
+    }
+    assertArrayEquals(data, res.toByteArray());
+  }
+
+  @Test
+  public void testCloseAfterWriteError() throws Exception {
+    for (boolean closeFails : new boolean[] { false, true }) {
+      FailingOutputStream target = new FailingOutputStream(closeFails);
+      OutputStream        out = new ParallelGZIPOutputStream(target, 2);
+      out.write(new byte[1000]);
+      try {
+        out.close();
+        fail("The write error is not reported");
+      } catch (IOException e) {
+        // The original exception is kept, the failure to close is suppressed
+        assertEquals("Write failed", e.getMessage());
+        assertEquals(closeFails ? 1 : 0, e.getSuppressed().length);
+      }
+      assertEquals("The underlying stream is not closed", 1, target.mCloseQty);
+    }
+  }
+
+  /**
+   * Fails to write any data and, optionally, to close the stream.
+   */
+  private static class FailingOutputStream extends OutputStream {
+    FailingOutputStream(boolean closeFails) {
+      mCloseFails = closeFails;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      throw new IOException("Write failed");
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) throws IOException {
+      throw new IOException("Write failed");
+    }
+
+    @Override
+    public void close() throws IOException {
+      ++mCloseQty;
+      if (mCloseFails) throw new IOException("Close failed");
+    }
+
+    final boolean mCloseFails;
+    int           mCloseQty = 0;
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package utils;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.tools.bzip2.CBZip2InputStream;
+import org.apache.tools.bzip2.CBZip2OutputStream;
+import org.junit.Test;
+
+public class ParallelBZip2InputStreamTest {
+  /** The size of input chunks read by the stream. */
+  private static final int READ_SIZE = 256 * 1024;
+  private static final long BLOCK_MAGIC = 0x314159265359L;
+  private static final int[] THREAD_QTYS = { 1, 3 };
+
+  @Test
+  public void testSingleStream() throws Exception {
+    byte[] data = createText(new Random(0), 1000000);
+    // Level 1 means 100K blocks
+    byte[] compr = compress(data, 1);
+    assertTrue(countBlockMagic(compr) >= 10);
+    checkRoundTrip(data, compr);
+  }
+
+  @Test
+  public void testMultiStream() throws Exception {
+    Random                rand = new Random(1);
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    ByteArrayOutputStream compr = new ByteArrayOutputStream();
+    // As pbzip2 does, chunks are compressed as separate streams, some of them are empty
+    int[] sizes = { 300000, 1, 0, 150000, 0, 500000 };
+    for (int i = 0; i < sizes.length; ++i) {
+      byte[] chunk = createText(rand, sizes[i]);
+      data.write(chunk);
+      compr.write(compress(chunk, 1 + i % 9));
+    }
+    checkRoundTrip(data.toByteArray(), compr.toByteArray());
+
+    // Streams written by the parallel output stream
+    ByteArrayOutputStream parCompr = new ByteArrayOutputStream();
+    try (ParallelBZip2OutputStream out = new ParallelBZip2OutputStream(parCompr, 2)) {
+      out.write(data.toByteArray());
+    }
+    checkRoundTrip(data.toByteArray(), parCompr.toByteArray());
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    checkRoundTrip(new byte[0], compress(new byte[0], 9));
+    checkRoundTrip(new byte[0], concat(compress(new byte[0], 9), compress(new byte[0], 1)));
+  }
+
+  @Test
+  public void testBlocksCrossRefills() throws Exception {
+    // Incompressible data: 900K blocks span several input chunks
+    Random  rand = new Random(2);
+    byte[]  data = new byte[2500000];
+    rand.nextBytes(data);
+    byte[]  compr = compress(data, 9);
+    assertTrue(compr.length > 8 * READ_SIZE);
+    checkRoundTrip(data, compr);
+
+    // Block boundaries at different offsets from the refill boundary
+    for (int size : new int[] { 100000 - 1, 100000, 100000 + 1 }) {
+      byte[] part = Arrays.copyOf(data, READ_SIZE * 3 / 2 + size);
+      checkRoundTrip(part, compress(part, 1));
+    }
+  }
+
+  @Test
+  public void testFalseBlockMagic() throws Exception {
+    // A block starts with a bitmap of used byte values: 16 bits denoting used ranges of 16 values
+    // followed by 16 bits for each used range. If data uses exactly these bytes, the bitmaps
+    // of ranges 0x40, 0x50, and 0x60 are 0x3141, 0x5926, and 0x5359, i.e., the block magic number.
+    byte[] alphabet = "BCGIOQSTWZ]^acfgiklo".getBytes("US-ASCII");
+    Random rand = new Random(3);
+    byte[] data = new byte[450000];
+    for (int i = 0; i < data.length; ++i) {
+      // Runs of four equal bytes would add run lengths to used bytes
+      do {
+        data[i] = alphabet[rand.nextInt(alphabet.length)];
+      } while (i >= 3 && data[i] == data[i - 1] && data[i] == data[i - 2] && data[i] == data[i - 3]);
+    }
+    byte[] compr = compress(data, 1);
+    // Each of five blocks has a false magic number
+    assertEquals(10, countBlockMagic(compr));
+    checkRoundTrip(data, compr);
+  }
+
+  @Test
+  public void testTruncated() throws Exception {
+    byte[] data = createText(new Random(4), 700000);
+    byte[] compr = compress(data, 2);
+
+    for (int len : new int[] { 4, 5, 100, READ_SIZE, compr.length / 2,
+                               compr.length - 11, compr.length - 10, compr.length - 1 }) {
+      byte[] trunc = Arrays.copyOf(compr, len);
+      for (int threadQty : THREAD_QTYS) {
+        try {
+          decompress(new ParallelBZip2InputStream(new ByteArrayInputStream(trunc), threadQty), 65536);
+          fail("Truncated data (" + len + " bytes out of " + compr.length + ") is not detected");
+        } catch (IOException e) {
+          // Expected
+        }
+      }
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testNotBZip2() throws Exception {
+    new ParallelBZip2InputStream(new ByteArrayInputStream("not a bzip2 file".getBytes("US-ASCII")), 1);
+  }
+
+  private static void checkRoundTrip(byte[] data, byte[] compr) throws IOException {
+    // The sequential stream is the reference
+    InputStream seqInp = new ByteArrayInputStream(compr, 2, compr.length - 2);
+    assertArrayEquals(data, decompress(new CBZip2InputStream(seqInp, true), 65536));
+
+    for (int threadQty : THREAD_QTYS) {
+      for (int bufSize : new int[] { 1, 1000, 65536 }) {
+        InputStream inp = new ParallelBZip2InputStream(new ByteArrayInputStream(compr), threadQty);
+        assertArrayEquals("threads: " + threadQty + " buffer: " + bufSize, data, decompress(inp, bufSize));
+      }
+    }
+  }
+
+  /**
+   * Reads all data, a buffer of size one means reading byte by byte.
+   */
+  private static byte[] decompress(InputStream inp, int bufSize) throws IOException {
+    ByteArrayOutputStream res = new ByteArrayOutputStream();
+    try {
+      if (bufSize == 1) {
+        int b;
+        while ((b = inp.read()) >= 0) res.write(b);
+      } else {
+        byte[] buf = new byte[bufSize];
+        int    qty;
+        while ((qty = inp.read(buf, 0, buf.length)) >= 0) res.write(buf, 0, qty);
+      }
+    } finally {
+      inp.close();
+    }
+    return res.toByteArray();
+  }
+
+  /**
+   * @return a single bzip2 stream (including the "BZ" signature).
+   */
+  private static byte[] compress(byte[] data, int level) throws IOException {
+    ByteArrayOutputStream res = new ByteArrayOutputStream();
+    res.write('B');
+    res.write('Z');
+    try (CBZip2OutputStream out = new CBZip2OutputStream(res, level)) {
+      out.write(data);
+    }
+    return res.toByteArray();
+  }
+
+  private static byte[] concat(byte[] a, byte[] b) {
+    byte[] res = Arrays.copyOf(a, a.length + b.length);
+    System.arraycopy(b, 0, res, a.length, b.length);
+    return res;
+  }
+
+  /**
+   * @return compressible text: random words from a small vocabulary.
+   */
+  private static byte[] createText(Random rand, int size) {
+    String[]      words = new String[500];
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < words.length; ++i) {
+      sb.setLength(0);
+      for (int k = 1 + rand.nextInt(10); k > 0; --k) sb.append((char)('a' + rand.nextInt(26)));
+      words[i] = sb.toString();
+    }
+    byte[] res = new byte[size];
+    int    len = 0;
+    while (len < size) {
+      byte[] w = (words[rand.nextInt(words.length)] + (rand.nextInt(15) == 0 ? "\n" : " ")).getBytes();
+      int    qty = Math.min(w.length, size - len);
+      System.arraycopy(w, 0, res, len, qty);
+      len += qty;
+    }
+    return res;
+  }
+
+  /**
+   * @return the number of occurrences of the block magic number at any bit position.
+   */
+  private static int countBlockMagic(byte[] data) {
+    long  reg = 0;
+    int   res = 0;
+    for (long bit = 0; bit < data.length * 8L; ++bit) {
+      reg = ((reg << 1) | ((data[(int)(bit / 8)] >>> (7 - (int)(bit % 8))) & 1)) & ((1L << 48) - 1);
+      if (bit >= 47 && reg == BLOCK_MAGIC) ++res;
+    }
+    return res;
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ *  Copyright 2016 Carnegie Mellon University
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package utils;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ReadAheadInputStreamTest {
+  @Test
+  public void testReadAll() throws Exception {
+    byte[] data = new byte[10000];
+    new Random(0).nextBytes(data);
+    // Data end at a buffer boundary and in the middle of a buffer
+    for (int size : new int[] { 0, 1, 1000, 999, 1001, data.length }) {
+      byte[] part = Arrays.copyOf(data, size);
+      try (InputStream inp = new ReadAheadInputStream(new ByteArrayInputStream(part), 1000, 2, null)) {
+        assertArrayEquals(part, readAll(inp));
+        assertEquals(-1, inp.read());
+      }
+    }
+  }
+
+  @Test
+  public void testErrorIsRepeated() throws Exception {
+    byte[] data = new byte[2500];
+    new Random(1).nextBytes(data);
+    try (InputStream inp = new ReadAheadInputStream(new FailingInputStream(data), 1000, 2, null)) {
+      // Data read before the error are returned first
+      byte[] buf = new byte[2 * data.length];
+      int    len = 0, qty;
+      try {
+        while ((qty = inp.read(buf, len, buf.length - len)) > 0) len += qty;
+        fail("The error is not reported");
+      } catch (IOException e) {
+        // Expected
+      }
+      assertArrayEquals(data, Arrays.copyOf(buf, len));
+      // Later calls don't return the end of data
+      for (int i = 0; i < 3; ++i) {
+        try {
+          inp.read();
+          fail("The error is not reported on a subsequent call");
+        } catch (IOException e) {
+          // Expected
+        }
+        try {
+          inp.read(buf, 0, buf.length);
+          fail("The error is not reported on a subsequent call");
+        } catch (IOException e) {
+          // Expected
+        }
+      }
+    }
+  }
+
+  private static byte[] readAll(InputStream inp) throws IOException {
+    ByteArrayOutputStream res = new ByteArrayOutputStream();
+    byte[]                buf = new byte[333];
+    int                   qty;
+    while ((qty = inp.read(buf, 0, buf.length)) >= 0) res.write(buf, 0, qty);
+    return res.toByteArray();
+  }
+
+  /**
+   * Returns the data and then fails instead of signaling the end of data.
+   */
+  private static class FailingInputStream extends ByteArrayInputStream {
+    FailingInputStream(byte[] data) {
+      super(data);
+    }
+
+    @Override
+    public synchronized int read(byte[] buf, int off, int len) {
+      int qty = super.read(buf, off, len);
+      if (qty < 0) throw new IllegalStateException("Broken input");
+      return qty;
+    }
+  }
+}
@@ -0,0 +1,21 @@
+import random, sys, collections
+# Usage: gen.py <qrels> <run> <seed> <fake doc prefix>
+qrels, out, seed, prefix = sys.argv[1], sys.argv[2], int(sys.argv[3]), sys.argv[4]
+rnd = random.Random(seed)
+docs = collections.OrderedDict()
+for line in open(qrels):
+    q, _, d, g = line.split()
+    docs.setdefault(q, []).append(d)
+queries = list(docs.keys())
+with open(out, 'w') as f:
+    for qi, q in enumerate(queries):
+        # Every 10th query retrieves unjudged documents only
+        judged = [] if qi % 10 == 9 else rnd.sample(docs[q], min(len(docs[q]), rnd.randint(1, 40)))
+        unjudged = ['%s%04d-%02d' % (prefix, qi, k) for k in range(rnd.randint(0, 8))]
+        ret = judged + unjudged
+        rnd.shuffle(ret)
+        # Few distinct scores produce many ties, ranks are deliberately not sorted by score
+        for rank, d in enumerate(ret):
+            f.write('%s Q0 %s %d %.1f test\n' % (q, d, rank + 1, rnd.randint(-5, 20) / 2.0))
+    # A query without judgments is ignored by both tools
+    f.write('999999 Q0 %s0000-00 1 1.0 test\n' % prefix)